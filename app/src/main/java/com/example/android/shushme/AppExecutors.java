@@ -0,0 +1,68 @@
+package com.example.android.shushme;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Shared executors for work that should stay off the main thread,
+ * plus a handler to post results back to it.
+ */
+public class AppExecutors {
+
+    private static final Object LOCK = new Object();
+    private static volatile AppExecutors sInstance;
+
+    private final ExecutorService background;
+    private final ExecutorService transitions;
+    private final ExecutorService maintenance;
+    private final Handler mainHandler;
+
+    private AppExecutors()
+    {
+        background = Executors.newSingleThreadExecutor();
+        transitions = Executors.newSingleThreadExecutor();
+        maintenance = Executors.newSingleThreadExecutor();
+        mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    public static AppExecutors getInstance()
+    {
+        if (sInstance == null) {
+            synchronized (LOCK) {
+                if (sInstance == null) {
+                    sInstance = new AppExecutors();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    // single background thread, so tasks run in the order they were submitted
+    public Executor background()
+    {
+        return background;
+    }
+
+    // geofence transitions get their own thread so they are handled in order
+    // and never wait behind UI work queued on the background thread
+    public Executor transitions()
+    {
+        return transitions;
+    }
+
+    // idle-time maintenance waits between its batches,
+    // so it gets its own thread instead of holding up the background thread
+    public Executor maintenance()
+    {
+        return maintenance;
+    }
+
+    public void runOnMain(Runnable runnable)
+    {
+        mainHandler.post(runnable);
+    }
+}
@@ -0,0 +1,330 @@
+package com.example.android.shushme;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Merges places whose fences overlap into one covering fence, so places a few metres apart,
+ * like the departments of one hospital, take one registration slot and report one transition.
+ * Places are put on a grid, so each place is only compared with the places in nearby cells.
+ * A cluster only grows while its covering circle stays within MAX_CLUSTER_RADIUS_IN_METERS,
+ * so a row of places along a street becomes a few fences instead of one huge one.
+ *
+ * Also remembers the fences registered with Google Play services and the places each covers,
+ * so GeofenceBroadcastReceiver can turn a triggered cluster back into its places,
+ * and Geofencing only sends the fences that changed.
+ */
+public class FenceClusters {
+
+    // the largest covering circle a cluster may grow to
+    static final float MAX_CLUSTER_RADIUS_IN_METERS = 150;
+    // request IDs of fences covering more than one place start with this, place IDs never do
+    static final String CLUSTER_ID_PREFIX = "cluster:";
+
+    private static final double METERS_PER_DEGREE_LATITUDE = 111320;
+
+    private static final String PREFERENCES_NAME = "fence_clusters";
+    // set once fences have been saved, older versions registered one fence per place without saving
+    private static final String KEY_SAVED = "saved";
+    // one key per registered fence, holding its signature.
+    // Empty while the fence is being added, so it is sent again if adding it fails.
+    private static final String SIGNATURE_PREFIX = "signature_";
+    // one key per registered cluster, holding its Place IDs
+    private static final String MEMBERS_PREFIX = "members_";
+    // when all planned fences were last sent, and when the device booted then.
+    // Fences expire, and a reboot drops them, so unchanged fences have to be sent again.
+    private static final String KEY_RENEWED_AT = "renewed_at";
+    private static final String KEY_RENEWED_BOOT_TIME = "renewed_boot_time";
+    // the boot time is derived from two clocks, so allow for some drift between reads
+    private static final long BOOT_TIME_TOLERANCE_IN_MILLISECONDS = 60 * 1000;
+
+    /**
+     * A fence to register, covering one or more places
+     */
+    public static final class Fence {
+        // the Place ID for a single place, CLUSTER_ID_PREFIX + the smallest Place ID for a cluster
+        public final String id;
+        public final double latitude;
+        public final double longitude;
+        public final float radius;
+        public final List<String> placeIds;
+
+        Fence(String id, double latitude, double longitude, float radius, List<String> placeIds)
+        {
+            this.id = id;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.radius = radius;
+            this.placeIds = placeIds;
+        }
+
+        // changes whenever the fence has to be registered again
+        String signature(PowerProfile profile)
+        {
+            return latitude + "," + longitude + "," + radius + "," + profile.id;
+        }
+    }
+
+    private final SharedPreferences preferences;
+
+    public FenceClusters(Context context)
+    {
+        preferences = context.getApplicationContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Groups the places into fences. The same places always give the same fences,
+     * whatever their order.
+     *
+     * @param placeIds   the places
+     * @param latitudes  the centers, same order as the IDs
+     * @param longitudes the centers, same order as the IDs
+     * @param radius     the radius of the fence of a single place
+     */
+    public static List<Fence> build(List<String> placeIds, double[] latitudes, double[] longitudes, float radius)
+    {
+        int count = placeIds.size();
+        // members of a cluster are at most two covering radii apart, so that is the cell size
+        double cellSize = 2 * MAX_CLUSTER_RADIUS_IN_METERS / METERS_PER_DEGREE_LATITUDE;
+        Map<Long, List<Integer>> cells = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            Long key = key((int) Math.floor(latitudes[i] / cellSize), (int) Math.floor(longitudes[i] / cellSize));
+            List<Integer> cell = cells.get(key);
+            if (cell == null) {
+                cell = new ArrayList<>(2);
+                cells.put(key, cell);
+            }
+            cell.add(i);
+        }
+
+        // seeds are taken in Place ID order, so a cluster's seed has its smallest Place ID
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> placeIds.get(a).compareTo(placeIds.get(b)));
+
+        boolean[] isAssigned = new boolean[count];
+        List<Fence> fences = new ArrayList<>();
+        for (int seed : order) {
+            if (isAssigned[seed]) {
+                continue;
+            }
+            isAssigned[seed] = true;
+            List<Integer> members = new ArrayList<>();
+            members.add(seed);
+            double centerLatitude = latitudes[seed];
+            double centerLongitude = longitudes[seed];
+            double coverRadius = radius;
+
+            for (final int candidate : nearbyPlaces(cells, cellSize, latitudes, longitudes, seed, isAssigned)) {
+                // only merge fences that overlap the cluster
+                if (FenceGridIndex.distance(centerLatitude, centerLongitude,
+                        latitudes[candidate], longitudes[candidate]) > coverRadius + radius) {
+                    continue;
+                }
+                members.add(candidate);
+                double latitudeSum = 0;
+                double longitudeSum = 0;
+                for (int member : members) {
+                    latitudeSum += latitudes[member];
+                    longitudeSum += longitudes[member];
+                }
+                double newLatitude = latitudeSum / members.size();
+                double newLongitude = longitudeSum / members.size();
+                double newCoverRadius = 0;
+                for (int member : members) {
+                    newCoverRadius = Math.max(newCoverRadius, radius
+                            + FenceGridIndex.distance(newLatitude, newLongitude, latitudes[member], longitudes[member]));
+                }
+                if (newCoverRadius > MAX_CLUSTER_RADIUS_IN_METERS) {
+                    members.remove(members.size() - 1);
+                    continue;
+                }
+                isAssigned[candidate] = true;
+                centerLatitude = newLatitude;
+                centerLongitude = newLongitude;
+                coverRadius = newCoverRadius;
+            }
+
+            if (members.size() == 1) {
+                fences.add(new Fence(placeIds.get(seed), latitudes[seed], longitudes[seed], radius,
+                        Collections.singletonList(placeIds.get(seed))));
+            }
+            else {
+                List<String> memberIds = new ArrayList<>(members.size());
+                for (int member : members) {
+                    memberIds.add(placeIds.get(member));
+                }
+                fences.add(new Fence(CLUSTER_ID_PREFIX + placeIds.get(seed),
+                        centerLatitude, centerLongitude, (float) coverRadius, memberIds));
+            }
+        }
+        return fences;
+    }
+
+    // The unassigned places in the cells around the seed, nearest first
+    private static List<Integer> nearbyPlaces(Map<Long, List<Integer>> cells, double cellSize,
+                                              final double[] latitudes, final double[] longitudes,
+                                              final int seed, boolean[] isAssigned)
+    {
+        int row = (int) Math.floor(latitudes[seed] / cellSize);
+        int column = (int) Math.floor(longitudes[seed] / cellSize);
+        // a cell spans fewer metres east to west away from the equator
+        int columnRings = (int) Math.ceil(1 / Math.max(Math.cos(Math.toRadians(latitudes[seed])), 0.01));
+        List<Integer> nearby = new ArrayList<>();
+        for (int r = row - 1; r <= row + 1; r++) {
+            for (int c = column - columnRings; c <= column + columnRings; c++) {
+                List<Integer> cell = cells.get(key(r, c));
+                if (cell == null) {
+                    continue;
+                }
+                for (int i : cell) {
+                    if (!isAssigned[i]) {
+                        nearby.add(i);
+                    }
+                }
+            }
+        }
+        Collections.sort(nearby, (a, b) -> Double.compare(
+                FenceGridIndex.distance(latitudes[seed], longitudes[seed], latitudes[a], longitudes[a]),
+                FenceGridIndex.distance(latitudes[seed], longitudes[seed], latitudes[b], longitudes[b])));
+        return nearby;
+    }
+
+    private static Long key(int row, int column)
+    {
+        return ((long) row << 32) | (column & 0xffffffffL);
+    }
+
+    /**
+     * Whether the registered fences were saved. If not, fences registered by an older version
+     * of the app may still be registered under their Place IDs.
+     */
+    public boolean isSaved()
+    {
+        return preferences.getBoolean(KEY_SAVED, false);
+    }
+
+    /**
+     * @return request ID -> signature of the registered fences
+     */
+    public Map<String, String> getRegisteredSignatures()
+    {
+        Map<String, String> signatures = new HashMap<>();
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            if (entry.getKey().startsWith(SIGNATURE_PREFIX)) {
+                signatures.put(entry.getKey().substring(SIGNATURE_PREFIX.length()), (String) entry.getValue());
+            }
+        }
+        return signatures;
+    }
+
+    /**
+     * Saves the fences that are about to be added, before they are sent.
+     * Their places are saved so their initial triggers can be expanded, but not their
+     * signatures: until {@link #setRegistered} they count as registered with an unknown
+     * signature, so they are removed if no longer planned and sent again otherwise.
+     */
+    public void setAdding(List<Fence> fences)
+    {
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putBoolean(KEY_SAVED, true);
+        for (Fence fence : fences) {
+            editor.putString(SIGNATURE_PREFIX + fence.id, "");
+            if (fence.placeIds.size() > 1) {
+                editor.putStringSet(MEMBERS_PREFIX + fence.id, new HashSet<>(fence.placeIds));
+            }
+            else {
+                editor.remove(MEMBERS_PREFIX + fence.id);
+            }
+        }
+        editor.apply();
+    }
+
+    /**
+     * Saves the signatures of fences Google Play services accepted
+     */
+    public void setRegistered(List<Fence> fences, PowerProfile profile)
+    {
+        SharedPreferences.Editor editor = preferences.edit();
+        for (Fence fence : fences) {
+            editor.putString(SIGNATURE_PREFIX + fence.id, fence.signature(profile));
+        }
+        editor.apply();
+    }
+
+    // Remembers that all planned fences were just registered
+    public void setRenewed()
+    {
+        long now = System.currentTimeMillis();
+        preferences.edit()
+                .putLong(KEY_RENEWED_AT, now)
+                .putLong(KEY_RENEWED_BOOT_TIME, now - SystemClock.elapsedRealtime())
+                .apply();
+    }
+
+    /**
+     * Whether all fences should be sent again, not only the changed ones:
+     * they were last renewed longer ago than maxAge, or the device rebooted since.
+     */
+    public boolean needsRenewal(long maxAge)
+    {
+        long now = System.currentTimeMillis();
+        long renewedAt = preferences.getLong(KEY_RENEWED_AT, 0);
+        long bootTime = now - SystemClock.elapsedRealtime();
+        return now - renewedAt > maxAge || now < renewedAt
+                || Math.abs(bootTime - preferences.getLong(KEY_RENEWED_BOOT_TIME, 0)) > BOOT_TIME_TOLERANCE_IN_MILLISECONDS;
+    }
+
+    // Forgets fences Google Play services removed
+    public void forget(List<String> fenceIds)
+    {
+        SharedPreferences.Editor editor = preferences.edit();
+        for (String fenceId : fenceIds) {
+            editor.remove(SIGNATURE_PREFIX + fenceId).remove(MEMBERS_PREFIX + fenceId);
+        }
+        editor.apply();
+    }
+
+    // Forgets the saved fences, after all fences were removed
+    public void clear()
+    {
+        preferences.edit().clear().putBoolean(KEY_SAVED, true).apply();
+    }
+
+    /**
+     * Replaces the cluster IDs in the list with the Place IDs they cover.
+     * Place IDs, and clusters that are no longer saved, are kept as they are.
+     */
+    public List<String> expand(List<String> fenceIds)
+    {
+        List<String> placeIds = new ArrayList<>(fenceIds.size());
+        for (String fenceId : fenceIds) {
+            Set<String> members = fenceId.startsWith(CLUSTER_ID_PREFIX)
+                    ? preferences.getStringSet(MEMBERS_PREFIX + fenceId, null)
+                    : null;
+            if (members == null) {
+                placeIds.add(fenceId);
+            }
+            else {
+                for (String member : members) {
+                    if (!placeIds.contains(member)) {
+                        placeIds.add(member);
+                    }
+                }
+            }
+        }
+        return placeIds;
+    }
+}
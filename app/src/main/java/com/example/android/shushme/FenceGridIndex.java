@@ -0,0 +1,163 @@
+package com.example.android.shushme;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Spatial index of circular fences on a fixed grid of latitude/longitude cells.
+ * Each fence is added to every cell its bounding box overlaps, so finding the fences
+ * that contain a point only checks the fences of the point's own cell.
+ * Immutable once built, so it can be shared between threads.
+ */
+public class FenceGridIndex {
+
+    // about 1.1 km north to south, and less east to west away from the equator
+    static final double CELL_SIZE_IN_DEGREES = 0.01;
+    private static final double METERS_PER_DEGREE_LATITUDE = 111320;
+    private static final double EARTH_RADIUS_IN_METERS = 6371000;
+    // how far out nearestEdgeDistance looks, in cells. Anything farther is just "far".
+    private static final int MAX_SEARCH_RINGS = 8;
+
+    private final String[] ids;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final float[] radii;
+    // cell key -> indices of the fences overlapping that cell
+    private final Map<Long, int[]> cells;
+
+    /**
+     * @param ids        fence IDs
+     * @param latitudes  fence centers, same order as the IDs
+     * @param longitudes fence centers, same order as the IDs
+     * @param radii      fence radii in meters, same order as the IDs
+     */
+    public FenceGridIndex(String[] ids, double[] latitudes, double[] longitudes, float[] radii)
+    {
+        this.ids = ids;
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        this.radii = radii;
+
+        Map<Long, List<Integer>> cellLists = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            double latitudeSpan = radii[i] / METERS_PER_DEGREE_LATITUDE;
+            double longitudeSpan = radii[i] / (METERS_PER_DEGREE_LATITUDE
+                    * Math.max(Math.cos(Math.toRadians(latitudes[i])), 0.01));
+            int minRow = row(latitudes[i] - latitudeSpan);
+            int maxRow = row(latitudes[i] + latitudeSpan);
+            int minColumn = column(longitudes[i] - longitudeSpan);
+            int maxColumn = column(longitudes[i] + longitudeSpan);
+            for (int r = minRow; r <= maxRow; r++) {
+                for (int c = minColumn; c <= maxColumn; c++) {
+                    Long key = key(r, c);
+                    List<Integer> list = cellLists.get(key);
+                    if (list == null) {
+                        list = new ArrayList<>(2);
+                        cellLists.put(key, list);
+                    }
+                    list.add(i);
+                }
+            }
+        }
+        cells = new HashMap<>(cellLists.size() * 2);
+        for (Map.Entry<Long, List<Integer>> entry : cellLists.entrySet()) {
+            List<Integer> list = entry.getValue();
+            int[] indices = new int[list.size()];
+            for (int i = 0; i < indices.length; i++) {
+                indices[i] = list.get(i);
+            }
+            cells.put(entry.getKey(), indices);
+        }
+    }
+
+    public int size()
+    {
+        return ids.length;
+    }
+
+    /**
+     * @return the IDs of the fences containing the point
+     */
+    public List<String> findContaining(double latitude, double longitude)
+    {
+        List<String> containing = new ArrayList<>();
+        int[] indices = cells.get(key(row(latitude), column(longitude)));
+        if (indices != null) {
+            for (int index : indices) {
+                if (distance(latitude, longitude, latitudes[index], longitudes[index]) <= radii[index]) {
+                    containing.add(ids[index]);
+                }
+            }
+        }
+        return containing;
+    }
+
+    /**
+     * Distance from the point to the edge of the closest fence, 0 if inside one.
+     * Searches outwards ring by ring and stops once no closer fence is possible.
+     *
+     * @return the distance in meters, or Float.POSITIVE_INFINITY if there is no fence
+     * within about MAX_SEARCH_RINGS cells
+     */
+    public float nearestEdgeDistance(double latitude, double longitude)
+    {
+        int row = row(latitude);
+        int column = column(longitude);
+        double best = Double.POSITIVE_INFINITY;
+        // the shortest side of a cell, which is east to west
+        double cellWidth = CELL_SIZE_IN_DEGREES * METERS_PER_DEGREE_LATITUDE
+                * Math.max(Math.cos(Math.toRadians(latitude)), 0.01);
+        for (int ring = 0; ring <= MAX_SEARCH_RINGS; ring++) {
+            // any fence first seen in this ring overlaps a cell at least (ring - 1) cells away
+            if (best <= (ring - 1) * cellWidth) {
+                break;
+            }
+            for (int r = row - ring; r <= row + ring; r++) {
+                for (int c = column - ring; c <= column + ring; c++) {
+                    // only the border of the ring, the inside was searched already
+                    if (Math.abs(r - row) != ring && Math.abs(c - column) != ring) {
+                        continue;
+                    }
+                    int[] indices = cells.get(key(r, c));
+                    if (indices == null) {
+                        continue;
+                    }
+                    for (int index : indices) {
+                        double edge = distance(latitude, longitude, latitudes[index], longitudes[index])
+                                - radii[index];
+                        best = Math.min(best, Math.max(edge, 0));
+                    }
+                }
+            }
+        }
+        return (float) best;
+    }
+
+    private static int row(double latitude)
+    {
+        return (int) Math.floor(latitude / CELL_SIZE_IN_DEGREES);
+    }
+
+    private static int column(double longitude)
+    {
+        return (int) Math.floor(longitude / CELL_SIZE_IN_DEGREES);
+    }
+
+    private static Long key(int row, int column)
+    {
+        return ((long) row << 32) | (column & 0xffffffffL);
+    }
+
+    // great-circle distance in meters, using the haversine formula
+    static double distance(double latitude1, double longitude1, double latitude2, double longitude2)
+    {
+        double dLatitude = Math.toRadians(latitude2 - latitude1);
+        double dLongitude = Math.toRadians(longitude2 - longitude1);
+        double a = Math.sin(dLatitude / 2) * Math.sin(dLatitude / 2)
+                + Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2))
+                * Math.sin(dLongitude / 2) * Math.sin(dLongitude / 2);
+        return 2 * EARTH_RADIUS_IN_METERS * Math.asin(Math.sqrt(a));
+    }
+}
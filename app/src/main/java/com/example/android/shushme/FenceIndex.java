@@ -0,0 +1,308 @@
+package com.example.android.shushme;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Read-only index from geofence request ID to the place's name, flags and radius,
+ * memory-mapped from a file so GeofenceBroadcastReceiver can name the place that
+ * triggered without opening the database. A lookup is a binary search over the
+ * mapped entries and only creates the name String it returns.
+ *
+ * The file is written whenever the places or their schedules change. It is written
+ * to a temporary file and renamed over the old one, so readers see either the old
+ * or the new index, never a partly written one.
+ *
+ * File layout: a HEADER_SIZE byte header, count entries of ENTRY_SIZE bytes sorted by
+ * fence ID, then the strings. Header: magic, version, entry count.
+ * Entry: fence ID offset and length, name offset and length, radius, flags.
+ * Fence IDs are stored as ASCII bytes, names as UTF-16 chars.
+ */
+public class FenceIndex {
+
+    public static final String TAG = FenceIndex.class.getSimpleName();
+
+    // the place has a quiet schedule, so it only silences the phone during its windows
+    public static final int FLAG_HAS_SCHEDULE = 1;
+
+    private static final String FILE_NAME = "fence_index.bin";
+    private static final String TEMP_FILE_NAME = "fence_index.bin.tmp";
+
+    private static final int MAGIC = 0x53484649; // "SHFI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int ENTRY_SIZE = 20;
+
+    // header field offsets
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_COUNT = 8;
+
+    // entry field offsets
+    private static final int ENTRY_ID_OFFSET = 0;
+    private static final int ENTRY_ID_LENGTH = 4;
+    private static final int ENTRY_NAME_LENGTH = 6;
+    private static final int ENTRY_NAME_OFFSET = 8;
+    private static final int ENTRY_RADIUS = 12;
+    private static final int ENTRY_FLAGS = 16;
+
+    private static FenceIndex sInstance;
+    // version of the PlaceStore snapshot last written, to skip rewriting the same places
+    private static long sWrittenVersion = -1;
+
+    private final ByteBuffer buffer;
+    private final int count;
+
+    private FenceIndex(ByteBuffer buffer)
+    {
+        this.buffer = buffer;
+        this.count = buffer.getInt(OFFSET_COUNT);
+    }
+
+    /**
+     * Maps the index on first use. Returns null if it hasn't been written yet or can't be read,
+     * callers should fall back to not naming the place.
+     */
+    public static synchronized FenceIndex getInstance(Context context)
+    {
+        if (sInstance == null) {
+            File file = new File(context.getApplicationContext().getFilesDir(), FILE_NAME);
+            if (!file.exists()) {
+                return null;
+            }
+            try {
+                sInstance = open(file);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not map fence index: " + e.getMessage());
+            }
+        }
+        return sInstance;
+    }
+
+    static FenceIndex open(File file) throws IOException
+    {
+        // the mapping stays valid after the channel is closed, and after the file is replaced
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.capacity() < HEADER_SIZE
+                    || buffer.getInt(OFFSET_MAGIC) != MAGIC
+                    || buffer.getInt(OFFSET_VERSION) != VERSION) {
+                throw new IOException("Not a fence index");
+            }
+            return new FenceIndex(buffer);
+        }
+    }
+
+    /**
+     * Writes the index for the places in the snapshot, unless it was already written for this version.
+     * Loads the quiet schedules, so don't call on the main thread.
+     */
+    public static void writeIfChanged(Context context, PlaceStore.Snapshot snapshot)
+    {
+        synchronized (FenceIndex.class) {
+            if (snapshot.version == sWrittenVersion) {
+                return;
+            }
+        }
+        write(context, snapshot);
+    }
+
+    /**
+     * Writes the index for the places in the snapshot and drops the old mapping.
+     * Use this when the schedules changed. Don't call on the main thread.
+     */
+    public static void write(Context context, PlaceStore.Snapshot snapshot)
+    {
+        write(context, snapshot.table, snapshot.version);
+    }
+
+    /**
+     * Rewrites the index with some fences renamed, after their Place IDs were refreshed
+     * in the places table. Names and radii are kept, the flags are read from the schedules again,
+     * so invalidate QuietSchedules first. Don't call on the main thread.
+     *
+     * @param newIds the new fence ID of each renamed fence, by its old ID
+     */
+    public static void renameFences(Context context, Map<String, String> newIds)
+    {
+        FenceIndex index = getInstance(context);
+        if (index == null) {
+            return;
+        }
+        PlaceTable.Builder builder = new PlaceTable.Builder(index.size());
+        for (int entry = 0; entry < index.size(); entry++) {
+            String fenceId = index.getFenceId(entry);
+            String newId = newIds.get(fenceId);
+            builder.add(newId != null ? newId : fenceId, index.getName(entry), null,
+                    Double.NaN, Double.NaN, index.getRadius(entry));
+        }
+        // no snapshot has the new IDs yet, so the next writeIfChanged writes again
+        write(context, builder.build(), -1);
+    }
+
+    private static void write(Context context, PlaceTable table, long version)
+    {
+        Tracing.beginSection("FenceIndex.write");
+        try {
+            Context appContext = context.getApplicationContext();
+            ByteBuffer contents = build(table, QuietSchedules.getInstance(appContext));
+            File directory = appContext.getFilesDir();
+            File tempFile = new File(directory, TEMP_FILE_NAME);
+            try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+                outputStream.write(contents.array(), 0, contents.limit());
+                // make sure the data is on disk before the rename makes it visible
+                outputStream.getFD().sync();
+            }
+            if (!tempFile.renameTo(new File(directory, FILE_NAME))) {
+                throw new IOException("Could not replace " + FILE_NAME);
+            }
+            synchronized (FenceIndex.class) {
+                sInstance = null;
+                sWrittenVersion = version;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write fence index: " + e.getMessage());
+        } finally {
+            Tracing.endSection();
+        }
+    }
+
+    // Lays out the whole file in memory, entries sorted by fence ID
+    private static ByteBuffer build(PlaceTable table, QuietSchedules schedules)
+    {
+        int count = table.size();
+        String[] fenceIds = new String[count];
+        int stringBytes = 0;
+        for (int row = 0; row < count; row++) {
+            fenceIds[row] = table.getId(row);
+            stringBytes += table.getLength(row, PlaceTable.ID) + 2 * table.getLength(row, PlaceTable.NAME);
+        }
+        Arrays.sort(fenceIds);
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + count * ENTRY_SIZE + stringBytes);
+        buffer.putInt(OFFSET_MAGIC, MAGIC);
+        buffer.putInt(OFFSET_VERSION, VERSION);
+        buffer.putInt(OFFSET_COUNT, count);
+
+        char[] chars = table.getChars();
+        int stringPosition = HEADER_SIZE + count * ENTRY_SIZE;
+        for (int i = 0; i < count; i++) {
+            int row = table.indexOf(fenceIds[i]);
+            int entry = HEADER_SIZE + i * ENTRY_SIZE;
+
+            int idStart = table.getStart(row, PlaceTable.ID);
+            int idLength = table.getLength(row, PlaceTable.ID);
+            buffer.putInt(entry + ENTRY_ID_OFFSET, stringPosition);
+            buffer.putShort(entry + ENTRY_ID_LENGTH, (short) idLength);
+            for (int c = 0; c < idLength; c++) {
+                // place IDs are ASCII
+                buffer.put(stringPosition++, (byte) chars[idStart + c]);
+            }
+
+            int nameStart = table.getStart(row, PlaceTable.NAME);
+            int nameLength = table.getLength(row, PlaceTable.NAME);
+            buffer.putInt(entry + ENTRY_NAME_OFFSET, stringPosition);
+            buffer.putShort(entry + ENTRY_NAME_LENGTH, (short) nameLength);
+            for (int c = 0; c < nameLength; c++) {
+                buffer.putChar(stringPosition, chars[nameStart + c]);
+                stringPosition += 2;
+            }
+
+            buffer.putFloat(entry + ENTRY_RADIUS, table.getRadius(row));
+            buffer.putInt(entry + ENTRY_FLAGS, schedules.hasSchedule(fenceIds[i]) ? FLAG_HAS_SCHEDULE : 0);
+        }
+        return buffer;
+    }
+
+    public int size()
+    {
+        return count;
+    }
+
+    /**
+     * Binary search for the fence ID
+     *
+     * @return the entry of the fence, or -1 if the index doesn't have it
+     */
+    public int find(String fenceId)
+    {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compareId(middle, fenceId);
+            if (comparison < 0) {
+                low = middle + 1;
+            }
+            else if (comparison > 0) {
+                high = middle - 1;
+            }
+            else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    public String getFenceId(int entry)
+    {
+        int position = HEADER_SIZE + entry * ENTRY_SIZE;
+        int offset = buffer.getInt(position + ENTRY_ID_OFFSET);
+        int length = buffer.getShort(position + ENTRY_ID_LENGTH);
+        char[] fenceId = new char[length];
+        for (int i = 0; i < length; i++) {
+            // place IDs are ASCII
+            fenceId[i] = (char) (buffer.get(offset + i) & 0xff);
+        }
+        return new String(fenceId);
+    }
+
+    public String getName(int entry)
+    {
+        int position = HEADER_SIZE + entry * ENTRY_SIZE;
+        int offset = buffer.getInt(position + ENTRY_NAME_OFFSET);
+        int length = buffer.getShort(position + ENTRY_NAME_LENGTH);
+        char[] name = new char[length];
+        for (int i = 0; i < length; i++) {
+            name[i] = buffer.getChar(offset + 2 * i);
+        }
+        return new String(name);
+    }
+
+    public float getRadius(int entry)
+    {
+        return buffer.getFloat(HEADER_SIZE + entry * ENTRY_SIZE + ENTRY_RADIUS);
+    }
+
+    public int getFlags(int entry)
+    {
+        return buffer.getInt(HEADER_SIZE + entry * ENTRY_SIZE + ENTRY_FLAGS);
+    }
+
+    // compares the fence ID of the entry to the given one, like String.compareTo
+    private int compareId(int entry, String fenceId)
+    {
+        int position = HEADER_SIZE + entry * ENTRY_SIZE;
+        int offset = buffer.getInt(position + ENTRY_ID_OFFSET);
+        int length = buffer.getShort(position + ENTRY_ID_LENGTH);
+        int common = Math.min(length, fenceId.length());
+        for (int i = 0; i < common; i++) {
+            int difference = (buffer.get(offset + i) & 0xff) - fenceId.charAt(i);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return length - fenceId.length();
+    }
+}
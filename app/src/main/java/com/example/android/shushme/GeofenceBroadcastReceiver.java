@@ -1,12 +1,11 @@
 package com.example.android.shushme;
 
-import android.app.Notification;
 import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.graphics.BitmapFactory;
+import android.location.Location;
+import android.location.LocationManager;
 import android.media.AudioManager;
 import android.os.Build;
 import android.util.Log;
@@ -14,55 +13,444 @@ import android.util.Log;
 import com.google.android.gms.location.Geofence;
 import com.google.android.gms.location.GeofencingEvent;
 
-import androidx.core.app.NotificationCompat;
-import androidx.core.app.NotificationManagerCompat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import androidx.annotation.VisibleForTesting;
 
 public class GeofenceBroadcastReceiver extends BroadcastReceiver {
 
     public static final String TAG = GeofenceBroadcastReceiver.class.getSimpleName();
 
-    // unique id for each notification
-    public static final int SHUSHME_NOTIFICATION_ID = 5;
+    // sent by LocalGeofenceEngine for fences it no longer evaluates
+    public static final String ACTION_FENCES_REMOVED = "com.example.android.shushme.action.FENCES_REMOVED";
+    public static final String EXTRA_FENCE_IDS = "fence_ids";
+    // sent by Geofencing before it adds fences, see reconcileFences
+    public static final String ACTION_RECONCILE_FENCES = "com.example.android.shushme.action.RECONCILE_FENCES";
+    public static final String EXTRA_READDED_IDS = "readded_ids";
+    // sent when geofencing is turned off, see clearTransitions
+    public static final String ACTION_CLEAR_TRANSITIONS = "com.example.android.shushme.action.CLEAR_TRANSITIONS";
+
+    /**
+     * Forgets which fences the device is inside after geofencing was turned off,
+     * they will be entered again once re-registered. If they silenced the ringer, it is restored.
+     * Handled on the transitions executor, after any transitions that arrived before.
+     */
+    public static void clearTransitions(Context context)
+    {
+        context.sendBroadcast(new Intent(context, GeofenceBroadcastReceiver.class)
+                .setAction(ACTION_CLEAR_TRANSITIONS));
+    }
+
+    /**
+     * Checks the fences the device is inside against the fences about to be registered.
+     * Places no planned fence covers are exited right away. The exits of places whose fence is
+     * added again are held back for the grace window: the initial trigger of the added fence
+     * enters them again if the device is still there, and cancels the exit.
+     * Otherwise a place left while its fence was not registered, after a reboot or after the
+     * fence expired, would keep the ringer silent forever.
+     * Send it before adding the fences, so it is handled before their initial triggers.
+     *
+     * @param plannedIds the Place IDs covered by the planned fences
+     * @param readdedIds the Place IDs covered by the fences that are about to be added
+     */
+    public static void reconcileFences(Context context, Collection<String> plannedIds,
+                                       Collection<String> readdedIds)
+    {
+        context.sendBroadcast(new Intent(context, GeofenceBroadcastReceiver.class)
+                .setAction(ACTION_RECONCILE_FENCES)
+                .putStringArrayListExtra(EXTRA_FENCE_IDS, new ArrayList<>(plannedIds))
+                .putStringArrayListExtra(EXTRA_READDED_IDS, new ArrayList<>(readdedIds)));
+    }
 
     /***
-     * Handles the Broadcast message sent when the Geofence Transition is triggered
-     * Careful here though, this is running on the main thread so make sure you start an AsyncTask for
-     * anything that takes longer than say 10 seconds to run
+     * Handles the Broadcast message sent when the Geofence Transition is triggered,
+     * the alarm that confirms exits held back by TransitionHysteresis,
+     * the alarm that posts a coalesced notification,
+     * the alarm for the start or end of a quiet schedule window,
+     * fences the local engine stopped evaluating, fences about to be registered again,
+     * geofencing being turned off,
+     * and the location updates of the LocalGeofenceEngine
+     * This runs on the main thread, so the transition is handed to a background executor
+     * and goAsync keeps the broadcast alive until it has been handled
      *
      * @param context
      * @param intent
      */
     @Override
     public void onReceive(Context context, Intent intent) {
+        Tracing.beginSection("GeofenceBroadcastReceiver.onReceive");
+        final long receivedAt = System.nanoTime();
+        // covers the whole transition, from the broadcast to finishing it on the executor
+        final int traceCookie = Tracing.beginAsyncSection("transition");
+        final PendingResult pendingResult = goAsync();
+        final Context appContext = context.getApplicationContext();
+        AppExecutors.getInstance().transitions().execute(() -> {
+            Tracing.beginSection("GeofenceBroadcastReceiver.handleTransition");
+            try {
+                if (TransitionHysteresis.ACTION_CONFIRM_EXITS.equals(intent.getAction())) {
+                    handleConfirmedExits(appContext, receivedAt);
+                }
+                else if (TransitionNotifier.ACTION_FLUSH.equals(intent.getAction())) {
+                    TransitionNotifier.getInstance(appContext).flush(intent);
+                }
+                else if (QuietSchedules.ACTION_APPLY_SCHEDULES.equals(intent.getAction())) {
+                    handleScheduleBoundary(appContext, receivedAt);
+                }
+                else if (ACTION_FENCES_REMOVED.equals(intent.getAction())) {
+                    handleRemovedFences(appContext, intent, receivedAt);
+                }
+                else if (ACTION_RECONCILE_FENCES.equals(intent.getAction())) {
+                    handleReconciledFences(appContext, intent, receivedAt);
+                }
+                else if (ACTION_CLEAR_TRANSITIONS.equals(intent.getAction())) {
+                    handleClearedTransitions(appContext, receivedAt);
+                }
+                else if (LocalGeofenceEngine.ACTION_LOCATION_UPDATE.equals(intent.getAction())) {
+                    handleLocalLocation(appContext, intent, receivedAt);
+                }
+                else {
+                    handleTransition(appContext, intent, receivedAt);
+                }
+            } finally {
+                Tracing.endSection();
+                Tracing.endAsyncSection("transition", traceCookie);
+                pendingResult.finish();
+            }
+        });
+        Tracing.endSection();
+    }
 
+    /**
+     * Reads the GeofencingEvent from the broadcast and handles it.
+     * Runs on the transitions executor.
+     *
+     * @param context    The application context
+     * @param intent     The Intent the broadcast was sent with
+     * @param receivedAt System.nanoTime() when onReceive was called, to measure the handling latency
+     */
+    private void handleTransition(Context context, Intent intent, long receivedAt)
+    {
+        // only geofence transitions from Google Play services, not alarms or local location updates
+        Metrics.counter(Metrics.TRANSITIONS).increment();
         // Get the Geofence Event from the Intent sent through
         GeofencingEvent geofencingEvent = GeofencingEvent.fromIntent(intent);
         if (geofencingEvent.hasError()) {
             Log.e(TAG, String.format("Error code : %d", geofencingEvent.getErrorCode()));
+            TransitionLog transitionLog = TransitionLog.getInstance(context);
+            if (transitionLog != null) {
+                transitionLog.append(System.currentTimeMillis(), null, 0,
+                        TransitionLog.RINGER_ACTION_NONE, latencySince(receivedAt),
+                        geofencingEvent.getErrorCode());
+            }
             return;
         }
 
-        // Get the transition type
+        List<Geofence> triggeringGeofences = geofencingEvent.getTriggeringGeofences();
+        List<String> fenceIds = new ArrayList<>();
+        if (triggeringGeofences != null) {
+            for (Geofence geofence : triggeringGeofences) {
+                fenceIds.add(geofence.getRequestId());
+            }
+        }
+        // a cluster fence stands for all the places it covers
+        fenceIds = new FenceClusters(context).expand(fenceIds);
+
         int geofenceTransition = geofencingEvent.getGeofenceTransition();
-        // Check which transition type has triggered this event
+        if (geofenceTransition == Geofence.GEOFENCE_TRANSITION_DWELL)
+        {
+            // the power saver profile registers DWELL instead of ENTER, it means the same here
+            geofenceTransition = Geofence.GEOFENCE_TRANSITION_ENTER;
+        }
+        handleGeofenceTransition(context, geofenceTransition, fenceIds,
+                geofencingEvent.getTriggeringLocation(), receivedAt);
+        // the battery broadcasts don't reach the app while it isn't running,
+        // so check whether the power profile should change while it is awake anyway
+        PowerProfileReceiver.checkProfile(context);
+    }
+
+    /**
+     * Filters a geofence transition through TransitionHysteresis and applies what is left.
+     * Runs on the transitions executor.
+     *
+     * @param context            The application context
+     * @param geofenceTransition The transition type
+     * @param fenceIds           The request IDs of the triggering geofences
+     * @param triggeringLocation The location that triggered the transition, may be null
+     * @param receivedAt         System.nanoTime() when the transition was received
+     */
+    @VisibleForTesting
+    void handleGeofenceTransition(Context context, int geofenceTransition, List<String> fenceIds,
+                                  Location triggeringLocation, long receivedAt)
+    {
+        // Check the transition type
+        if (geofenceTransition != Geofence.GEOFENCE_TRANSITION_ENTER &&
+                geofenceTransition != Geofence.GEOFENCE_TRANSITION_EXIT)
+        {
+            // Log the error
+            Log.e(TAG, String.format("Unknown transition: %d", geofenceTransition));
+            // Do not send a notification
+            return;
+        }
+
+        TransitionLog transitionLog = TransitionLog.getInstance(context);
+        TransitionHysteresis hysteresis = new TransitionHysteresis(context);
+        // only ENTERs are dropped. A dropped EXIT is never sent again, so the phone would stay silent.
+        // A coarse EXIT is held back for the grace window below like any other.
+        if (geofenceTransition == Geofence.GEOFENCE_TRANSITION_ENTER
+                && hysteresis.rejectLowAccuracy(triggeringLocation))
+        {
+            Log.i(TAG, "Ignoring transition with a low-accuracy location, rejected so far: "
+                    + hysteresis.getRejectedLowAccuracyCount());
+            logFences(transitionLog, fenceIds, geofenceTransition,
+                    TransitionLog.RINGER_ACTION_SUPPRESSED, receivedAt);
+            return;
+        }
+
         if (geofenceTransition == Geofence.GEOFENCE_TRANSITION_ENTER)
+        {
+            // an ENTER within the grace window cancels the pending EXIT of the same fence
+            List<String> reentered = new ArrayList<>(fenceIds);
+            if (hysteresis.onEnter(fenceIds) > 0)
+            {
+                reentered.removeAll(fenceIds);
+                Log.i(TAG, "Suppressed boundary flapping, suppressed so far: "
+                        + hysteresis.getSuppressedFlapCount());
+                logFences(transitionLog, reentered, geofenceTransition,
+                        TransitionLog.RINGER_ACTION_SUPPRESSED, receivedAt);
+            }
+        }
+        else
+        {
+            // hold back the EXIT until the grace window has passed
+            List<String> held = new ArrayList<>(fenceIds);
+            fenceIds = hysteresis.onExit(fenceIds);
+            held.removeAll(fenceIds);
+            logFences(transitionLog, held, geofenceTransition,
+                    TransitionLog.RINGER_ACTION_DEFERRED, receivedAt);
+        }
+
+        applyTransition(context, geofenceTransition, fenceIds, transitionLog, receivedAt);
+    }
+
+    /**
+     * Applies the exits whose grace window passed without a matching ENTER.
+     * Runs on the transitions executor.
+     */
+    private void handleConfirmedExits(Context context, long receivedAt)
+    {
+        List<String> fenceIds = new TransitionHysteresis(context).takeConfirmedExits();
+        applyTransition(context, Geofence.GEOFENCE_TRANSITION_EXIT, fenceIds,
+                TransitionLog.getInstance(context), receivedAt);
+    }
+
+    /**
+     * Checks a location update against the LocalGeofenceEngine and handles the fences
+     * entered or left like transitions from Google Play services.
+     * Runs on the transitions executor.
+     */
+    private void handleLocalLocation(Context context, Intent intent, long receivedAt)
+    {
+        Location location = intent.getParcelableExtra(LocationManager.KEY_LOCATION_CHANGED);
+        // passive updates include coarse locations from other apps. Skip them without
+        // counting them as rejected transitions, and keep the fences as they were.
+        if (location == null || !new TransitionHysteresis(context).isAccurateEnough(location))
+        {
+            return;
+        }
+        List<String> entered = new ArrayList<>();
+        List<String> exited = new ArrayList<>();
+        new LocalGeofenceEngine(context).evaluate(location, entered, exited);
+        if (!exited.isEmpty())
+        {
+            handleGeofenceTransition(context, Geofence.GEOFENCE_TRANSITION_EXIT, exited, location, receivedAt);
+        }
+        if (!entered.isEmpty())
+        {
+            handleGeofenceTransition(context, Geofence.GEOFENCE_TRANSITION_ENTER, entered, location, receivedAt);
+        }
+    }
+
+    /**
+     * Applies an EXIT for fences that were removed while the device may have been inside them.
+     * They are gone for good, so there is no grace window. Runs on the transitions executor.
+     */
+    private void handleRemovedFences(Context context, Intent intent, long receivedAt)
+    {
+        List<String> fenceIds = intent.getStringArrayListExtra(EXTRA_FENCE_IDS);
+        if (fenceIds == null)
+        {
+            return;
+        }
+        applyTransition(context, Geofence.GEOFENCE_TRANSITION_EXIT, fenceIds,
+                TransitionLog.getInstance(context), receivedAt);
+    }
+
+    /**
+     * Exits the places the device is inside that no planned fence covers, and holds back
+     * the exits of the places whose fence is added again, see reconcileFences.
+     * Runs on the transitions executor.
+     */
+    private void handleReconciledFences(Context context, Intent intent, long receivedAt)
+    {
+        List<String> plannedIds = intent.getStringArrayListExtra(EXTRA_FENCE_IDS);
+        List<String> readdedIds = intent.getStringArrayListExtra(EXTRA_READDED_IDS);
+        if (plannedIds == null || readdedIds == null)
+        {
+            return;
+        }
+        Set<String> planned = new HashSet<>(plannedIds);
+        Set<String> readded = new HashSet<>(readdedIds);
+        List<String> staleIds = new ArrayList<>();
+        List<String> heldIds = new ArrayList<>();
+        for (String fenceId : new TransitionEngine(context).getInsideFences()) {
+            if (!planned.contains(fenceId)) {
+                staleIds.add(fenceId);
+            }
+            else if (readded.contains(fenceId)) {
+                heldIds.add(fenceId);
+            }
+        }
+        // no fence covers these anymore, so Google Play services will never send their EXIT
+        applyTransition(context, Geofence.GEOFENCE_TRANSITION_EXIT, staleIds,
+                TransitionLog.getInstance(context), receivedAt);
+        if (!heldIds.isEmpty())
+        {
+            // goes through the grace window like an EXIT from Google Play services
+            handleGeofenceTransition(context, Geofence.GEOFENCE_TRANSITION_EXIT, heldIds, null, receivedAt);
+        }
+    }
+
+    /**
+     * Forgets the fences the device is inside and the pending exits, and restores the ringer
+     * if they silenced it. Runs on the transitions executor.
+     */
+    private void handleClearedTransitions(Context context, long receivedAt)
+    {
+        TransitionEngine transitionEngine = new TransitionEngine(context);
+        int edge = transitionEngine.clear();
+        new TransitionHysteresis(context).clear();
+        // no fences left to apply schedule windows to
+        QuietSchedules.getInstance(context).scheduleBoundaryAlarm(transitionEngine.getInsideFences());
+        applyEdge(context, edge, null, receivedAt);
+    }
+
+    /**
+     * Re-applies the quiet schedules when a window starts or ends while the device
+     * stays inside a fence. Runs on the transitions executor.
+     */
+    private void handleScheduleBoundary(Context context, long receivedAt)
+    {
+        QuietSchedules schedules = QuietSchedules.getInstance(context);
+        TransitionEngine transitionEngine = new TransitionEngine(context);
+        int edge = transitionEngine.reevaluate(schedules,
+                QuietSchedule.minuteOfWeek(Calendar.getInstance()));
+        schedules.scheduleBoundaryAlarm(transitionEngine.getInsideFences());
+        applyEdge(context, edge, null, receivedAt);
+    }
+
+    /**
+     * Updates the per-fence state with the given fences and changes the ringer
+     * only when the device enters its first active fence or leaves its last one.
+     * A fence is only active while its place is in a quiet window.
+     */
+    private void applyTransition(Context context, int geofenceTransition, List<String> fenceIds,
+                                 TransitionLog transitionLog, long receivedAt)
+    {
+        if (fenceIds.isEmpty())
+        {
+            return;
+        }
+
+        // Check whether the number of active fences the device is inside crossed zero
+        QuietSchedules schedules = QuietSchedules.getInstance(context);
+        TransitionEngine transitionEngine = new TransitionEngine(context);
+        int edge = transitionEngine.apply(geofenceTransition, fenceIds, schedules,
+                QuietSchedule.minuteOfWeek(Calendar.getInstance()));
+        // keep an alarm for the next schedule change of the fences the device is still inside
+        schedules.scheduleBoundaryAlarm(transitionEngine.getInsideFences());
+
+        int ringerAction = applyEdge(context, edge, fenceIds, receivedAt);
+        logFences(transitionLog, fenceIds, geofenceTransition, ringerAction, receivedAt);
+    }
+
+    /**
+     * Changes the ringer and posts the notification for an edge reported by TransitionEngine
+     *
+     * @param fenceIds the fences that caused the edge, used to name the place.
+     *                 null if a schedule window caused it.
+     * @return the TransitionLog ringer action that was taken
+     */
+    private int applyEdge(Context context, int edge, List<String> fenceIds, long receivedAt)
+    {
+        if (edge == TransitionEngine.EDGE_SILENCE)
         {
             setRingerMode(context, AudioManager.RINGER_MODE_SILENT);
+            recordRingerChange(receivedAt);
+            // Send the notification, coalesced with any other recent transitions
+            notifyTransition(context, Geofence.GEOFENCE_TRANSITION_ENTER, fenceIds);
+            return TransitionLog.RINGER_ACTION_SILENT;
         }
-        else if (geofenceTransition == Geofence.GEOFENCE_TRANSITION_EXIT)
+        else if (edge == TransitionEngine.EDGE_RESTORE)
         {
             setRingerMode(context, AudioManager.RINGER_MODE_NORMAL);
+            recordRingerChange(receivedAt);
+            notifyTransition(context, Geofence.GEOFENCE_TRANSITION_EXIT, fenceIds);
+            return TransitionLog.RINGER_ACTION_NORMAL;
         }
-        else
+        // still inside another fence, or a repeated transition. Nothing changed.
+        return TransitionLog.RINGER_ACTION_NONE;
+    }
+
+    // Posts the notification, named after the first of the fences found in the FenceIndex
+    private static void notifyTransition(Context context, int transition, List<String> fenceIds)
+    {
+        String placeName = null;
+        int flags = 0;
+        FenceIndex fenceIndex = fenceIds == null ? null : FenceIndex.getInstance(context);
+        if (fenceIndex != null)
         {
-            // Log the error
-            Log.e(TAG, String.format("Unknown transition: %d", geofenceTransition));
-            // Do not send a notification
+            for (int i = 0; i < fenceIds.size() && placeName == null; i++)
+            {
+                int entry = fenceIndex.find(fenceIds.get(i));
+                if (entry >= 0)
+                {
+                    placeName = fenceIndex.getName(entry);
+                    flags = fenceIndex.getFlags(entry);
+                }
+            }
+        }
+        TransitionNotifier.getInstance(context).notifyTransition(transition, placeName, flags);
+    }
+
+    // Appends one record per fence to the transition log, if it could be opened
+    private static void logFences(TransitionLog transitionLog, List<String> fenceIds,
+                                  int geofenceTransition, int ringerAction, long receivedAt)
+    {
+        if (transitionLog == null) {
             return;
         }
+        long now = System.currentTimeMillis();
+        int latency = latencySince(receivedAt);
+        for (int i = 0; i < fenceIds.size(); i++) {
+            transitionLog.append(now, fenceIds.get(i), geofenceTransition, ringerAction, latency, 0);
+        }
+    }
 
-        // Send the notification
-        sendNotification(context, geofenceTransition);
+    // milliseconds since onReceive was called
+    private static int latencySince(long receivedAt)
+    {
+        return (int) ((System.nanoTime() - receivedAt) / 1000000);
+    }
+
+    private static void recordRingerChange(long receivedAt)
+    {
+        Metrics.counter(Metrics.RINGER_CHANGES).increment();
+        Metrics.recordSince(Metrics.TRANSITION_LATENCY, receivedAt);
     }
 
     /**
@@ -90,65 +478,4 @@ public class GeofenceBroadcastReceiver extends BroadcastReceiver {
             }
         }
     }
-
-    /**
-     * Posts a notification in the notification bar when a transition is detected
-     * Uses different icon drawables for different transition types
-     * If the user clicks the notification, control goes to the MainActivity
-     *
-     * @param context        The calling context for building a task stack
-     * @param transitionType The geofence transition type, can be Geofence.GEOFENCE_TRANSITION_ENTER
-     *                       or Geofence.GEOFENCE_TRANSITION_EXIT
-     */
-    private void sendNotification(Context context, int transitionType)
-    {
-        // Create an explicit Intent that starts the main Activity
-        Intent intent = new Intent(context, MainActivity.class);
-        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
-        // Get a PendingIntent
-        PendingIntent pendingIntent = PendingIntent.getActivity(context, 0, intent, 0);
-
-        // Get a notification builder
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(context, MainActivity.SHUSHME_NOTIFICATION_CHANNEL)
-                .setPriority(NotificationCompat.PRIORITY_DEFAULT)
-                // Set the intent that will fire when the user taps the notification
-                .setContentIntent(pendingIntent)
-                // Dismiss notification once the user touches it.
-                .setAutoCancel(true);
-
-        // Check the transition type to display the relevant icon image
-        if (transitionType == Geofence.GEOFENCE_TRANSITION_ENTER)
-        {
-            builder.setSmallIcon(R.drawable.ic_volume_off_white_24dp)
-                    .setLargeIcon(BitmapFactory.decodeResource(context.getResources(),
-                            R.drawable.ic_volume_off_white_24dp))
-                    .setContentTitle(context.getString(R.string.silent_mode_activated));
-                    //.setContentText(context.getString(R.string.silent_mode_description));
-        }
-        else if (transitionType == Geofence.GEOFENCE_TRANSITION_EXIT)
-        {
-            builder.setSmallIcon(R.drawable.ic_volume_up_white_24dp)
-                    .setLargeIcon(BitmapFactory.decodeResource(context.getResources(),
-                            R.drawable.ic_volume_up_white_24dp))
-                    .setContentTitle(context.getString(R.string.back_to_normal));
-                    //.setContentText(context.getString(R.string.normal_mode_description));
-        }
-
-        // Continue building the notification
-        builder.setContentText(context.getString(R.string.touch_to_relaunch));
-
-        // for backwards compatibility.
-        // make sure notification is displayed and makes a sound on older devices
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
-                && Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
-            builder.setPriority(NotificationCompat.PRIORITY_HIGH);
-            builder.setDefaults(Notification.DEFAULT_SOUND);
-        }
-
-        // Get an instance of the Notification manager
-        NotificationManagerCompat notificationManager = NotificationManagerCompat.from(context);
-
-        // Show the notification
-        notificationManager.notify(SHUSHME_NOTIFICATION_ID, builder.build());
-    }
 }
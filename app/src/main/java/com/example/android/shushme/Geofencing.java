@@ -3,30 +3,54 @@ package com.example.android.shushme;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.location.Location;
 import android.util.Log;
 import android.widget.Toast;
 
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.Result;
-import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.GoogleApiAvailability;
+import com.google.android.gms.common.api.ApiException;
+import com.google.android.gms.location.FusedLocationProviderClient;
 import com.google.android.gms.location.Geofence;
+import com.google.android.gms.location.GeofenceStatusCodes;
+import com.google.android.gms.location.GeofencingClient;
 import com.google.android.gms.location.GeofencingRequest;
 import com.google.android.gms.location.LocationServices;
-import com.google.android.libraries.places.api.model.Place;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-import androidx.annotation.NonNull;
-
-public class Geofencing implements ResultCallback {
+/**
+ * Registers the places as geofences with the connectionless GeofencingClient.
+ * It doesn't depend on an activity, so receivers and jobs can use it too.
+ * Every call returns a Task, so callers can chain work after it with continueWithTask
+ * or listen for the result. All instances share the same PendingIntent, so fences
+ * registered by one instance can be removed by another.
+ * Only the places of the active place set are registered, see {@link PlaceSets}.
+ * When Google Play services can't monitor them, because it is missing, location
+ * is off for it, or there are too many fences, the {@link LocalGeofenceEngine} is used instead.
+ * The fences are registered with the settings of the current {@link PowerProfile}.
+ * Places whose fences overlap share one covering fence, see {@link FenceClusters}.
+ */
+public class Geofencing {
 
     // Constants
     public static final String TAG = Geofencing.class.getSimpleName();
 
-    private static final int GEOFENCE_RADIUS_IN_METERS = 50;
+    static final int GEOFENCE_RADIUS_IN_METERS = 50;
     // the Geofence will time out 24 hours after being registered
     private static final int GEOFENCE_EXPIRATION_IN_MILLISECONDS = 24 * 60 * 60 * 1000;
+    // Google Play services allows at most 100 active geofences per app
+    private static final int MAX_PLAY_SERVICES_GEOFENCES = 100;
 
     // default latitude and longitude
     // these are used if one of the places has no specified longitude and latitude
@@ -34,137 +58,555 @@ public class Geofencing implements ResultCallback {
     public static final double DEFAULT_LONGITUDE = 0.0;
 
     private Context context;
-    private GoogleApiClient googleApiClient;
+    private GeofencingClient geofencingClient;
+    private FusedLocationProviderClient fusedLocationClient;
+    private LocalGeofenceEngine localEngine;
     private PendingIntent geofencePendingIntent;
-    private List<Geofence> geofenceList;
+    // the fences registered with Google Play services, and the places they cover
+    private FenceClusters fenceClusters;
+    // Place IDs of all places, whether their set is active or not, and their centers in the same order
+    private List<String> placeIds;
+    private double[] placeLatitudes = new double[0];
+    private double[] placeLongitudes = new double[0];
+    // version of the PlaceStore snapshot the places were taken from
+    private long placesVersion = -1;
+    // Place IDs of the active set, null when all places are active
+    private Set<String> activePlaceIds;
 
-    public Geofencing(Context context, GoogleApiClient googleApiClient)
+    public Geofencing(Context context)
     {
-        this.context = context;
-        this.googleApiClient = googleApiClient;
+        // only keep the application context, this may outlive the calling component
+        this.context = context.getApplicationContext();
+        geofencingClient = LocationServices.getGeofencingClient(this.context);
+        fusedLocationClient = LocationServices.getFusedLocationProviderClient(this.context);
+        localEngine = new LocalGeofenceEngine(this.context);
+        fenceClusters = new FenceClusters(this.context);
         geofencePendingIntent = null;
-        geofenceList = new ArrayList<>();
+        placeIds = new ArrayList<>();
     }
 
     /***
-     * Registers the list of Geofences specified in geofenceList with Google Place Services
-     * Uses {@code #mGoogleApiClient} to connect to Google Place Services
-     * Uses {@link #getGeofencingRequest} to get the list of Geofences to be registered
-     * Uses {@link #getGeofencePendingIntent} to get the pending intent to launch the IntentService
-     * when the Geofence is triggered
-     * Triggers {@link #onResult} when the geofences have been registered successfully
-     */
-    public void registerAllGeofences()
-    {
-        // Check that the API client is connected and that the list has Geofences in it
-        if (googleApiClient == null || !googleApiClient.isConnected() ||
-            geofenceList == null || geofenceList.size() == 0)
-        {
-            return;
+     * Registers the fences of the active places with Google Play services
+     * Uses {@link #getGeofencingRequest} to build the request for the Geofences to be registered
+     * Uses {@link #getGeofencePendingIntent} to get the pending intent to launch the
+     * GeofenceBroadcastReceiver when the Geofence is triggered
+     * All planned fences are sent, so this also renews fences that are registered already.
+     *
+     * @return a Task that completes when the geofences have been registered,
+     * or right away if there is nothing to register
+     */
+    public Task<Void> registerAllGeofences()
+    {
+        return registerGeofences(true);
+    }
+
+    /**
+     * Registers the fences of the active places, sending only the ones that changed.
+     * The fences expire after GEOFENCE_EXPIRATION_IN_MILLISECONDS and are gone after a reboot,
+     * so all of them are sent again once half of that passed, or the device rebooted.
+     *
+     * @return a Task that completes when the geofences have been registered,
+     * or right away if there is nothing to register
+     */
+    public Task<Void> registerChangedGeofences()
+    {
+        return registerGeofences(fenceClusters.needsRenewal(GEOFENCE_EXPIRATION_IN_MILLISECONDS / 2));
+    }
+
+    /**
+     * Plans the fences of the active places: overlapping places are clustered, and if the
+     * power profile allows fewer fences than that, only the ones nearest to the last known
+     * location are kept. Then sends the plan, see {@link #sendFences}.
+     * Without Google Play services, the local engine monitors the active places instead.
+     *
+     * @param resendUnchanged whether to add the fences that are registered already too
+     */
+    private Task<Void> registerGeofences(boolean resendUnchanged)
+    {
+        Tracing.beginSection("Geofencing.registerGeofences");
+        try {
+            if (!isPlayServicesAvailable())
+            {
+                startLocalEngine();
+                return Tasks.forResult(null);
+            }
+            PowerProfile profile = PowerProfile.getCurrent(context);
+            List<FenceClusters.Fence> fences = planFences(profile);
+            if (fences.size() > profile.maxActiveFences)
+            {
+                return registerNearest(fences, profile, resendUnchanged);
+            }
+            return sendFences(fences, profile, resendUnchanged);
+        } finally {
+            Tracing.endSection();
+        }
+    }
+
+    // Clusters the active places into the fences to register
+    private List<FenceClusters.Fence> planFences(PowerProfile profile)
+    {
+        List<String> activeIds = new ArrayList<>();
+        double[] latitudes = new double[placeIds.size()];
+        double[] longitudes = new double[placeIds.size()];
+        for (int i = 0; i < placeIds.size(); i++) {
+            if (isActive(placeIds.get(i), activePlaceIds)) {
+                latitudes[activeIds.size()] = placeLatitudes[i];
+                longitudes[activeIds.size()] = placeLongitudes[i];
+                activeIds.add(placeIds.get(i));
+            }
         }
+        List<FenceClusters.Fence> fences = FenceClusters.build(activeIds, latitudes, longitudes,
+                GEOFENCE_RADIUS_IN_METERS * profile.radiusScale);
+        Metrics.gauge(Metrics.GEOFENCES_MERGED_PLACES).set(activeIds.size() - fences.size());
+        return fences;
+    }
+
+    /**
+     * Sends the profile's maxActiveFences fences nearest to the last known location.
+     * Without a location, the first ones are kept.
+     */
+    private Task<Void> registerNearest(final List<FenceClusters.Fence> fences, final PowerProfile profile,
+                                       final boolean resendUnchanged)
+    {
+        Task<Location> locationTask;
         try {
-            LocationServices.GeofencingApi.addGeofences(
-                    googleApiClient,
-                    getGeofencingRequest(),
-                    getGeofencePendingIntent()
-            ).setResultCallback(this);
+            locationTask = fusedLocationClient.getLastLocation();
         } catch (SecurityException securityException) {
-            // Catch exception generated if the app does not use ACCESS_FINE_LOCATION permission.
-            Log.e(TAG, securityException.getMessage());
+            locationTask = Tasks.forResult(null);
         }
+        return locationTask.continueWithTask((task) -> {
+            final Location location = task.isSuccessful() ? task.getResult() : null;
+            List<FenceClusters.Fence> nearest = new ArrayList<>(fences);
+            if (location != null)
+            {
+                final Map<FenceClusters.Fence, Double> distances = new HashMap<>();
+                for (FenceClusters.Fence fence : nearest) {
+                    distances.put(fence, FenceGridIndex.distance(location.getLatitude(), location.getLongitude(),
+                            fence.latitude, fence.longitude));
+                }
+                Collections.sort(nearest, (a, b) -> Double.compare(distances.get(a), distances.get(b)));
+            }
+            Metrics.counter(Metrics.GEOFENCES_DROPPED_BY_PROFILE).add(nearest.size() - profile.maxActiveFences);
+            return sendFences(nearest.subList(0, profile.maxActiveFences), profile, resendUnchanged);
+        });
     }
 
-    /***
-     * Unregisters all the Geofences created by this app from Google Place Services
-     * Uses {@code #mGoogleApiClient} to connect to Google Place Services
-     * Uses {@link #getGeofencePendingIntent} to get the pending intent passed when
-     * registering the Geofences in the first place
-     * Triggers {@link #onResult} when the geofences have been unregistered successfully
+    /**
+     * Sends the difference between the planned fences and the registered ones:
+     * one batch removes the fences that are no longer planned, then one batch adds the new
+     * and changed ones. Unchanged fences stay registered and keep their state, unless
+     * resendUnchanged. The device is treated as having left the places no fence covers anymore,
+     * so the ringer is restored if it was silenced by one of them. Places whose fence is added,
+     * including the members of a changed cluster, are exited unless its initial trigger enters
+     * them again, see {@link GeofenceBroadcastReceiver#reconcileFences}.
+     * The registered fences are only saved once each batch succeeded.
+     * If there are still more fences than Google Play services takes, the local engine
+     * monitors the active places instead.
      */
-    public void unregisterAllGeofences()
+    private Task<Void> sendFences(List<FenceClusters.Fence> fences, PowerProfile profile, boolean resendUnchanged)
     {
-        if (googleApiClient == null || !googleApiClient.isConnected())
+        if (fences.size() > MAX_PLAY_SERVICES_GEOFENCES)
         {
-            return;
+            startLocalEngine();
+            return Tasks.forResult(null);
+        }
+        Metrics.gauge(Metrics.GEOFENCE_COUNT).set(fences.size());
+        Map<String, String> registered = fenceClusters.getRegisteredSignatures();
+        Set<String> plannedIds = new HashSet<>();
+        Set<String> plannedPlaceIds = new HashSet<>();
+        Set<String> readdedPlaceIds = new HashSet<>();
+        List<FenceClusters.Fence> addedFences = new ArrayList<>();
+        for (FenceClusters.Fence fence : fences) {
+            plannedIds.add(fence.id);
+            plannedPlaceIds.addAll(fence.placeIds);
+            if (resendUnchanged || !fence.signature(profile).equals(registered.get(fence.id))) {
+                addedFences.add(fence);
+                readdedPlaceIds.addAll(fence.placeIds);
+            }
+        }
+
+        List<String> removedIds = new ArrayList<>();
+        for (String fenceId : registered.keySet()) {
+            if (!plannedIds.contains(fenceId)) {
+                removedIds.add(fenceId);
+            }
+        }
+        if (!fenceClusters.isSaved())
+        {
+            // older versions registered one fence per place without saving them
+            for (String placeId : placeIds) {
+                if (!plannedIds.contains(placeId)) {
+                    removedIds.add(placeId);
+                }
+            }
+        }
+
+        // the signatures are only saved once Google Play services accepted the fences
+        fenceClusters.setAdding(addedFences);
+        // exits the places of removed fences, and holds the exits of the places of added ones,
+        // which also covers the members of a removed or changed cluster.
+        // Handled before the initial triggers of the added fences.
+        GeofenceBroadcastReceiver.reconcileFences(context, plannedPlaceIds, readdedPlaceIds);
+        return removeThenAdd(removedIds, addedFences, profile, resendUnchanged);
+    }
+
+    /**
+     * Makes another place set active.
+     * Only the difference is sent to Google Play services: one batch removes the fences
+     * of places that are no longer active, then one batch adds the newly active ones.
+     * Fences of places in both sets stay registered and keep their state,
+     * unless their cluster changed.
+     * The device is treated as having left the removed places, so the ringer is restored
+     * if it was silenced by one of them.
+     *
+     * @param placeIds     the Place IDs of the new active set, null to make all places active
+     * @param isRegistered whether the geofences are registered right now. If not,
+     *                     only the active places change and nothing is sent.
+     * @return a Task that completes when both batches have completed
+     */
+    public Task<Void> swapActivePlaces(Set<String> placeIds, boolean isRegistered)
+    {
+        activePlaceIds = placeIds == null ? null : new HashSet<>(placeIds);
+        if (!isRegistered)
+        {
+            return Tasks.forResult(null);
+        }
+        if (localEngine.isRunning())
+        {
+            // the local engine exits the removed fences itself
+            localEngine.start(activePlaceIds);
+            return Tasks.forResult(null);
+        }
+        return registerGeofences(false);
+    }
+
+    /**
+     * Registers the fences again after places changed in the places table,
+     * for example after the maintenance job refreshed their Place IDs or coordinates.
+     * Only the fences that changed are sent, fences of old Place IDs are removed and exited.
+     * Reads the places table, so don't call on the main thread.
+     *
+     * @param placeIds the Place IDs of the active set, null when all places are active
+     * @return a Task that completes when the fences have been replaced
+     */
+    public Task<Void> refreshGeofences(Set<String> placeIds)
+    {
+        activePlaceIds = placeIds == null ? null : new HashSet<>(placeIds);
+        if (localEngine.isRunning())
+        {
+            // the engine reads the coordinates from the places table, which already has the new ones
+            LocalGeofenceEngine.invalidate();
+            localEngine.start(activePlaceIds);
+            return Tasks.forResult(null);
+        }
+        loadGeofencesList();
+        return registerGeofences(false);
+    }
+
+    /**
+     * Forgets deleted places. Only the fences of these places are removed from
+     * Google Play services, by their request IDs, and a cluster they were in is registered
+     * again without them. Other fences stay registered and keep their state.
+     * The device is treated as having left the deleted places, so the ringer is restored
+     * if it was silenced by one of them.
+     *
+     * @param removedIds   the Place IDs of the deleted places
+     * @param isRegistered whether the geofences are registered right now. If not,
+     *                     only the places change and nothing is sent.
+     * @return a Task that completes when the fences have been removed
+     */
+    public Task<Void> removePlaces(Collection<String> removedIds, boolean isRegistered)
+    {
+        Set<String> removed = new HashSet<>(removedIds);
+        List<String> keptIds = new ArrayList<>(placeIds.size());
+        double[] keptLatitudes = new double[placeIds.size()];
+        double[] keptLongitudes = new double[placeIds.size()];
+        for (int i = 0; i < placeIds.size(); i++) {
+            if (!removed.contains(placeIds.get(i))) {
+                keptLatitudes[keptIds.size()] = placeLatitudes[i];
+                keptLongitudes[keptIds.size()] = placeLongitudes[i];
+                keptIds.add(placeIds.get(i));
+            }
+        }
+        placeIds = keptIds;
+        placeLatitudes = Arrays.copyOf(keptLatitudes, keptIds.size());
+        placeLongitudes = Arrays.copyOf(keptLongitudes, keptIds.size());
+        if (activePlaceIds != null)
+        {
+            activePlaceIds.removeAll(removed);
+        }
+
+        if (!isRegistered)
+        {
+            return Tasks.forResult(null);
+        }
+        if (localEngine.isRunning())
+        {
+            // the engine exits the deleted places itself once it reads the places table again
+            LocalGeofenceEngine.invalidate();
+            localEngine.start(activePlaceIds);
+            return Tasks.forResult(null);
+        }
+        return registerGeofences(false);
+    }
+
+    /**
+     * Removes fences in one batch, then adds fences in one batch.
+     * Fences that failed to be removed stay saved, so they are removed next time.
+     *
+     * @return a Task that completes when both batches have completed
+     */
+    private Task<Void> removeThenAdd(final List<String> removedIds, final List<FenceClusters.Fence> addedFences,
+                                     final PowerProfile profile, final boolean isRenewal)
+    {
+        Task<Void> removeTask;
+        if (removedIds.isEmpty())
+        {
+            removeTask = Tasks.forResult(null);
+        }
+        else
+        {
+            removeTask = geofencingClient.removeGeofences(removedIds)
+                    .addOnSuccessListener((result) -> fenceClusters.forget(removedIds))
+                    .addOnFailureListener((exception) ->
+                            Log.e(TAG, "Could not remove geofences: " + exception));
+        }
+        // add the new fences even if removing the old ones failed
+        return removeTask.continueWithTask((task) -> addGeofences(addedFences, profile, isRenewal));
+    }
+
+    // the ID is active if there is no set filter or it is in the set
+    private static boolean isActive(String placeId, Set<String> activePlaceIds)
+    {
+        return activePlaceIds == null || activePlaceIds.contains(placeId);
+    }
+
+    /**
+     * Adds one batch of geofences, recording how long it took.
+     * Their signatures are saved once Google Play services accepted them.
+     *
+     * @return a Task that completes when the geofences have been added,
+     * or right away if there is nothing to add
+     */
+    private Task<Void> addGeofences(final List<FenceClusters.Fence> fences, final PowerProfile profile,
+                                    final boolean isRenewal)
+    {
+        // Check that the list has Geofences in it
+        if (fences.size() == 0)
+        {
+            return Tasks.forResult(null);
+        }
+        List<Geofence> geofences = new ArrayList<>(fences.size());
+        for (FenceClusters.Fence fence : fences) {
+            geofences.add(buildGeofence(fence, profile));
         }
         try {
-            LocationServices.GeofencingApi.removeGeofences(
-                    googleApiClient,
-                    // This is the same pending intent that was used in registerAllGeofences
-                    getGeofencePendingIntent()
-            );
+            final long registerStartNanos = System.nanoTime();
+            // covers the time from addGeofences to its result
+            final int registerTraceCookie = Tracing.beginAsyncSection("addGeofences");
+            return geofencingClient.addGeofences(getGeofencingRequest(geofences), getGeofencePendingIntent())
+                    .addOnCompleteListener((task) -> {
+                        Tracing.endAsyncSection("addGeofences", registerTraceCookie);
+                        Metrics.recordSince(Metrics.GEOFENCE_REGISTER_LATENCY, registerStartNanos);
+                        if (task.isSuccessful()) {
+                            Log.i(TAG, "Geofences added");
+                            fenceClusters.setRegistered(fences, profile);
+                            if (isRenewal) {
+                                fenceClusters.setRenewed();
+                            }
+                            StartupTracer.mark(StartupTracer.FENCES_REGISTERED);
+                            // Google Play services is monitoring now. The places the engine is inside
+                            // were reconciled before the add, so they aren't exited here.
+                            localEngine.handOver();
+                        }
+                        else {
+                            Log.e(TAG, "Could not add geofences: " + task.getException());
+                            Metrics.counter(Metrics.GEOFENCE_REGISTER_FAILURES).increment();
+                            if (needsLocalEngine(task.getException())) {
+                                startLocalEngine();
+                            }
+                        }
+                    });
         } catch (SecurityException securityException) {
             // Catch exception generated if the app does not use ACCESS_FINE_LOCATION permission.
             Log.e(TAG, securityException.getMessage());
+            Metrics.counter(Metrics.GEOFENCE_REGISTER_FAILURES).increment();
+            return Tasks.forException(securityException);
+        }
+    }
+
+    /**
+     * Moves the monitoring of the active places to the local engine.
+     * The fences registered with Google Play services are removed first,
+     * so the same places don't get transitions from both.
+     */
+    private void startLocalEngine()
+    {
+        geofencingClient.removeGeofences(getGeofencePendingIntent())
+                .addOnFailureListener((exception) ->
+                        Log.e(TAG, "Could not remove geofences: " + exception));
+        // nothing is registered with Google Play services now, so it all has to be sent next time
+        fenceClusters.clear();
+        Metrics.gauge(Metrics.GEOFENCE_COUNT).set(0);
+        localEngine.start(activePlaceIds);
+    }
+
+    private boolean isPlayServicesAvailable()
+    {
+        return GoogleApiAvailability.getInstance().isGooglePlayServicesAvailable(context)
+                == ConnectionResult.SUCCESS;
+    }
+
+    // Failures where Google Play services can't monitor the fences, but location still works
+    private static boolean needsLocalEngine(Exception exception)
+    {
+        if (!(exception instanceof ApiException)) {
+            return false;
         }
+        int statusCode = ((ApiException) exception).getStatusCode();
+        return statusCode == GeofenceStatusCodes.GEOFENCE_NOT_AVAILABLE
+                || statusCode == GeofenceStatusCodes.GEOFENCE_TOO_MANY_GEOFENCES;
+    }
+
+    /***
+     * Unregisters all the Geofences created by this app from Google Play services
+     * and stops the local engine if it was running
+     * Uses {@link #getGeofencePendingIntent} to get the pending intent passed when
+     * registering the Geofences in the first place
+     *
+     * @return a Task that completes when the geofences have been unregistered
+     */
+    public Task<Void> unregisterAllGeofences()
+    {
+        localEngine.stop();
+        fenceClusters.clear();
+        // This is the same pending intent that was used in registerAllGeofences
+        return geofencingClient.removeGeofences(getGeofencePendingIntent())
+                .addOnCompleteListener((task) -> {
+                    if (task.isSuccessful()) {
+                        Log.i(TAG, "Geofences removed");
+                    }
+                    else {
+                        Log.e(TAG, "Could not remove geofences: " + task.getException());
+                    }
+                });
     }
 
     /**
-     * Updates the local ArrayList of Geofences using data from the passed in list
+     * Updates the local list of places using data from the passed in snapshot
      * Uses the Place ID defined by the API as the Geofence object ID
      *
-     * @param places the List result of the getPlaceById call
+     * @param snapshot the fetched places. The list is only rebuilt if the snapshot is a new version.
      */
-    public void updateGeofencesList(List<Place> places)
+    public void updateGeofencesList(PlaceStore.Snapshot snapshot)
     {
-        geofenceList = new ArrayList<>();
-        if (places == null || places.size() == 0)
+        if (snapshot.version == placesVersion)
         {
             return;
         }
-        for (Place place: places) {
-            // Read the place information from the database Cursor
-
-            // the place's unique ID
-            String placeId = place.getId();
+        placesVersion = snapshot.version;
+        PlaceTable table = snapshot.table;
+        placeIds = new ArrayList<>(table.size());
+        placeLatitudes = new double[table.size()];
+        placeLongitudes = new double[table.size()];
+        if (table.size() == 0)
+        {
+            return;
+        }
+        Tracing.beginSection("Geofencing.updateGeofencesList");
+        try {
+            // read the coordinates straight from the table's columns
+            for (int row = 0; row < table.size(); row++) {
+                // the place's unique ID
+                placeIds.add(table.getId(row));
 
-            double latitude;
-            double longitude;
-            if (place.getLatLng() == null)
-            {
-                Log.e(TAG, "No latitude and longitude for " + place.getName());
-                Toast.makeText(context, "No latitude and longitude found for " + place.getName(), Toast.LENGTH_LONG).show();
-                latitude = DEFAULT_LATITUDE;
-                longitude = DEFAULT_LONGITUDE;
-            }
-            else
-            {
-                latitude = place.getLatLng().latitude;
-                longitude = place.getLatLng().longitude;
+                if (!table.hasLatLng(row))
+                {
+                    String placeName = table.getString(row, PlaceTable.NAME);
+                    Log.e(TAG, "No latitude and longitude for " + placeName);
+                    Toast.makeText(context, "No latitude and longitude found for " + placeName, Toast.LENGTH_LONG).show();
+                    placeLatitudes[row] = DEFAULT_LATITUDE;
+                    placeLongitudes[row] = DEFAULT_LONGITUDE;
+                }
+                else
+                {
+                    placeLatitudes[row] = table.getLatitude(row);
+                    placeLongitudes[row] = table.getLongitude(row);
+                }
             }
+        } finally {
+            Tracing.endSection();
+        }
+    }
 
-            // Build a Geofence object
-            Geofence geofence = new Geofence.Builder()
-                // Set the request ID of the geofence. This is a string to identify this
-                // geofence.
-                .setRequestId(placeId)
-                .setCircularRegion(
-                        latitude,
-                        longitude,
-                        GEOFENCE_RADIUS_IN_METERS
-                )
-                .setExpirationDuration(GEOFENCE_EXPIRATION_IN_MILLISECONDS)
-                .setTransitionTypes(Geofence.GEOFENCE_TRANSITION_ENTER |
-                        Geofence.GEOFENCE_TRANSITION_EXIT)
-                .build();
+    /**
+     * Reads the places from the coordinates cached in the places table, for callers
+     * that have no PlaceStore snapshot, like a receiver in a fresh process.
+     * Places whose coordinates were never fetched are skipped. Don't call on the main thread.
+     */
+    public void loadGeofencesList()
+    {
+        PlaceTable table = PlaceStore.loadCoordinates(context);
+        // not taken from a snapshot, so the next snapshot replaces them
+        placesVersion = -1;
+        placeIds = new ArrayList<>(table.size());
+        placeLatitudes = new double[table.size()];
+        placeLongitudes = new double[table.size()];
+        for (int row = 0; row < table.size(); row++) {
+            placeIds.add(table.getId(row));
+            placeLatitudes[row] = table.getLatitude(row);
+            placeLongitudes[row] = table.getLongitude(row);
+        }
+    }
 
-            // add the Geofence to the list
-            geofenceList.add(geofence);
+    /**
+     * Builds the Geofence of a fence
+     *
+     * @param fence   the fence of a place or a cluster, its ID is used as the Geofence request ID
+     * @param profile sets the responsiveness and whether ENTER or DWELL is reported
+     */
+    private static Geofence buildGeofence(FenceClusters.Fence fence, PowerProfile profile)
+    {
+        Geofence.Builder builder = new Geofence.Builder()
+            // Set the request ID of the geofence. This is a string to identify this
+            // geofence.
+            .setRequestId(fence.id)
+            .setCircularRegion(
+                    fence.latitude,
+                    fence.longitude,
+                    fence.radius
+            )
+            .setExpirationDuration(GEOFENCE_EXPIRATION_IN_MILLISECONDS)
+            .setNotificationResponsiveness(profile.notificationResponsivenessMs);
+        if (profile.usesDwell())
+        {
+            // GeofenceBroadcastReceiver handles DWELL like ENTER
+            builder.setTransitionTypes(Geofence.GEOFENCE_TRANSITION_DWELL |
+                    Geofence.GEOFENCE_TRANSITION_EXIT)
+                    .setLoiteringDelay(profile.loiteringDelayMs);
+        }
+        else
+        {
+            builder.setTransitionTypes(Geofence.GEOFENCE_TRANSITION_ENTER |
+                    Geofence.GEOFENCE_TRANSITION_EXIT);
         }
+        return builder.build();
     }
 
     /**
-     * Create a GeofencingRequest object using the geofenceList ArrayList of Geofences
-     * Used by {@code #registerGeofences}
+     * Create a GeofencingRequest object for a list of Geofences
+     * Used by {@code #addGeofences}
      *
      * @return the GeofencingRequest object
      */
-    private GeofencingRequest getGeofencingRequest() {
+    private GeofencingRequest getGeofencingRequest(List<Geofence> geofences) {
         GeofencingRequest.Builder builder = new GeofencingRequest.Builder();
         // if the device is already in a Geofence at the time of registering,
-        // then trigger an entry transition event immediately
-        builder.setInitialTrigger(GeofencingRequest.INITIAL_TRIGGER_ENTER);
-        builder.addGeofences(geofenceList);
+        // then trigger an entry transition event immediately, or a dwell one for DWELL fences
+        builder.setInitialTrigger(PowerProfile.getCurrent(context).usesDwell()
+                ? GeofencingRequest.INITIAL_TRIGGER_DWELL
+                : GeofencingRequest.INITIAL_TRIGGER_ENTER);
+        builder.addGeofences(geofences);
         return builder.build();
     }
 
@@ -186,10 +628,4 @@ public class Geofencing implements ResultCallback {
                 FLAG_UPDATE_CURRENT);
         return geofencePendingIntent;
     }
-
-    @Override
-    public void onResult(@NonNull Result result) {
-        Log.i(TAG, String.format("Status adding/removing geofence: %s",
-                result.getStatus().toString()));
-    }
 }
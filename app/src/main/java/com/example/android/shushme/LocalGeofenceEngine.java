@@ -0,0 +1,325 @@
+package com.example.android.shushme;
+
+import android.app.PendingIntent;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.location.LocationManager;
+import android.util.Log;
+
+import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * In-app geofencing, used when Google Play services can't register the fences:
+ * when Play services is missing, geofencing is not available, or there are more
+ * places than the platform limit.
+ *
+ * Subscribes to passive location updates, which cost nothing extra since they come
+ * from other apps, plus network location updates at an interval that depends on how far
+ * the device is from the closest fence: often when close, rarely when far from all of them.
+ * The power profile slows the sampling down and widens the fences, like it does for Play services.
+ * Each location is checked against a {@link FenceGridIndex} of the stored places, and
+ * the fences entered or left go through the same GeofenceBroadcastReceiver handling as
+ * the transitions from Play services.
+ *
+ * The fences the device is inside are kept in shared preferences, since the updates
+ * arrive in a broadcast and the process may be gone in between.
+ */
+public class LocalGeofenceEngine {
+
+    public static final String TAG = LocalGeofenceEngine.class.getSimpleName();
+
+    // location updates are delivered to GeofenceBroadcastReceiver with this action
+    public static final String ACTION_LOCATION_UPDATE = "com.example.android.shushme.action.LOCAL_LOCATION_UPDATE";
+
+    // sampling tiers, from closest to farthest. A tier applies below its distance.
+    // The intervals are at least the profile's notification responsiveness, and the
+    // minimum distances grow with its radius scale, see requestUpdates.
+    private static final float[] TIER_MAX_DISTANCE_IN_METERS = {500, 5000, Float.POSITIVE_INFINITY};
+    private static final long[] TIER_INTERVAL_IN_MILLISECONDS = {30 * 1000, 3 * 60 * 1000, 15 * 60 * 1000};
+    private static final float[] TIER_MIN_DISTANCE_IN_METERS = {0, 100, 1000};
+    // the tier used until the first location arrives
+    private static final int DEFAULT_TIER = 1;
+
+    private static final String PREFERENCES_NAME = "local_geofences";
+    private static final String KEY_RUNNING = "running";
+    private static final String KEY_ALL_PLACES = "all_places";
+    private static final String KEY_ACTIVE_IDS = "active_ids";
+    private static final String KEY_INSIDE_IDS = "inside_ids";
+    private static final String KEY_TIER = "tier";
+
+    // built from the places table on first use, see invalidate()
+    private static FenceGridIndex sIndex;
+
+    private final Context context;
+    private final SharedPreferences preferences;
+
+    public LocalGeofenceEngine(Context context)
+    {
+        this.context = context.getApplicationContext();
+        preferences = this.context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    public boolean isRunning()
+    {
+        return preferences.getBoolean(KEY_RUNNING, false);
+    }
+
+    /**
+     * Starts evaluating the given places, or switches to them if already running.
+     * Fences the device is inside that are left out of the new places are exited right away.
+     *
+     * @param activePlaceIds the places to evaluate, null for all stored places
+     */
+    public void start(Set<String> activePlaceIds)
+    {
+        SharedPreferences.Editor editor = preferences.edit()
+                .putBoolean(KEY_RUNNING, true)
+                .putBoolean(KEY_ALL_PLACES, activePlaceIds == null);
+        if (activePlaceIds != null) {
+            editor.putStringSet(KEY_ACTIVE_IDS, new HashSet<>(activePlaceIds));
+
+            Set<String> stillInside = new HashSet<>();
+            ArrayList<String> removedIds = new ArrayList<>();
+            for (String fenceId : preferences.getStringSet(KEY_INSIDE_IDS, new HashSet<String>())) {
+                if (activePlaceIds.contains(fenceId)) {
+                    stillInside.add(fenceId);
+                }
+                else {
+                    removedIds.add(fenceId);
+                }
+            }
+            if (!removedIds.isEmpty()) {
+                editor.putStringSet(KEY_INSIDE_IDS, stillInside);
+                exitFences(removedIds);
+            }
+        }
+        editor.apply();
+        invalidate();
+        requestUpdates(preferences.getInt(KEY_TIER, DEFAULT_TIER));
+        Log.i(TAG, "Local geofencing started");
+    }
+
+    /**
+     * Stops the location updates. The fences the device was inside are exited right away.
+     */
+    public void stop()
+    {
+        stop(true);
+    }
+
+    /**
+     * Stops the location updates because Google Play services monitors the fences now.
+     * The fences the device is inside are not exited, that would restore the ringer only for
+     * the initial triggers of the new fences to silence it again. Geofencing reconciled them
+     * before adding the fences: places no fence covers anymore were exited, and the others
+     * are exited unless an initial trigger enters them again.
+     */
+    public void handOver()
+    {
+        stop(false);
+    }
+
+    private void stop(boolean exitInside)
+    {
+        if (!isRunning()) {
+            return;
+        }
+        getLocationManager().removeUpdates(getLocationPendingIntent());
+        ArrayList<String> insideIds = new ArrayList<>(preferences.getStringSet(KEY_INSIDE_IDS, new HashSet<String>()));
+        preferences.edit().clear().apply();
+        if (exitInside && !insideIds.isEmpty()) {
+            exitFences(insideIds);
+        }
+        Log.i(TAG, "Local geofencing stopped");
+    }
+
+    // Lets GeofenceBroadcastReceiver apply an EXIT for fences that are no longer evaluated
+    private void exitFences(ArrayList<String> fenceIds)
+    {
+        context.sendBroadcast(new Intent(context, GeofenceBroadcastReceiver.class)
+                .setAction(GeofenceBroadcastReceiver.ACTION_FENCES_REMOVED)
+                .putStringArrayListExtra(GeofenceBroadcastReceiver.EXTRA_FENCE_IDS, fenceIds));
+    }
+
+    /**
+     * Checks a location against the fences and remembers the result.
+     * Also adjusts the sampling rate to the distance from the closest fence.
+     * Runs on the transitions executor.
+     *
+     * @param location the new location
+     * @param entered  receives the IDs of the fences entered since the last location
+     * @param exited   receives the IDs of the fences left since the last location
+     */
+    public void evaluate(Location location, List<String> entered, List<String> exited)
+    {
+        if (!isRunning()) {
+            return;
+        }
+        FenceGridIndex index = getIndex(context);
+        double latitude = location.getLatitude();
+        double longitude = location.getLongitude();
+
+        Set<String> wasInside = preferences.getStringSet(KEY_INSIDE_IDS, new HashSet<String>());
+        Set<String> isInside = new HashSet<>();
+        Set<String> activeIds = preferences.getBoolean(KEY_ALL_PLACES, true)
+                ? null : preferences.getStringSet(KEY_ACTIVE_IDS, new HashSet<String>());
+        for (String fenceId : index.findContaining(latitude, longitude)) {
+            if (activeIds == null || activeIds.contains(fenceId)) {
+                isInside.add(fenceId);
+            }
+        }
+        for (String fenceId : isInside) {
+            if (!wasInside.contains(fenceId)) {
+                entered.add(fenceId);
+            }
+        }
+        for (String fenceId : wasInside) {
+            if (!isInside.contains(fenceId)) {
+                exited.add(fenceId);
+            }
+        }
+
+        int tier = tierFor(index.nearestEdgeDistance(latitude, longitude));
+        SharedPreferences.Editor editor = preferences.edit();
+        if (!entered.isEmpty() || !exited.isEmpty()) {
+            editor.putStringSet(KEY_INSIDE_IDS, isInside);
+        }
+        if (tier != preferences.getInt(KEY_TIER, DEFAULT_TIER)) {
+            editor.putInt(KEY_TIER, tier);
+            requestUpdates(tier);
+        }
+        // called from a broadcast that may be the last thing this process does
+        editor.commit();
+    }
+
+    static int tierFor(float nearestEdgeDistance)
+    {
+        int tier = 0;
+        while (tier < TIER_MAX_DISTANCE_IN_METERS.length - 1
+                && nearestEdgeDistance >= TIER_MAX_DISTANCE_IN_METERS[tier]) {
+            tier++;
+        }
+        return tier;
+    }
+
+    // Replaces the location requests with the ones for the sampling tier and the power profile
+    private void requestUpdates(int tier)
+    {
+        PowerProfile profile = PowerProfile.getCurrent(context);
+        // a transition may be as late as the profile lets Play services report it
+        long interval = Math.max(TIER_INTERVAL_IN_MILLISECONDS[tier], profile.notificationResponsivenessMs);
+        // larger fences need fewer updates to notice the device crossed one
+        float minDistance = TIER_MIN_DISTANCE_IN_METERS[tier] * profile.radiusScale;
+        LocationManager locationManager = getLocationManager();
+        PendingIntent pendingIntent = getLocationPendingIntent();
+        try {
+            locationManager.removeUpdates(pendingIntent);
+            // free, so always ask for every passive update that is at least this far apart
+            locationManager.requestLocationUpdates(LocationManager.PASSIVE_PROVIDER,
+                    0, minDistance, pendingIntent);
+            if (locationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER)) {
+                locationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER,
+                        interval, minDistance, pendingIntent);
+            }
+            Log.i(TAG, "Sampling every " + interval / 1000 + " s");
+        } catch (SecurityException securityException) {
+            // Catch exception generated if the app does not use ACCESS_FINE_LOCATION permission.
+            Log.e(TAG, securityException.getMessage());
+        }
+    }
+
+    private LocationManager getLocationManager()
+    {
+        return (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+    }
+
+    private PendingIntent getLocationPendingIntent()
+    {
+        Intent intent = new Intent(context, GeofenceBroadcastReceiver.class)
+                .setAction(ACTION_LOCATION_UPDATE);
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Returns the index of all stored places with coordinates, building it if needed.
+     * Don't call on the main thread.
+     */
+    private static synchronized FenceGridIndex getIndex(Context context)
+    {
+        if (sIndex == null) {
+            sIndex = load(context);
+        }
+        return sIndex;
+    }
+
+    /**
+     * Drops the index, so it is built again from the places table on next use
+     */
+    public static synchronized void invalidate()
+    {
+        sIndex = null;
+    }
+
+    private static FenceGridIndex load(Context context)
+    {
+        PlaceTable table = PlaceStore.loadCoordinates(context);
+        int count = table.size();
+        String[] ids = new String[count];
+        double[] latitudes = new double[count];
+        double[] longitudes = new double[count];
+        float[] radii = new float[count];
+        // the same radius Geofencing registers with Play services. A profile switch restarts
+        // the engine, which builds the index again with the new radius.
+        float radius = Geofencing.GEOFENCE_RADIUS_IN_METERS * PowerProfile.getCurrent(context).radiusScale;
+        for (int i = 0; i < count; i++) {
+            ids[i] = table.getId(i);
+            latitudes[i] = table.getLatitude(i);
+            longitudes[i] = table.getLongitude(i);
+            radii[i] = radius;
+        }
+        return new FenceGridIndex(ids, latitudes, longitudes, radii);
+    }
+
+    /**
+     * Caches the coordinates of fetched places in the places table, for the index.
+     * Only rows whose coordinates changed are written. Don't call on the main thread.
+     *
+     * @param placeIds   the Place IDs
+     * @param latitudes  the coordinates, same order as the IDs
+     * @param longitudes the coordinates, same order as the IDs
+     */
+    public static void storeCoordinates(Context context, String[] placeIds, double[] latitudes, double[] longitudes)
+    {
+        PlaceTable stored = PlaceStore.loadCoordinates(context);
+        Set<String> unchanged = new HashSet<>();
+        for (int i = 0; i < placeIds.length; i++) {
+            int row = stored.indexOf(placeIds[i]);
+            if (row >= 0 && stored.getLatitude(row) == latitudes[i] && stored.getLongitude(row) == longitudes[i]) {
+                unchanged.add(placeIds[i]);
+            }
+        }
+
+        int updated = 0;
+        for (int i = 0; i < placeIds.length; i++) {
+            if (unchanged.contains(placeIds[i])) {
+                continue;
+            }
+            ContentValues values = new ContentValues();
+            values.put(PlaceEntry.COLUMN_LATITUDE, latitudes[i]);
+            values.put(PlaceEntry.COLUMN_LONGITUDE, longitudes[i]);
+            updated += context.getContentResolver().update(PlaceEntry.CONTENT_URI, values,
+                    PlaceEntry.COLUMN_PLACE_ID + "=?", new String[]{placeIds[i]});
+        }
+        if (updated > 0) {
+            invalidate();
+        }
+    }
+}
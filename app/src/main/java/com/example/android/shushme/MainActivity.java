@@ -19,37 +19,55 @@ package com.example.android.shushme;
 import android.Manifest;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
+import android.content.OperationApplicationException;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
+import android.location.Location;
 import android.os.Build;
 import android.os.Bundle;
-import androidx.annotation.NonNull;
-import androidx.annotation.Nullable;
+import android.os.Looper;
+import android.os.RemoteException;
+import androidx.annotation.VisibleForTesting;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.ItemTouchHelper;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import android.text.method.LinkMovementMethod;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewTreeObserver;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.CheckBox;
 import android.widget.CompoundButton;
+import android.widget.Spinner;
 import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import com.example.android.shushme.provider.PlaceContract;
-import com.google.android.gms.common.ConnectionResult;
+import com.google.android.material.snackbar.Snackbar;
 import com.google.android.gms.common.api.ApiException;
-import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.Status;
+import com.google.android.gms.location.FusedLocationProviderClient;
+import com.google.android.gms.location.LocationCallback;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationResult;
 import com.google.android.gms.location.LocationServices;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskExecutors;
+import com.google.android.gms.tasks.Tasks;
 import com.google.android.libraries.places.api.Places;
 import com.google.android.libraries.places.api.model.Place;
 import com.google.android.libraries.places.api.net.FetchPlaceRequest;
@@ -58,17 +76,30 @@ import com.google.android.libraries.places.widget.Autocomplete;
 import com.google.android.libraries.places.widget.AutocompleteActivity;
 import com.google.android.libraries.places.widget.model.AutocompleteActivityMode;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
-public class MainActivity extends AppCompatActivity implements
-        GoogleApiClient.ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener {
+public class MainActivity extends AppCompatActivity {
 
     // Constants
     public static final String TAG = MainActivity.class.getSimpleName();
     public static final int MY_PERMISSIONS_REQUEST_LOCATION = 99;
     public static final int AUTOCOMPLETE_REQUEST_CODE = 4;
+    // Place IDs per delete statement, SQLite allows at most 999 arguments in one statement
+    private static final int DELETE_CHUNK_SIZE = 500;
+
+    // how often to ask for a new location while sorting by distance
+    private static final long SORT_LOCATION_INTERVAL_IN_MILLISECONDS = 60 * 1000;
+    // ignore location changes smaller than this while sorting by distance
+    private static final float SORT_LOCATION_DISPLACEMENT_IN_METERS = 25;
 
     public static final String SHUSHME_NOTIFICATION_CHANNEL = "shushme_notification_channel";
 
@@ -82,13 +113,92 @@ public class MainActivity extends AppCompatActivity implements
     // check whether the Geofence on/off switch is enabled or not
     private boolean isEnabled;
 
+    // created on a background thread during startup, null until it is ready
     private PlacesClient placesClient;
+    // set when a refresh was requested before placesClient was ready
+    private boolean isRefreshPending;
 
-    // list of Places fetched from Google live server
-    List<Place> places = new ArrayList<>();
+    // all Places fetched from Google live server, shared with the rest of the app
+    private PlaceStore placeStore;
+    // rows of the store's table shown, which are the places of the active place set
+    @VisibleForTesting
+    int[] shownRows = new int[0];
+    // version of the snapshot shownRows was taken from, -1 after the active set changed
+    private long shownVersion = -1;
+    // set once all stored places were fetched, so the store holds every place
+    private boolean isPlacesLoaded;
+    // set while the Autocomplete activity is open. Coming back from it doesn't refetch the places,
+    // since the picked place is added on its own.
+    private boolean isPickingPlace;
+    // Place IDs deleted while this activity runs. A refresh that queried the places table before
+    // they were gone skips them, so it doesn't bring them back. Only used on the main thread.
+    private final Set<String> removedPlaceIds = new HashSet<>();
+    private PlaceSets placeSets;
+    private long activeSetId;
+    // Place IDs of the active set, null when all places are active
+    private Set<String> activePlaceIds;
+    private ArrayAdapter<PlaceSets.PlaceSet> placeSetAdapter;
+    private Spinner placeSetSpinner;
 
     private Geofencing geofencing;
 
+    /**
+     * Creates the Places client. Called on a background thread.
+     */
+    interface PlacesClientFactory {
+        PlacesClient create(Context context);
+    }
+
+    // replaced by a fake backend in tests
+    @VisibleForTesting
+    static PlacesClientFactory placesClientFactory = (context) -> {
+        // Initialize Places.
+        if (!Places.isInitialized()) {
+            Places.initialize(context, ApiKey.getApiKey());
+        }
+        return Places.createClient(context);
+    };
+
+    /**
+     * Whether the user turned geofencing on with the switch.
+     * Reads the same file as getPreferences() of this activity, so other components can check it.
+     */
+    static boolean isGeofencingEnabled(Context context)
+    {
+        return context.getSharedPreferences(MainActivity.class.getSimpleName(), Context.MODE_PRIVATE)
+                .getBoolean(context.getString(R.string.setting_enabled), false);
+    }
+
+    /**
+     * Saves whether geofencing is on, for the switch and the Quick Settings tile,
+     * and refreshes the tile. Registering or unregistering the fences is up to the caller.
+     */
+    static void setGeofencingEnabled(Context context, boolean isEnabled)
+    {
+        context.getSharedPreferences(MainActivity.class.getSimpleName(), Context.MODE_PRIVATE).edit()
+                .putBoolean(context.getString(R.string.setting_enabled), isEnabled)
+                .apply();
+        ShushTileService.requestUpdate(context);
+    }
+
+    // check whether the place list should be sorted by distance from the last known location
+    private boolean isSortedByDistance;
+    private FusedLocationProviderClient fusedLocationClient;
+    private Location lastLocation;
+    private PlaceDistanceSorter distanceSorter;
+    // switches the power profile while the app is visible
+    private final PowerProfileReceiver powerProfileReceiver = new PowerProfileReceiver();
+
+    private final LocationCallback locationCallback = new LocationCallback() {
+        @Override
+        public void onLocationResult(LocationResult locationResult) {
+            if (locationResult != null && locationResult.getLastLocation() != null) {
+                lastLocation = locationResult.getLastLocation();
+                sortPlacesByDistance();
+            }
+        }
+    };
+
     /**
      * Called when the activity is starting
      *
@@ -96,14 +206,106 @@ public class MainActivity extends AppCompatActivity implements
      */
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        StartupTracer.onLaunchStart();
+        Tracing.beginSection("MainActivity.onCreate");
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        // log the first frame once the view hierarchy has been drawn
+        final View decorView = getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                decorView.getViewTreeObserver().removeOnPreDrawListener(this);
+                // the frame is drawn right after the pre-draw pass, so mark it on the next loop
+                decorView.post(() -> StartupTracer.mark(StartupTracer.FIRST_FRAME));
+                return true;
+            }
+        });
+
         // Set up the recycler view
         mRecyclerView = (RecyclerView) findViewById(R.id.places_list_recycler_view);
         mRecyclerView.setLayoutManager(new LinearLayoutManager(this));
-        mAdapter = new PlaceListAdapter(this, places);
+        mAdapter = new PlaceListAdapter(this);
         mRecyclerView.setAdapter(mAdapter);
+        placeStore = PlaceStore.getInstance();
+        placeStore.subscribe(placeStoreListener);
+        // long click a place to edit its quiet schedule or the place sets it is in
+        mAdapter.setOnPlaceLongClickListener((placeId, placeName) ->
+                new AlertDialog.Builder(this)
+                        .setTitle(placeName)
+                        .setItems(R.array.place_actions, (dialog, which) -> {
+                            if (which == 0)
+                            {
+                                new QuietScheduleDialog(this, placeId, placeName).show();
+                            }
+                            else if (which == 1)
+                            {
+                                new PlaceSetDialog(this, this::loadPlaceSets)
+                                        .showMembership(placeId, placeName);
+                            }
+                            else
+                            {
+                                // then a click selects more places
+                                mAdapter.select(placeId);
+                            }
+                        })
+                        .show());
+        // the menu shows the delete action while places are selected
+        mAdapter.setOnSelectionChangedListener((selectedCount) -> invalidateOptionsMenu());
+        // swipe a place away to delete it
+        new ItemTouchHelper(new ItemTouchHelper.SimpleCallback(0, ItemTouchHelper.LEFT | ItemTouchHelper.RIGHT) {
+            @Override
+            public boolean onMove(RecyclerView recyclerView, RecyclerView.ViewHolder viewHolder,
+                                  RecyclerView.ViewHolder target) {
+                return false;
+            }
+
+            @Override
+            public void onSwiped(RecyclerView.ViewHolder viewHolder, int direction) {
+                int position = viewHolder.getAdapterPosition();
+                if (position != RecyclerView.NO_POSITION)
+                {
+                    removePlaceWithUndo(mAdapter.getPlaceId(position));
+                }
+            }
+        }).attachToRecyclerView(mRecyclerView);
+
+        distanceSorter = new PlaceDistanceSorter(new PlaceDistanceSorter.Listener() {
+            @Override
+            public void onMovesComputed(int[] moves) {
+                mAdapter.applyMoves(moves);
+            }
+
+            @Override
+            public void onPermutationComputed(int[] permutation) {
+                mAdapter.applyPermutation(permutation);
+            }
+        });
+        fusedLocationClient = LocationServices.getFusedLocationProviderClient(this);
+
+        // Initialize sort checkbox and handle sort order change
+        CheckBox sortCheckBox = (CheckBox) findViewById(R.id.sort_by_distance_checkbox);
+        isSortedByDistance = getPreferences(Context.MODE_PRIVATE).getBoolean(getString(R.string.setting_sort_by_distance), false);
+        sortCheckBox.setChecked(isSortedByDistance);
+        sortCheckBox.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                getPreferences(Context.MODE_PRIVATE).edit()
+                        .putBoolean(getString(R.string.setting_sort_by_distance), isChecked)
+                        .apply();
+                isSortedByDistance = isChecked;
+
+                if (isSortedByDistance)
+                {
+                    startLocationUpdates();
+                }
+                else
+                {
+                    stopLocationUpdates();
+                }
+            }
+        });
 
         // Initialize switch and handle enable/disable switch change
         Switch onOffSwitch = (Switch) findViewById(R.id.enable_switch);
@@ -113,11 +315,13 @@ public class MainActivity extends AppCompatActivity implements
             @Override
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
                 // isChecked will be true if the switch is in the On position
-                SharedPreferences sharedPref = getPreferences(Context.MODE_PRIVATE);
-                SharedPreferences.Editor editor = sharedPref.edit();
-                editor.putBoolean(getString(R.string.setting_enabled), isChecked);
+                if (isChecked == isEnabled)
+                {
+                    // the switch only caught up with the Quick Settings tile, see onStart
+                    return;
+                }
                 isEnabled = isChecked;
-                editor.commit();
+                setGeofencingEnabled(MainActivity.this, isChecked);
 
                 if (isEnabled)
                 {
@@ -125,7 +329,11 @@ public class MainActivity extends AppCompatActivity implements
                 }
                 else
                 {
-                    geofencing.unregisterAllGeofences();
+                    // once no fence can report a transition anymore, forget the fences we were inside
+                    // and restore the ringer if they silenced it
+                    final Context appContext = getApplicationContext();
+                    geofencing.unregisterAllGeofences().addOnCompleteListener((task) ->
+                            GeofenceBroadcastReceiver.clearTransitions(appContext));
                 }
             }
         });
@@ -135,70 +343,126 @@ public class MainActivity extends AppCompatActivity implements
         // make the link clickable
         link.setMovementMethod(LinkMovementMethod.getInstance());
 
-        // Build up the LocationServices API client
-        // Uses the addApi method to request the LocationServices API
-        // Also uses enableAutoManage to automatically when to connect/suspend the client
-        GoogleApiClient client = new GoogleApiClient.Builder(this)
-                .addConnectionCallbacks(this)
-                .addOnConnectionFailedListener(this)
-                .addApi(LocationServices.API)
-                .enableAutoManage(this, this)
-                .build();
+        // GeofencingClient is connectionless, so there is nothing to connect before registering
+        geofencing = new Geofencing(this);
 
-        // Initialize Places.
-        if (!Places.isInitialized()) {
-            Places.initialize(getApplicationContext(), ApiKey.getApiKey());
-        }
+        // Initialize the place set picker. Picking a set swaps the registered fences.
+        placeSets = new PlaceSets(this);
+        activeSetId = placeSets.getActiveSetId();
+        placeSetSpinner = (Spinner) findViewById(R.id.place_set_spinner);
+        placeSetAdapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item);
+        placeSetAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        placeSetSpinner.setAdapter(placeSetAdapter);
+        placeSetSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                PlaceSets.PlaceSet placeSet = placeSetAdapter.getItem(position);
+                if (placeSet != null && placeSet.id != activeSetId)
+                {
+                    loadPlaceSets(placeSet.id);
+                }
+            }
 
-        // Create a new Places client instance.
-        placesClient = Places.createClient(this);
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
+        // queued before the first refresh, so the active set is known before the places arrive
+        loadPlaceSets(activeSetId);
+
+        // Initializing Places and creating the notification channel don't touch any views,
+        // so do them in the background instead of delaying the first frame
+        final Context appContext = getApplicationContext();
+        AppExecutors.getInstance().background().execute(() -> {
+            Tracing.beginSection("MainActivity.initPlaces");
+            // Create a new Places client instance.
+            final PlacesClient newPlacesClient = placesClientFactory.create(appContext);
+
+            // create notification channel, which is required on Android 8.0 = API 26 and up
+            createNotificationChannel(appContext);
+
+            // keeps the stored Place IDs fresh while the device is idle and charging
+            PlaceMaintenanceJobService.schedule(appContext);
 
-        geofencing = new Geofencing(this, client);
+            // pick the power profile for the battery before the fences are registered
+            PowerProfile.update(appContext);
 
-        // create notification channel, which is required on Android 8.0 = API 26 and up
-        createNotificationChannel();
+            Tracing.endSection();
+
+            AppExecutors.getInstance().runOnMain(() -> onPlacesClientReady(newPlacesClient));
+        });
+
+        Tracing.endSection();
     }
 
-    /**
-     * Called when the Google API Client is successfully connected
-     *
-     * @param connectionHint Bundle of data provided to clients by Google Play services
-     */
-    @Override
-    public void onConnected(@Nullable Bundle connectionHint) {
-        Log.i(TAG, "API Client Connection Successful!");
-        // Get live data information
-        refreshPlacesData();
+    // Called on the main thread once the background startup work created the Places client
+    private void onPlacesClientReady(PlacesClient client)
+    {
+        placesClient = client;
+        if (isRefreshPending && !isFinishing())
+        {
+            isRefreshPending = false;
+            refreshPlacesData();
+        }
     }
 
-    /**
-     * Called when the Google API Client is suspended
-     *
-     * @param cause The reason for the disconnection. Defined by constants CAUSE_*.
-     */
     @Override
-    public void onConnectionSuspended(int cause) {
-        Log.i(TAG, "API Client Connection Suspended!");
+    protected void onStart() {
+        super.onStart();
+        // the Quick Settings tile may have flipped the setting while the activity was stopped
+        if (isGeofencingEnabled(this) != isEnabled)
+        {
+            isEnabled = !isEnabled;
+            ((Switch) findViewById(R.id.enable_switch)).setChecked(isEnabled);
+        }
+        // Get live data information every time the activity becomes visible,
+        // unless it only comes back from picking a place and all places are already loaded
+        if (!isPickingPlace || !isPlacesLoaded)
+        {
+            refreshPlacesData();
+        }
+        // battery saver changes only reach receivers registered at runtime
+        registerReceiver(powerProfileReceiver, PowerProfileReceiver.getIntentFilter());
     }
 
-    /**
-     * Called when the Google API Client failed to connect to Google Play Services
-     *
-     * @param connectionResult A ConnectionResult that can be used for resolving the error
-     */
     @Override
-    public void onConnectionFailed(@NonNull ConnectionResult connectionResult) {
-        Log.i(TAG, "API Client Connection Failed!");
+    protected void onStop() {
+        unregisterReceiver(powerProfileReceiver);
+        super.onStop();
     }
 
-    // Queries all the locally stored Places IDs
+    // Queries all the locally stored Places IDs on a background thread
     // Calls placesClient.fetchPlace with that list of IDs
-    private void refreshPlacesData()
+    @VisibleForTesting
+    void refreshPlacesData()
     {
+        // the Places client is still being created in the background
+        if (placesClient == null)
+        {
+            isRefreshPending = true;
+            return;
+        }
 
+        // the query and the fetch have their own trace sections
+        AppExecutors.getInstance().background().execute(() -> {
+            Tracing.beginSection("MainActivity.queryPlaceIds");
+            final List<String> placeIds;
+            try {
+                placeIds = queryPlaceIds();
+            } finally {
+                Tracing.endSection();
+            }
+            AppExecutors.getInstance().runOnMain(() -> fetchPlaces(placeIds));
+        });
+    }
+
+    // Reads the IDs of all locally stored places. Runs on a background thread.
+    private List<String> queryPlaceIds()
+    {
+        List<String> placeIds = new ArrayList<>();
         Cursor cursor = getContentResolver().query(
                 PlaceContract.PlaceEntry.CONTENT_URI,
-                null,
+                new String[]{PlaceContract.PlaceEntry.COLUMN_PLACE_ID},
                 null,
                 null,
                 null
@@ -206,70 +470,362 @@ public class MainActivity extends AppCompatActivity implements
 
         if (cursor != null)
         {
-            cursor.moveToFirst();
+            int placeIdIndex = cursor.getColumnIndex(PlaceContract.PlaceEntry.COLUMN_PLACE_ID);
+            while (cursor.moveToNext())
+            {
+                placeIds.add(cursor.getString(placeIdIndex));
+            }
+            // always close the cursor
+            cursor.close();
+        }
+        return placeIds;
+    }
 
-            // clear the list of places since we don't want repeats and
-            // are fetching from all IDs again
-            places.clear();
+    // Calls placesClient.fetchPlace for each of the place IDs
+    private void fetchPlaces(List<String> placeIds)
+    {
+        if (isFinishing())
+        {
+            return;
+        }
+        Tracing.beginSection("MainActivity.fetchPlaces");
+
+        // the query may have run before places deleted here were gone from the table
+        placeIds.removeAll(removedPlaceIds);
+        // drop places that were deleted. The others stay shown until their new version arrives.
+        placeStore.retainOnly(placeIds);
+
+        // Specify the fields to return.
+        List<Place.Field> placeFields = Arrays.asList(Place.Field.ID, Place.Field.NAME, Place.Field.ADDRESS, Place.Field.LAT_LNG);
+        FetchPlaceRequest request;
+        List<Task<Void>> fetchTasks = new ArrayList<>();
+        // only touched on the main thread, put in the store once every fetch has been handled
+        final List<Place> fetchedPlaces = new ArrayList<>(placeIds.size());
 
-            String placeId;
-            List<Place.Field> placeFields;
-            FetchPlaceRequest request;
+        for (String placeId : placeIds)
+        {
+            // Construct a request object, passing the place ID and fields array.
+            request = FetchPlaceRequest.newInstance(placeId, placeFields);
+
+            // to use lambdas, the module settings were changed to use Java 8 language features.
+            // See Project Structure->Properties or the app build.gradle file.
+
+            // Add a continuation on the main thread to handle the response.
+            // The continuation's task only completes once the response has been handled.
+            final long fetchStart = System.nanoTime();
+            final int fetchCookie = Tracing.beginAsyncSection("fetchPlace");
+            fetchTasks.add(placesClient.fetchPlace(request).continueWith(TaskExecutors.MAIN_THREAD, (task) -> {
+                Tracing.endAsyncSection("fetchPlace", fetchCookie);
+                if (task.isSuccessful())
+                {
+                    onPlaceFetched(task.getResult().getPlace(), fetchStart, fetchedPlaces);
+                }
+                else
+                {
+                    onPlaceFetchFailed(task.getException());
+                }
+                return null;
+            }));
+        }
 
-            for (int i = 0; i < cursor.getCount(); i++)
+        // publish the places and update geofences once, after every fetch has been handled,
+        // instead of rebuilding the table and re-registering the whole list for each place.
+        // Not tied to the activity, so the places are stored even if it stops meanwhile.
+        Tasks.whenAllComplete(fetchTasks).continueWith(TaskExecutors.MAIN_THREAD, (task) -> {
+            // places may have been deleted while they were being fetched
+            List<Place> keptPlaces = new ArrayList<>(fetchedPlaces.size());
+            for (Place place : fetchedPlaces)
+            {
+                if (!removedPlaceIds.contains(place.getId()))
+                {
+                    keptPlaces.add(place);
+                }
+            }
+            placeStore.putAll(keptPlaces);
+            return null;
+        }).addOnCompleteListener(this, (task) -> {
+            // all places get a geofence, so switching sets doesn't need a new fetch
+            isPlacesLoaded = true;
+            PlaceStore.Snapshot snapshot = placeStore.snapshot();
+            geofencing.updateGeofencesList(snapshot);
+            storePlaceCoordinates(snapshot.table);
+            writeFenceIndex(snapshot);
+            // register the geofences that changed if switch enabled
+            if (isEnabled)
             {
-                // Define a Place ID.
-                placeId = cursor.getString(cursor
-                        .getColumnIndex(PlaceContract.PlaceEntry.COLUMN_PLACE_ID));
+                geofencing.registerChangedGeofences();
+            }
+        });
+        Tracing.endSection();
+    }
 
-                // Specify the fields to return.
-                placeFields = Arrays.asList(Place.Field.ID, Place.Field.NAME, Place.Field.ADDRESS, Place.Field.LAT_LNG);
+    // Saves the fetched coordinates in the background, so the LocalGeofenceEngine
+    // can check places without fetching them from the Places API
+    private void storePlaceCoordinates(PlaceTable table)
+    {
+        int count = 0;
+        for (int row = 0; row < table.size(); row++)
+        {
+            if (table.hasLatLng(row))
+            {
+                count++;
+            }
+        }
+        final String[] ids = new String[count];
+        final double[] latitudes = new double[count];
+        final double[] longitudes = new double[count];
+        int i = 0;
+        for (int row = 0; row < table.size(); row++)
+        {
+            if (table.hasLatLng(row))
+            {
+                ids[i] = table.getId(row);
+                latitudes[i] = table.getLatitude(row);
+                longitudes[i] = table.getLongitude(row);
+                i++;
+            }
+        }
+        final Context appContext = getApplicationContext();
+        AppExecutors.getInstance().background().execute(() ->
+                LocalGeofenceEngine.storeCoordinates(appContext, ids, latitudes, longitudes));
+    }
 
-                // Construct a request object, passing the place ID and fields array.
-                request = FetchPlaceRequest.newInstance(placeId, placeFields);
+    // Rewrites the index GeofenceBroadcastReceiver uses to name the places, if they changed
+    private void writeFenceIndex(final PlaceStore.Snapshot snapshot)
+    {
+        final Context appContext = getApplicationContext();
+        AppExecutors.getInstance().background().execute(() ->
+                FenceIndex.writeIfChanged(appContext, snapshot));
+    }
 
-                // to use lambdas, the module settings were changed to use Java 8 language features.
-                // See Project Structure->Properties or the app build.gradle file.
+    // Collects a fetched place for the store, which shows it. Runs on the main thread.
+    private void onPlaceFetched(Place place, long fetchStart, List<Place> fetchedPlaces)
+    {
+        Metrics.recordSince(Metrics.PLACE_FETCH_LATENCY, fetchStart);
+        if (!removedPlaceIds.contains(place.getId()))
+        {
+            fetchedPlaces.add(place);
+        }
+    }
 
-                // Add a listener to handle the response.
-                placesClient.fetchPlace(request).addOnSuccessListener((response) -> {
-                    Place place = response.getPlace();
+    // called on the main thread after the places in the store changed
+    private final PlaceStore.Listener placeStoreListener = (snapshot) -> {
+        // places removed here are already shown, see removePlaces
+        if (!isFinishing() && snapshot.version != shownVersion)
+        {
+            showPlaces(snapshot);
+        }
+    };
 
-                    // add the Place to the list of places
-                    places.add(place);
+    // Shows the places of the active set in the snapshot
+    private void showPlaces(PlaceStore.Snapshot snapshot)
+    {
+        PlaceTable table = snapshot.table;
+        if (shownVersion >= snapshot.appendedSince && shownVersion < snapshot.version)
+        {
+            // places were only added since, so the shown rows stay as they are
+            appendPlaces(snapshot);
+            return;
+        }
+        shownVersion = snapshot.version;
+        int[] rows;
+        if (activePlaceIds == null)
+        {
+            rows = new int[table.size()];
+            for (int row = 0; row < rows.length; row++)
+            {
+                rows[row] = row;
+            }
+        }
+        else
+        {
+            // look up the members instead of creating the ID String of every row
+            int count = 0;
+            rows = new int[activePlaceIds.size()];
+            for (String placeId : activePlaceIds)
+            {
+                int row = table.indexOf(placeId);
+                if (row >= 0)
+                {
+                    rows[count++] = row;
+                }
+            }
+            // in the order the places were fetched, like the set of all places
+            rows = Arrays.copyOf(rows, count);
+            Arrays.sort(rows);
+        }
+        shownRows = rows;
 
-                    // swap places to update RecyclerView
-                    mAdapter.swapPlaces(places);
+        // a sort pass over the old rows can't be applied to the new ones
+        distanceSorter.cancel();
+        // swap places to update RecyclerView. The adapter reorders its own copy.
+        mAdapter.swapPlaces(table, rows.clone());
+        if (rows.length > 0)
+        {
+            StartupTracer.mark(StartupTracer.DATA_SHOWN);
+        }
+        // move the places to their positions by distance
+        sortPlacesByDistance();
+    }
 
-                    // update geofences
-                    geofencing.updateGeofencesList(places);
-                    // register all geofences if switch enabled
-                    if (isEnabled)
-                    {
-                        geofencing.registerAllGeofences();
-                    }
-                }).addOnFailureListener((exception) -> {
-                    if (exception instanceof ApiException) {
-                        ApiException apiException = (ApiException) exception;
-                        int statusCode = apiException.getStatusCode();
-                        // Handle error with given status code.
-                        Log.e(TAG, "Place not found: " + exception.getMessage());
-                        Log.e(TAG, "Status code: " + statusCode);
-                    }
-                });
+    // Shows the places added after the rows already shown, as inserted items
+    private void appendPlaces(PlaceStore.Snapshot snapshot)
+    {
+        PlaceTable table = snapshot.table;
+        int shownSize = mAdapter.getTable().size();
+        int[] addedRows = new int[table.size() - shownSize];
+        int count = 0;
+        for (int row = shownSize; row < table.size(); row++)
+        {
+            if (activePlaceIds == null || activePlaceIds.contains(table.getId(row)))
+            {
+                addedRows[count++] = row;
+            }
+        }
+        addedRows = Arrays.copyOf(addedRows, count);
+        shownVersion = snapshot.version;
+        int[] rows = Arrays.copyOf(shownRows, shownRows.length + count);
+        System.arraycopy(addedRows, 0, rows, shownRows.length, count);
+        shownRows = rows;
+
+        // a sort pass over the old rows can't be applied to the new ones
+        distanceSorter.cancel();
+        mAdapter.appendPlaces(table, addedRows);
+        // move the new places to their positions by distance
+        sortPlacesByDistance();
+    }
 
-                cursor.moveToNext();
+    /**
+     * Reloads the place sets and the members of the given set in the background,
+     * then makes the set active. Switching sets only swaps the difference in fences
+     * and filters the places already fetched, nothing is fetched again.
+     * Also used to pick up changes to the sets, in which case the difference is usually empty.
+     *
+     * @param setId the set to make active
+     */
+    private void loadPlaceSets(final long setId)
+    {
+        AppExecutors.getInstance().background().execute(() -> {
+            final List<PlaceSets.PlaceSet> sets = placeSets.loadSets();
+            // fall back to all places if the set was deleted
+            long existingSetId = PlaceSets.ALL_PLACES;
+            for (PlaceSets.PlaceSet placeSet : sets)
+            {
+                if (placeSet.id == setId)
+                {
+                    existingSetId = setId;
+                }
             }
-            // always close the cursor
-            cursor.close();
+            final long newSetId = existingSetId;
+            final Set<String> memberIds = placeSets.loadMemberIds(newSetId);
+            AppExecutors.getInstance().runOnMain(() -> {
+                if (!isFinishing())
+                {
+                    onPlaceSetsLoaded(sets, newSetId, memberIds);
+                }
+            });
+        });
+    }
+
+    private void onPlaceSetsLoaded(List<PlaceSets.PlaceSet> sets, long setId, Set<String> memberIds)
+    {
+        placeSetAdapter.clear();
+        placeSetAdapter.addAll(sets);
+        for (int i = 0; i < sets.size(); i++)
+        {
+            if (sets.get(i).id == setId)
+            {
+                placeSetSpinner.setSelection(i);
+            }
+        }
+
+        activeSetId = setId;
+        activePlaceIds = memberIds;
+        // other places are shown now, so nothing can be appended to the old ones
+        shownVersion = -1;
+        placeSets.setActiveSetId(setId);
+        geofencing.swapActivePlaces(memberIds, isEnabled);
+
+        // show the places of the active set, including any fetched before this activity was created
+        showPlaces(placeStore.snapshot());
+    }
+
+    private void onPlaceFetchFailed(Exception exception)
+    {
+        Metrics.counter(Metrics.PLACE_FETCH_FAILURES).increment();
+        if (exception instanceof ApiException) {
+            ApiException apiException = (ApiException) exception;
+            int statusCode = apiException.getStatusCode();
+            // Handle error with given status code.
+            Log.e(TAG, "Place not found: " + exception.getMessage());
+            Log.e(TAG, "Status code: " + statusCode);
+        }
+    }
+
+    // Starts a background pass that re-sorts the list by distance from the last known location
+    private void sortPlacesByDistance()
+    {
+        if (isSortedByDistance && lastLocation != null)
+        {
+            // sort the list in the order it is shown
+            distanceSorter.sort(mAdapter.getTable(), mAdapter.getRows(),
+                    lastLocation.getLatitude(), lastLocation.getLongitude());
+        }
+    }
+
+    // Requests low-power location updates used to keep the list sorted by distance
+    private void startLocationUpdates()
+    {
+        if (ContextCompat.checkSelfPermission(this,
+                Manifest.permission.ACCESS_FINE_LOCATION)
+                != PackageManager.PERMISSION_GRANTED) {
+            Toast.makeText(this, getString(R.string.need_location_permission_message), Toast.LENGTH_LONG).show();
+            return;
         }
 
+        // sort right away from the last known location instead of waiting for the first update
+        fusedLocationClient.getLastLocation().addOnSuccessListener(this, (location) -> {
+            if (location != null && lastLocation == null) {
+                lastLocation = location;
+                sortPlacesByDistance();
+            }
+        });
+
+        LocationRequest locationRequest = LocationRequest.create()
+                .setPriority(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY)
+                .setInterval(SORT_LOCATION_INTERVAL_IN_MILLISECONDS)
+                .setSmallestDisplacement(SORT_LOCATION_DISPLACEMENT_IN_METERS);
+        fusedLocationClient.requestLocationUpdates(locationRequest, locationCallback, Looper.getMainLooper());
+    }
+
+    private void stopLocationUpdates()
+    {
+        fusedLocationClient.removeLocationUpdates(locationCallback);
+        distanceSorter.cancel();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        stopLocationUpdates();
+    }
+
+    @Override
+    protected void onDestroy() {
+        // the store outlives the activity
+        placeStore.unsubscribe(placeStoreListener);
+        super.onDestroy();
     }
 
     @Override
     protected void onResume() {
         super.onResume();
 
+        if (isSortedByDistance)
+        {
+            startLocationUpdates();
+        }
+
         // Initialize location permissions checkbox
         final CheckBox locationPermissions = (CheckBox) findViewById(R.id.location_permissions_checkbox);
         if (ContextCompat.checkSelfPermission(this,
@@ -307,6 +863,243 @@ public class MainActivity extends AppCompatActivity implements
         }
     }
 
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_main, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.action_new_place_set)
+        {
+            new PlaceSetDialog(this, this::loadPlaceSets).showCreate();
+            return true;
+        }
+        else if (item.getItemId() == R.id.action_delete_place_set)
+        {
+            deleteActivePlaceSet();
+            return true;
+        }
+        else if (item.getItemId() == R.id.action_delete_places)
+        {
+            removePlaces(mAdapter.getSelectedIds());
+            return true;
+        }
+        else if (item.getItemId() == R.id.action_export_transition_log)
+        {
+            exportTransitionLog();
+            return true;
+        }
+        else if (item.getItemId() == R.id.action_metrics)
+        {
+            startActivity(new Intent(this, MetricsActivity.class));
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        // the set of all places can't be deleted
+        menu.findItem(R.id.action_delete_place_set).setVisible(activeSetId != PlaceSets.ALL_PLACES);
+        menu.findItem(R.id.action_delete_places).setVisible(!mAdapter.getSelectedIds().isEmpty());
+        return super.onPrepareOptionsMenu(menu);
+    }
+
+    @Override
+    public void onBackPressed() {
+        // back leaves selecting places first
+        if (!mAdapter.getSelectedIds().isEmpty())
+        {
+            mAdapter.clearSelection();
+            return;
+        }
+        super.onBackPressed();
+    }
+
+    /**
+     * Deletes places. Only their rows leave the list, and only their fences are removed,
+     * the other places aren't fetched, rebound or registered again.
+     *
+     * @param placeIds the Place IDs of the places to delete
+     */
+    @VisibleForTesting
+    void removePlaces(final Set<String> placeIds)
+    {
+        if (placeIds.isEmpty())
+        {
+            return;
+        }
+        hidePlaces(placeIds);
+        deletePlaces(placeIds);
+    }
+
+    /**
+     * Hides a swiped place and offers to undo it. The place is only deleted
+     * once the Snackbar is gone without undo being pressed.
+     */
+    private void removePlaceWithUndo(final String placeId)
+    {
+        final Set<String> placeIds = Collections.singleton(placeId);
+        // a copy of the row, so undo can show the place again without fetching it
+        PlaceTable table = placeStore.snapshot().table;
+        PlaceTable.Builder builder = new PlaceTable.Builder(1);
+        int row = table.indexOf(placeId);
+        if (row >= 0)
+        {
+            builder.addRow(table, row);
+        }
+        final PlaceTable removedRow = builder.build();
+        final long setId = activeSetId;
+        final boolean wasActive = activePlaceIds != null && activePlaceIds.contains(placeId);
+        hidePlaces(placeIds);
+
+        Snackbar.make(mRecyclerView, R.string.place_deleted, Snackbar.LENGTH_LONG)
+                .setAction(R.string.undo, (view) -> {
+                    removedPlaceIds.remove(placeId);
+                    if (wasActive && setId == activeSetId)
+                    {
+                        activePlaceIds.add(placeId);
+                    }
+                    // the store listener shows it again
+                    placeStore.restore(removedRow);
+                })
+                .addCallback(new Snackbar.Callback() {
+                    @Override
+                    public void onDismissed(Snackbar snackbar, int event) {
+                        // also when it was swiped away or the activity went away.
+                        // Skipped if the place was picked again meanwhile.
+                        if (event != DISMISS_EVENT_ACTION && removedPlaceIds.contains(placeId))
+                        {
+                            deletePlaces(placeIds);
+                        }
+                    }
+                })
+                .show();
+    }
+
+    // Takes the places out of the store and the list, without deleting them yet
+    private void hidePlaces(Set<String> placeIds)
+    {
+        Tracing.beginSection("MainActivity.removePlaces");
+        removedPlaceIds.addAll(placeIds);
+        PlaceTable shownTable = mAdapter.getTable();
+        PlaceStore.Snapshot snapshot = placeStore.remove(placeIds);
+        if (snapshot.version == shownVersion + 1)
+        {
+            // the removal was the only change since the shown snapshot, so the shown rows can be kept
+            int[] removedRows = new int[placeIds.size()];
+            int count = 0;
+            for (String placeId : placeIds)
+            {
+                int row = shownTable.indexOf(placeId);
+                if (row >= 0)
+                {
+                    removedRows[count++] = row;
+                }
+            }
+            removedRows = Arrays.copyOf(removedRows, count);
+            Arrays.sort(removedRows);
+            shownVersion = snapshot.version;
+            shownRows = PlaceListAdapter.withoutRows(shownRows, removedRows);
+            distanceSorter.cancel();
+            mAdapter.removePlaces(snapshot.table, removedRows);
+        }
+        // otherwise the store listener shows the new places
+        if (activePlaceIds != null)
+        {
+            activePlaceIds.removeAll(placeIds);
+        }
+        mAdapter.clearSelection();
+        Tracing.endSection();
+    }
+
+    // Deletes hidden places from the places table and removes their fences
+    private void deletePlaces(final Set<String> placeIds)
+    {
+        // the schedules and set memberships go with the places, all in one transaction
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        List<String> ids = new ArrayList<>(placeIds);
+        for (int start = 0; start < ids.size(); start += DELETE_CHUNK_SIZE)
+        {
+            List<String> chunk = ids.subList(start, Math.min(start + DELETE_CHUNK_SIZE, ids.size()));
+            StringBuilder selection = new StringBuilder(PlaceContract.PlaceEntry.COLUMN_PLACE_ID).append(" IN (?");
+            for (int i = 1; i < chunk.size(); i++)
+            {
+                selection.append(",?");
+            }
+            selection.append(")");
+            operations.add(ContentProviderOperation.newDelete(PlaceContract.PlaceEntry.CONTENT_URI)
+                    .withSelection(selection.toString(), chunk.toArray(new String[0]))
+                    .build());
+        }
+        final Context appContext = getApplicationContext();
+        AppExecutors.getInstance().background().execute(() -> {
+            try {
+                appContext.getContentResolver().applyBatch(PlaceContract.AUTHORITY, operations);
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(TAG, "Could not delete places: " + e);
+            }
+            QuietSchedules.invalidate();
+            // the engine reads the places table again the next time it starts
+            LocalGeofenceEngine.invalidate();
+            AppExecutors.getInstance().runOnMain(() -> {
+                // removed from the table first, so the LocalGeofenceEngine doesn't see them anymore
+                geofencing.removePlaces(placeIds, isEnabled);
+                writeFenceIndex(placeStore.snapshot());
+            });
+        });
+    }
+
+    // Deletes the active set in the background and goes back to all places.
+    // The places themselves are kept.
+    private void deleteActivePlaceSet()
+    {
+        final long setId = activeSetId;
+        AppExecutors.getInstance().background().execute(() -> {
+            placeSets.deleteSet(setId);
+            AppExecutors.getInstance().runOnMain(() -> loadPlaceSets(PlaceSets.ALL_PLACES));
+        });
+    }
+
+    // Lets `adb shell dumpsys activity top` print the metrics while the app is showing
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        MetricsActivity.writeReport(this, writer);
+    }
+
+    // Writes a readable dump of the transition log to the app's external files directory,
+    // where it can be pulled with adb for offline analysis
+    private void exportTransitionLog()
+    {
+        final Context appContext = getApplicationContext();
+        AppExecutors.getInstance().transitions().execute(() -> {
+            TransitionLog transitionLog = TransitionLog.getInstance(appContext);
+            File directory = appContext.getExternalFilesDir(null);
+            String message;
+            if (transitionLog == null || directory == null)
+            {
+                message = appContext.getString(R.string.transition_log_export_failed);
+            }
+            else
+            {
+                File file = new File(directory, "transition_log.txt");
+                try {
+                    transitionLog.export(file);
+                    message = appContext.getString(R.string.transition_log_exported, file.getAbsolutePath());
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not export transition log: " + e.getMessage());
+                    message = appContext.getString(R.string.transition_log_export_failed);
+                }
+            }
+            final String toastMessage = message;
+            AppExecutors.getInstance().runOnMain(() ->
+                    Toast.makeText(appContext, toastMessage, Toast.LENGTH_LONG).show());
+        });
+    }
+
     // Android 6.0 and up lets user allow permissions at runtime
     // Older versions request permissions at installation
     public void onLocationPermissionsClicked(View view)
@@ -352,6 +1145,12 @@ public class MainActivity extends AppCompatActivity implements
         }
     }
 
+    @Override
+    public void startActivityForResult(Intent intent, int requestCode) {
+        isPickingPlace = requestCode == AUTOCOMPLETE_REQUEST_CODE;
+        super.startActivityForResult(intent, requestCode);
+    }
+
     /**
      * Called when the Autocomplete Place Activity returns back with a selected place (or after canceling)
      *
@@ -362,23 +1161,12 @@ public class MainActivity extends AppCompatActivity implements
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
+        // delivered after onStart, which already skipped the refresh
+        isPickingPlace = false;
 
         if (requestCode == AUTOCOMPLETE_REQUEST_CODE && resultCode == RESULT_OK)
         {
-            Place place = Autocomplete.getPlaceFromIntent(data);
-
-            // Extract the place information from the API
-            String placeId = place.getId();
-
-            // Create a new map of values, where column names are the keys
-            ContentValues values = new ContentValues();
-            values.put(PlaceContract.PlaceEntry.COLUMN_PLACE_ID, placeId);
-            // Insert a new Place ID into DB
-            getContentResolver().insert(PlaceContract.PlaceEntry.CONTENT_URI, values);
-
-            // Get live data information
-            refreshPlacesData();
-
+            onPlaceSelected(Autocomplete.getPlaceFromIntent(data));
         }
         else if (resultCode == AutocompleteActivity.RESULT_ERROR)
         {
@@ -392,18 +1180,86 @@ public class MainActivity extends AppCompatActivity implements
         }
     }
 
-    private void createNotificationChannel() {
+    /**
+     * Saves a place picked in the Autocomplete activity.
+     * Autocomplete already returned the fields the list and the geofence need,
+     * so the place is saved with its coordinates and added on its own,
+     * without fetching the other places again.
+     *
+     * @param place the selected place
+     */
+    @VisibleForTesting
+    void onPlaceSelected(final Place place)
+    {
+        // Extract the place information from the API
+        final String placeId = place.getId();
+        // picked again after it was deleted, so a pending delete must not remove it
+        removedPlaceIds.remove(placeId);
+
+        // Create a new map of values, where column names are the keys
+        final ContentValues values = new ContentValues();
+        values.put(PlaceContract.PlaceEntry.COLUMN_PLACE_ID, placeId);
+        LatLng latLng = place.getLatLng();
+        if (latLng != null)
+        {
+            // cache the coordinates like a fetched place, for the LocalGeofenceEngine and receivers
+            values.put(PlaceContract.PlaceEntry.COLUMN_LATITUDE, latLng.latitude);
+            values.put(PlaceContract.PlaceEntry.COLUMN_LONGITUDE, latLng.longitude);
+        }
+        // Insert the new place into DB in the background, then show it
+        final Context appContext = getApplicationContext();
+        final long setId = activeSetId;
+        AppExecutors.getInstance().background().execute(() -> {
+            appContext.getContentResolver().insert(PlaceContract.PlaceEntry.CONTENT_URI, values);
+            // a place added while a set is active goes into that set
+            placeSets.addMember(setId, placeId);
+            // the engine reads the new coordinates the next time it starts
+            LocalGeofenceEngine.invalidate();
+            AppExecutors.getInstance().runOnMain(() -> {
+                if (!isFinishing())
+                {
+                    if (activePlaceIds != null && setId == activeSetId)
+                    {
+                        activePlaceIds.add(placeId);
+                    }
+                    onPlaceAdded(place);
+                }
+            });
+        });
+    }
+
+    // Shows the saved place as one more row and registers its fence
+    private void onPlaceAdded(Place place)
+    {
+        // the store listener inserts the place into the list
+        placeStore.put(place);
+        if (!isPlacesLoaded)
+        {
+            // the fetch still running registers the fences once it completes, this one included.
+            // Only the active places are updated now, so the new place is among them by then.
+            geofencing.swapActivePlaces(activePlaceIds, false);
+            return;
+        }
+        PlaceStore.Snapshot snapshot = placeStore.snapshot();
+        geofencing.updateGeofencesList(snapshot);
+        writeFenceIndex(snapshot);
+        // only the fence of the new place is sent, or the cluster it joined
+        geofencing.swapActivePlaces(activePlaceIds, isEnabled);
+    }
+
+    // Runs on a background thread during startup
+    private static void createNotificationChannel(Context context) {
         // Create the NotificationChannel, but only on API 26+ because
         // the NotificationChannel class is new and not in the support library
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            CharSequence name = getString(R.string.channel_name);
-            String description = getString(R.string.channel_description);
+            CharSequence name = context.getString(R.string.channel_name);
+            String description = context.getString(R.string.channel_description);
             int importance = NotificationManager.IMPORTANCE_DEFAULT;
             NotificationChannel channel = new NotificationChannel(SHUSHME_NOTIFICATION_CHANNEL, name, importance);
             channel.setDescription(description);
             // Register the channel with the system; you can't change the importance
             // or other notification behaviors after this
-            NotificationManager notificationManager = getSystemService(NotificationManager.class);
+            NotificationManager notificationManager = context.getSystemService(NotificationManager.class);
             if (notificationManager != null) {
                 notificationManager.createNotificationChannel(channel);
             }
@@ -0,0 +1,226 @@
+package com.example.android.shushme;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process registry of counters, gauges and latency histograms.
+ * Recording a value never locks: counters and gauges are atomics, and histograms
+ * count into log-linear buckets like HdrHistogram, with about 6% relative precision.
+ * Metrics are created on first use and live for the rest of the process.
+ *
+ * Dump them with `adb shell dumpsys activity top` while MainActivity or the
+ * metrics screen is showing, or export them from the metrics screen.
+ */
+public class Metrics {
+
+    // metric names used across the app
+    public static final String PLACE_FETCH_LATENCY = "places.fetch_latency_us";
+    public static final String PLACE_FETCH_FAILURES = "places.fetch_failures";
+    public static final String GEOFENCE_REGISTER_LATENCY = "geofences.register_latency_us";
+    public static final String GEOFENCE_REGISTER_FAILURES = "geofences.register_failures";
+    public static final String GEOFENCE_COUNT = "geofences.count";
+    public static final String TRANSITIONS = "transitions.received";
+    public static final String TRANSITION_LATENCY = "transitions.ringer_latency_us";
+    public static final String RINGER_CHANGES = "transitions.ringer_changes";
+    public static final String NOTIFICATIONS_POSTED = "transitions.notifications_posted";
+    public static final String MAINTENANCE_PLACES_CHECKED = "maintenance.places_checked";
+    public static final String MAINTENANCE_PLACES_REFRESHED = "maintenance.places_refreshed";
+    public static final String MAINTENANCE_PLACES_NOT_FOUND = "maintenance.places_not_found";
+    public static final String POWER_PROFILE = "power.profile";
+    public static final String POWER_PROFILE_SWITCHES = "power.profile_switches";
+    public static final String GEOFENCES_DROPPED_BY_PROFILE = "geofences.dropped_by_profile";
+    public static final String GEOFENCES_MERGED_PLACES = "geofences.merged_places";
+
+    private static final ConcurrentHashMap<String, Counter> sCounters = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Gauge> sGauges = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Histogram> sHistograms = new ConcurrentHashMap<>();
+
+    private Metrics()
+    {
+    }
+
+    public static Counter counter(String name)
+    {
+        Counter counter = sCounters.get(name);
+        if (counter == null) {
+            sCounters.putIfAbsent(name, new Counter());
+            counter = sCounters.get(name);
+        }
+        return counter;
+    }
+
+    public static Gauge gauge(String name)
+    {
+        Gauge gauge = sGauges.get(name);
+        if (gauge == null) {
+            sGauges.putIfAbsent(name, new Gauge());
+            gauge = sGauges.get(name);
+        }
+        return gauge;
+    }
+
+    public static Histogram histogram(String name)
+    {
+        Histogram histogram = sHistograms.get(name);
+        if (histogram == null) {
+            sHistograms.putIfAbsent(name, new Histogram());
+            histogram = sHistograms.get(name);
+        }
+        return histogram;
+    }
+
+    /**
+     * Records the microseconds elapsed since a System.nanoTime() start time
+     */
+    public static void recordSince(String histogramName, long startNanos)
+    {
+        histogram(histogramName).record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /**
+     * Writes a snapshot of all metrics, sorted by name
+     */
+    public static void dump(PrintWriter writer)
+    {
+        for (Map.Entry<String, Counter> entry : new TreeMap<>(sCounters).entrySet()) {
+            writer.println(String.format(Locale.US, "counter %s %d", entry.getKey(), entry.getValue().get()));
+        }
+        for (Map.Entry<String, Gauge> entry : new TreeMap<>(sGauges).entrySet()) {
+            writer.println(String.format(Locale.US, "gauge %s %d", entry.getKey(), entry.getValue().get()));
+        }
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(sHistograms).entrySet()) {
+            Histogram histogram = entry.getValue();
+            writer.println(String.format(Locale.US,
+                    "histogram %s count=%d mean=%d p50=%d p90=%d p99=%d max=%d",
+                    entry.getKey(), histogram.getCount(), histogram.getMean(),
+                    histogram.getPercentile(50), histogram.getPercentile(90),
+                    histogram.getPercentile(99), histogram.getMax()));
+        }
+        writer.flush();
+    }
+
+    public static class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        public void increment()
+        {
+            value.incrementAndGet();
+        }
+
+        public void add(long amount)
+        {
+            value.addAndGet(amount);
+        }
+
+        public long get()
+        {
+            return value.get();
+        }
+    }
+
+    public static class Gauge {
+        private final AtomicLong value = new AtomicLong();
+
+        public void set(long newValue)
+        {
+            value.set(newValue);
+        }
+
+        public long get()
+        {
+            return value.get();
+        }
+    }
+
+    /**
+     * Histogram of non-negative values. Values below SUB_BUCKETS get a bucket each;
+     * every power of two above that is split into SUB_BUCKETS equal buckets.
+     */
+    public static class Histogram {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value)
+        {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets.incrementAndGet(bucketIndex(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long currentMax = max.get();
+            while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+                currentMax = max.get();
+            }
+        }
+
+        public long getCount()
+        {
+            return count.get();
+        }
+
+        public long getMax()
+        {
+            return max.get();
+        }
+
+        public long getMean()
+        {
+            long n = count.get();
+            return n == 0 ? 0 : sum.get() / n;
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the given percentile, 0 if empty
+         */
+        public long getPercentile(double percentile)
+        {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100 * n);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += buckets.get(i);
+                if (seen >= Math.max(1, rank)) {
+                    return Math.min(bucketUpperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        static int bucketIndex(long value)
+        {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        static long bucketUpperBound(int index)
+        {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long subBucket = index % SUB_BUCKETS;
+            long lower = (1L << exponent) + (subBucket << (exponent - SUB_BUCKET_BITS));
+            return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+        }
+    }
+}
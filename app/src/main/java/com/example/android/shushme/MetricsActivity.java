@@ -0,0 +1,137 @@
+package com.example.android.shushme;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.View;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+/**
+ * Debug screen showing a snapshot of the in-process metrics
+ * and the persisted transition suppression counters
+ */
+public class MetricsActivity extends AppCompatActivity {
+
+    public static final String TAG = MetricsActivity.class.getSimpleName();
+
+    // the synthetic data loaded by the test data button, the same every time
+    private static final long SYNTHETIC_SEED = 42;
+    private static final int SYNTHETIC_PLACE_COUNT = 1000;
+    private static final int SYNTHETIC_VISITS = 20;
+
+    private TextView metricsTextView;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_metrics);
+        metricsTextView = (TextView) findViewById(R.id.metrics_text_view);
+        // the test data goes into the real places table, so never offer it in release builds
+        if (BuildConfig.DEBUG) {
+            findViewById(R.id.synthetic_generate_button).setVisibility(View.VISIBLE);
+        }
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    public void onRefreshClicked(View view)
+    {
+        refresh();
+    }
+
+    // Writes the report to the app's external files directory, where it can be pulled with adb
+    public void onExportClicked(View view)
+    {
+        final Context appContext = getApplicationContext();
+        AppExecutors.getInstance().background().execute(() -> {
+            File directory = appContext.getExternalFilesDir(null);
+            String message = appContext.getString(R.string.metrics_export_failed);
+            if (directory != null) {
+                File file = new File(directory, "metrics.txt");
+                try (PrintWriter writer = new PrintWriter(new FileWriter(file))) {
+                    writeReport(appContext, writer);
+                    message = appContext.getString(R.string.metrics_exported, file.getAbsolutePath());
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not export metrics: " + e.getMessage());
+                }
+            }
+            final String toastMessage = message;
+            AppExecutors.getInstance().runOnMain(() ->
+                    Toast.makeText(appContext, toastMessage, Toast.LENGTH_LONG).show());
+        });
+    }
+
+    // Loads synthetic places into the database, and writes them as KML with a movement trace
+    // to the app's external files directory, for load testing with a mock location app.
+    // Debug builds only.
+    public void onGenerateClicked(View view)
+    {
+        if (!BuildConfig.DEBUG) {
+            return;
+        }
+        final Context appContext = getApplicationContext();
+        AppExecutors.getInstance().background().execute(() -> {
+            PlaceTable places = SyntheticPlaces.generatePlaces(SYNTHETIC_SEED, SYNTHETIC_PLACE_COUNT);
+            int inserted = SyntheticPlaces.insertPlaces(appContext, places);
+            File directory = appContext.getExternalFilesDir(null);
+            String message = appContext.getString(R.string.synthetic_generate_failed);
+            if (directory != null) {
+                try (PrintWriter writer = new PrintWriter(new FileWriter(new File(directory, "synthetic_places.kml")))) {
+                    SyntheticPlaces.writeKml(places, writer);
+                    SyntheticPlaces.writeTrace(SyntheticPlaces.generateTrace(SYNTHETIC_SEED, places,
+                            SYNTHETIC_VISITS, System.currentTimeMillis()),
+                            new File(directory, "synthetic_trace.bin"));
+                    message = appContext.getString(R.string.synthetic_generated, inserted, directory.getAbsolutePath());
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not save synthetic data: " + e.getMessage());
+                }
+            }
+            final String toastMessage = message;
+            AppExecutors.getInstance().runOnMain(() ->
+                    Toast.makeText(appContext, toastMessage, Toast.LENGTH_LONG).show());
+        });
+    }
+
+    // The counters live in shared preferences, so build the report in the background
+    private void refresh()
+    {
+        final Context appContext = getApplicationContext();
+        AppExecutors.getInstance().background().execute(() -> {
+            StringWriter report = new StringWriter();
+            writeReport(appContext, new PrintWriter(report));
+            AppExecutors.getInstance().runOnMain(() -> metricsTextView.setText(report.toString()));
+        });
+    }
+
+    /**
+     * Writes all metrics and counters. Also used for `adb shell dumpsys activity top`.
+     */
+    static void writeReport(Context context, PrintWriter writer)
+    {
+        Metrics.dump(writer);
+        TransitionHysteresis hysteresis = new TransitionHysteresis(context);
+        writer.println("counter hysteresis.suppressed_flaps " + hysteresis.getSuppressedFlapCount());
+        writer.println("counter hysteresis.rejected_low_accuracy " + hysteresis.getRejectedLowAccuracyCount());
+        writer.flush();
+    }
+
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writeReport(this, writer);
+    }
+}
@@ -0,0 +1,177 @@
+package com.example.android.shushme;
+
+import java.util.Arrays;
+
+/**
+ * Sorts the place list by distance from a location.
+ * The distances and the new order are computed on a background thread over primitive
+ * coordinate arrays; only the resulting position changes are handed back to the main thread.
+ */
+public class PlaceDistanceSorter {
+
+    // mean radius of the earth, used by the haversine formula
+    private static final double EARTH_RADIUS_IN_METERS = 6371008.8;
+
+    // if the incremental insertion sort needs more shifts than this many per item,
+    // the list is too far out of order and a full sort is cheaper
+    private static final int MAX_SHIFTS_PER_ITEM = 8;
+
+    /**
+     * Receives the result of a sort pass on the main thread
+     */
+    public interface Listener {
+        /**
+         * Called with (from, to) pairs which, applied in order, sort the list
+         */
+        void onMovesComputed(int[] moves);
+
+        /**
+         * Called when the list was far out of order. permutation[i] is the
+         * current position of the item that belongs at position i.
+         */
+        void onPermutationComputed(int[] permutation);
+    }
+
+    private final Listener listener;
+    // incremented for every requested pass so stale results can be dropped
+    private int generation;
+
+    public PlaceDistanceSorter(Listener listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts a background sort pass. Must be called on the main thread.
+     *
+     * @param table     the places
+     * @param rows      the rows of the table in their current display order
+     * @param latitude  latitude of the location to sort from
+     * @param longitude longitude of the location to sort from
+     */
+    public void sort(PlaceTable table, final int[] rows, final double latitude, final double longitude)
+    {
+        final int size = rows.length;
+        final int requestGeneration = ++generation;
+        if (size < 2) {
+            return;
+        }
+
+        // snapshot the coordinates and the order on the main thread
+        final double[] latitudes = new double[size];
+        final double[] longitudes = new double[size];
+        final int[] snapshot = rows.clone();
+        for (int i = 0; i < size; i++) {
+            int row = rows[i];
+            if (table.hasLatLng(row)) {
+                latitudes[i] = table.getLatitude(row);
+                longitudes[i] = table.getLongitude(row);
+            }
+            else {
+                latitudes[i] = Geofencing.DEFAULT_LATITUDE;
+                longitudes[i] = Geofencing.DEFAULT_LONGITUDE;
+            }
+        }
+
+        AppExecutors.getInstance().background().execute(() -> {
+            float[] distances = computeDistances(latitudes, longitudes, latitude, longitude);
+            final int[] moves = computeMoves(distances.clone(), size * MAX_SHIFTS_PER_ITEM);
+            final int[] permutation = moves == null ? computePermutation(distances) : null;
+
+            AppExecutors.getInstance().runOnMain(() -> {
+                // drop the result if a newer pass was requested or the list changed meanwhile
+                if (requestGeneration != generation || !Arrays.equals(rows, snapshot)) {
+                    return;
+                }
+                if (moves != null) {
+                    if (moves.length > 0) {
+                        listener.onMovesComputed(moves);
+                    }
+                }
+                else {
+                    listener.onPermutationComputed(permutation);
+                }
+            });
+        });
+    }
+
+    /**
+     * Drops the result of any pass still running in the background
+     */
+    public void cancel()
+    {
+        generation++;
+    }
+
+    /**
+     * Computes the great-circle distance in meters from the origin to each coordinate
+     */
+    static float[] computeDistances(double[] latitudes, double[] longitudes,
+                                    double originLatitude, double originLongitude)
+    {
+        float[] distances = new float[latitudes.length];
+        double originLatRad = Math.toRadians(originLatitude);
+        double cosOriginLat = Math.cos(originLatRad);
+        for (int i = 0; i < latitudes.length; i++) {
+            double latRad = Math.toRadians(latitudes[i]);
+            double sinDLat = Math.sin((latRad - originLatRad) / 2);
+            double sinDLng = Math.sin(Math.toRadians(longitudes[i] - originLongitude) / 2);
+            double a = sinDLat * sinDLat + cosOriginLat * Math.cos(latRad) * sinDLng * sinDLng;
+            distances[i] = (float) (2 * EARTH_RADIUS_IN_METERS * Math.asin(Math.min(1.0, Math.sqrt(a))));
+        }
+        return distances;
+    }
+
+    /**
+     * Insertion sorts the distances in place, recording each item that has to move
+     * as a (from, to) pair. A list that was sorted for a nearby location is almost
+     * sorted already, so this usually finishes in one pass with only a few moves.
+     *
+     * @return the moves, or null if more than maxShifts shifts were needed
+     */
+    static int[] computeMoves(float[] distances, int maxShifts)
+    {
+        int[] moves = new int[16];
+        int moveCount = 0;
+        int shifts = 0;
+        for (int i = 1; i < distances.length; i++) {
+            float current = distances[i];
+            int j = i - 1;
+            while (j >= 0 && distances[j] > current) {
+                distances[j + 1] = distances[j];
+                j--;
+                if (++shifts > maxShifts) {
+                    return null;
+                }
+            }
+            distances[j + 1] = current;
+            if (j + 1 != i) {
+                if (moveCount + 2 > moves.length) {
+                    moves = Arrays.copyOf(moves, moves.length * 2);
+                }
+                moves[moveCount++] = i;
+                moves[moveCount++] = j + 1;
+            }
+        }
+        return Arrays.copyOf(moves, moveCount);
+    }
+
+    /**
+     * Fully sorts the positions by distance without boxing.
+     * Distances are non-negative, so their float bits sort in the same order as their values;
+     * packing them above the position gives a primitive long[] sort with a stable tie-break.
+     */
+    static int[] computePermutation(float[] distances)
+    {
+        long[] keys = new long[distances.length];
+        for (int i = 0; i < distances.length; i++) {
+            keys[i] = ((long) Float.floatToIntBits(distances[i]) << 32) | i;
+        }
+        Arrays.sort(keys);
+        int[] permutation = new int[distances.length];
+        for (int i = 0; i < keys.length; i++) {
+            permutation[i] = (int) keys[i];
+        }
+        return permutation;
+    }
+}
@@ -17,31 +17,65 @@ package com.example.android.shushme;
 */
 
 import android.content.Context;
+import androidx.core.content.ContextCompat;
 import androidx.recyclerview.widget.RecyclerView;
 
+import android.util.TypedValue;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
-import com.google.android.libraries.places.api.model.Place;
-
-import java.util.List;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 
 public class PlaceListAdapter extends RecyclerView.Adapter<PlaceListAdapter.PlaceViewHolder> {
 
     private Context mContext;
-    private List<Place> places;
+    // the places, and the rows of the table shown, in display order
+    private PlaceTable table = PlaceTable.EMPTY;
+    private int[] rows = new int[0];
+    private OnPlaceLongClickListener mLongClickListener;
+    private OnSelectionChangedListener mSelectionChangedListener;
+    // Place IDs of the places selected for deleting. While any are selected, a click toggles a place.
+    private final Set<String> selectedIds = new HashSet<>();
+    // the normal background of a place, resolved once instead of on every bind
+    private final int itemBackgroundResource;
+
+    /**
+     * Receives long clicks on a place in the list
+     */
+    public interface OnPlaceLongClickListener {
+        void onPlaceLongClick(String placeId, String placeName);
+    }
 
     /**
-     * Constructor using the context and the db cursor
+     * Receives changes to the selected places
+     */
+    public interface OnSelectionChangedListener {
+        void onSelectionChanged(int selectedCount);
+    }
+
+    /**
+     * Constructor using the context
      *
      * @param context the calling context/activity
      */
-    public PlaceListAdapter(Context context, List<Place> places) {
+    public PlaceListAdapter(Context context) {
         this.mContext = context;
-        this.places = places;
+        TypedValue value = new TypedValue();
+        context.getTheme().resolveAttribute(android.R.attr.selectableItemBackground, value, true);
+        itemBackgroundResource = value.resourceId;
+    }
+
+    public void setOnPlaceLongClickListener(OnPlaceLongClickListener listener) {
+        this.mLongClickListener = listener;
+    }
+
+    public void setOnSelectionChangedListener(OnSelectionChangedListener listener) {
+        this.mSelectionChangedListener = listener;
     }
 
     /**
@@ -60,47 +94,228 @@ public class PlaceListAdapter extends RecyclerView.Adapter<PlaceListAdapter.Plac
     }
 
     /**
-     * Binds the data from a particular position in the cursor to the corresponding view holder
+     * Binds the data from a particular position in the table to the corresponding view holder
      *
      * @param holder   The PlaceViewHolder instance corresponding to the required position
      * @param position The current position that needs to be loaded with data
      */
     @Override
     public void onBindViewHolder(PlaceViewHolder holder, int position) {
-        // get the name and address of the Place in the current position
-        Place place = places.get(position);
-        String placeName = place.getName();
-        String placeAddress = place.getAddress();
+        // get the row of the Place in the current position
+        int row = rows[position];
 
-        // set the texts of the holder
-        holder.nameTextView.setText(placeName);
-        holder.addressTextView.setText(placeAddress);
+        // set the texts of the holder straight from the table's characters, without creating Strings
+        char[] chars = table.getChars();
+        holder.nameTextView.setText(chars, table.getStart(row, PlaceTable.NAME),
+                table.getLength(row, PlaceTable.NAME));
+        holder.addressTextView.setText(chars, table.getStart(row, PlaceTable.ADDRESS),
+                table.getLength(row, PlaceTable.ADDRESS));
+        if (selectedIds.isEmpty() || !selectedIds.contains(table.getId(row)))
+        {
+            holder.itemView.setBackgroundResource(itemBackgroundResource);
+        }
+        else
+        {
+            holder.itemView.setBackgroundColor(ContextCompat.getColor(mContext, R.color.placeSelected));
+        }
     }
 
 
     /**
-     * Returns the number of items in the cursor
+     * Returns the number of items shown
      *
-     * @return Number of items in the cursor, or 0 if null
+     * @return Number of rows shown
      */
     @Override
     public int getItemCount() {
-        if (places != null) {
-            return places.size();
+        return rows.length;
+    }
+
+    /**
+     * Shows other places
+     *
+     * @param table the places
+     * @param rows  the rows of the table to show, in display order.
+     *              The adapter reorders the array, so don't use it afterwards.
+     */
+    public void swapPlaces(PlaceTable table, int[] rows)
+    {
+        this.table = table;
+        this.rows = rows;
+        // Force the RecyclerView to refresh
+        this.notifyDataSetChanged();
+    }
+
+    /**
+     * Shows places added to the end of the table, without rebinding the places already shown
+     *
+     * @param table     the places, its first rows must be the rows of the current table
+     * @param addedRows the rows to add at the end of the list
+     */
+    public void appendPlaces(PlaceTable table, int[] addedRows)
+    {
+        int start = rows.length;
+        int[] newRows = new int[start + addedRows.length];
+        System.arraycopy(rows, 0, newRows, 0, start);
+        System.arraycopy(addedRows, 0, newRows, start, addedRows.length);
+        this.table = table;
+        this.rows = newRows;
+        notifyItemRangeInserted(start, addedRows.length);
+    }
+
+    /**
+     * Removes deleted places from the list, without rebinding the places that stay
+     *
+     * @param table       the places without the deleted ones, in the same order
+     * @param removedRows the rows of the current table that were deleted, sorted
+     */
+    public void removePlaces(PlaceTable table, int[] removedRows)
+    {
+        int[] oldRows = rows;
+        boolean isSelectionChanged = false;
+        for (int row : removedRows) {
+            isSelectionChanged |= !selectedIds.isEmpty() && selectedIds.remove(this.table.getId(row));
+        }
+        this.table = table;
+        this.rows = withoutRows(oldRows, removedRows);
+        // from the end, so the positions of the places not yet notified stay valid
+        for (int position = oldRows.length - 1; position >= 0; position--) {
+            if (Arrays.binarySearch(removedRows, oldRows[position]) >= 0) {
+                notifyItemRemoved(position);
+            }
+        }
+        // the deleted places were the selected ones, so the others don't need rebinding
+        if (isSelectionChanged && mSelectionChangedListener != null) {
+            mSelectionChangedListener.onSelectionChanged(selectedIds.size());
+        }
+    }
+
+    /**
+     * Maps rows of a table to the rows of the same table without some of them
+     *
+     * @param rows        rows of the old table
+     * @param removedRows the rows that were removed, sorted
+     * @return the rows that weren't removed, in the same order, as rows of the new table
+     */
+    static int[] withoutRows(int[] rows, int[] removedRows)
+    {
+        int[] keptRows = new int[rows.length];
+        int count = 0;
+        for (int row : rows) {
+            int index = Arrays.binarySearch(removedRows, row);
+            if (index < 0) {
+                // moves up by the number of removed rows before it
+                keptRows[count++] = row - (-index - 1);
+            }
+        }
+        return Arrays.copyOf(keptRows, count);
+    }
+
+    /**
+     * @return the Place ID of the place at a position in the list
+     */
+    public String getPlaceId(int position)
+    {
+        return table.getId(rows[position]);
+    }
+
+    /**
+     * Selects a place, which starts selecting places for deleting
+     */
+    public void select(String placeId)
+    {
+        if (selectedIds.add(placeId)) {
+            onSelectionChanged();
+        }
+    }
+
+    // Selects or unselects the place at a position
+    private void toggleSelection(int position)
+    {
+        String placeId = getPlaceId(position);
+        if (!selectedIds.remove(placeId)) {
+            selectedIds.add(placeId);
+        }
+        notifyItemChanged(position);
+        if (mSelectionChangedListener != null) {
+            mSelectionChangedListener.onSelectionChanged(selectedIds.size());
+        }
+    }
+
+    /**
+     * @return a copy of the Place IDs of the selected places
+     */
+    public Set<String> getSelectedIds()
+    {
+        return new HashSet<>(selectedIds);
+    }
+
+    public void clearSelection()
+    {
+        if (!selectedIds.isEmpty()) {
+            selectedIds.clear();
+            onSelectionChanged();
+        }
+    }
+
+    private void onSelectionChanged()
+    {
+        // the selected places can be anywhere in the list
+        notifyDataSetChanged();
+        if (mSelectionChangedListener != null) {
+            mSelectionChangedListener.onSelectionChanged(selectedIds.size());
         }
-        else {
-            return 0;
+    }
+
+    public PlaceTable getTable()
+    {
+        return table;
+    }
+
+    /**
+     * @return the rows of the table in the order they are shown. Don't change the array.
+     */
+    public int[] getRows()
+    {
+        return rows;
+    }
+
+    /**
+     * Moves places to new positions without rebinding them
+     *
+     * @param moves (from, to) pairs, applied in order
+     */
+    public void applyMoves(int[] moves)
+    {
+        for (int i = 0; i < moves.length; i += 2) {
+            int from = moves[i];
+            int to = moves[i + 1];
+            int movedRow = rows[from];
+            if (from < to) {
+                System.arraycopy(rows, from + 1, rows, from, to - from);
+            }
+            else {
+                System.arraycopy(rows, to, rows, to + 1, from - to);
+            }
+            rows[to] = movedRow;
+            notifyItemMoved(from, to);
         }
     }
 
-    // replaces the current places Place List with a new one
-    public void swapPlaces(List<Place> places)
+    /**
+     * Reorders all places at once, used when the list is too far out of order to move item by item
+     *
+     * @param permutation permutation[i] is the current position of the place that belongs at i
+     */
+    public void applyPermutation(int[] permutation)
     {
-        this.places = places;
-        if (places != null) {
-            // Force the RecyclerView to refresh
-            this.notifyDataSetChanged();
+        int[] reordered = new int[permutation.length];
+        for (int i = 0; i < permutation.length; i++) {
+            reordered[i] = rows[permutation[i]];
         }
+        // reorder in place, so a sort pass started on getRows() can tell the order changed
+        System.arraycopy(reordered, 0, rows, 0, reordered.length);
+        notifyDataSetChanged();
     }
 
     /**
@@ -115,6 +330,28 @@ public class PlaceListAdapter extends RecyclerView.Adapter<PlaceListAdapter.Plac
             super(itemView);
             nameTextView = (TextView) itemView.findViewById(R.id.name_text_view);
             addressTextView = (TextView) itemView.findViewById(R.id.address_text_view);
+            itemView.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View view) {
+                    int position = getAdapterPosition();
+                    // a click only does something while places are being selected
+                    if (!selectedIds.isEmpty() && position != RecyclerView.NO_POSITION) {
+                        toggleSelection(position);
+                    }
+                }
+            });
+            itemView.setOnLongClickListener(new View.OnLongClickListener() {
+                @Override
+                public boolean onLongClick(View view) {
+                    int position = getAdapterPosition();
+                    if (mLongClickListener == null || position == RecyclerView.NO_POSITION) {
+                        return false;
+                    }
+                    int row = rows[position];
+                    mLongClickListener.onPlaceLongClick(table.getId(row), table.getString(row, PlaceTable.NAME));
+                    return true;
+                }
+            });
         }
 
     }
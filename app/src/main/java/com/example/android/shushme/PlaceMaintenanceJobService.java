@@ -0,0 +1,304 @@
+package com.example.android.shushme;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.ContentProviderOperation;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.example.android.shushme.provider.PlaceContract;
+import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+import com.example.android.shushme.provider.PlaceContract.ScheduleEntry;
+import com.example.android.shushme.provider.PlaceContract.SetMemberEntry;
+import com.google.android.gms.common.api.ApiException;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.android.libraries.places.api.model.Place;
+import com.google.android.libraries.places.api.net.FetchPlaceRequest;
+import com.google.android.libraries.places.api.net.FetchPlaceResponse;
+import com.google.android.libraries.places.api.net.PlacesClient;
+import com.google.android.libraries.places.api.net.PlacesStatusCodes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Checks the stored Place IDs against the Places API while the device is idle and charging.
+ * Google refreshes Place IDs from time to time, and fetching a place by an old ID
+ * returns it with its current ID. Places whose ID or coordinates changed are rewritten
+ * in one transaction per batch, and only their geofences are registered again.
+ * Places that can't be found anymore are counted and logged, but kept.
+ *
+ * JobScheduler needs Android 5.0 = API 21, older devices keep refreshing on launch only.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class PlaceMaintenanceJobService extends JobService {
+
+    public static final String TAG = PlaceMaintenanceJobService.class.getSimpleName();
+
+    private static final int JOB_ID = 1;
+    private static final long PERIOD_IN_MILLISECONDS = TimeUnit.DAYS.toMillis(1);
+    // places fetched at the same time, and the pause between batches,
+    // so the job doesn't send a burst of requests to the Places API
+    private static final int BATCH_SIZE = 10;
+    private static final long BATCH_PAUSE_IN_MILLISECONDS = 2000;
+    private static final long FETCH_TIMEOUT_IN_SECONDS = 30;
+
+    // set when the job has to stop, checked between batches
+    private volatile boolean isStopped;
+
+    /**
+     * Schedules the daily maintenance job, unless it is already scheduled.
+     * Does nothing below Android 5.0. Don't call on the main thread.
+     */
+    public static void schedule(Context context)
+    {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+        {
+            return;
+        }
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler == null)
+        {
+            return;
+        }
+        // scheduling again would restart the period, so a job that runs less often
+        // than the app is opened would never run
+        for (JobInfo pendingJob : jobScheduler.getAllPendingJobs()) {
+            if (pendingJob.getId() == JOB_ID) {
+                return;
+            }
+        }
+        JobInfo jobInfo = new JobInfo.Builder(JOB_ID, new ComponentName(context, PlaceMaintenanceJobService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setPeriodic(PERIOD_IN_MILLISECONDS)
+                .setPersisted(true)
+                .build();
+        jobScheduler.schedule(jobInfo);
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        isStopped = false;
+        final Context appContext = getApplicationContext();
+        AppExecutors.getInstance().maintenance().execute(() -> {
+            Tracing.beginSection("PlaceMaintenance.run");
+            boolean isFinished = false;
+            try {
+                isFinished = refreshPlaces(appContext);
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(TAG, "Could not save refreshed places: " + e);
+            } finally {
+                Tracing.endSection();
+            }
+            // retry later with back-off if the job was stopped before it got through all places
+            jobFinished(params, !isFinished);
+        });
+        // the work continues on the maintenance thread
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // the device is no longer idle or charging, stop after the current batch
+        isStopped = true;
+        return true;
+    }
+
+    /**
+     * Fetches the stored places in batches and saves the ones that changed.
+     * Runs on the maintenance thread.
+     *
+     * @return true if all places were checked, false if the job was stopped first
+     */
+    private boolean refreshPlaces(Context context) throws RemoteException, OperationApplicationException
+    {
+        List<StoredPlace> storedPlaces = queryStoredPlaces(context);
+        if (storedPlaces.isEmpty())
+        {
+            return true;
+        }
+        PlacesClient placesClient = MainActivity.placesClientFactory.create(context);
+        // only the ID and coordinates are needed, which keeps the requests cheap
+        List<Place.Field> placeFields = Arrays.asList(Place.Field.ID, Place.Field.LAT_LNG);
+
+        int changedPlaces = 0;
+        // new Place IDs by old ones, for the fence index
+        Map<String, String> newIds = new HashMap<>();
+        for (int start = 0; start < storedPlaces.size(); start += BATCH_SIZE) {
+            if (isStopped) {
+                break;
+            }
+            if (start > 0) {
+                try {
+                    Thread.sleep(BATCH_PAUSE_IN_MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            List<StoredPlace> batch = storedPlaces.subList(start, Math.min(start + BATCH_SIZE, storedPlaces.size()));
+            List<Task<FetchPlaceResponse>> fetchTasks = new ArrayList<>();
+            for (StoredPlace storedPlace : batch) {
+                fetchTasks.add(placesClient.fetchPlace(FetchPlaceRequest.newInstance(storedPlace.placeId, placeFields)));
+            }
+            try {
+                Tasks.await(Tasks.whenAllComplete(fetchTasks), FETCH_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                // try the places of this batch again next time
+                Log.e(TAG, "Could not fetch places: " + e);
+                continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+            Map<String, String> batchNewIds = new HashMap<>();
+            for (int i = 0; i < batch.size(); i++) {
+                StoredPlace storedPlace = batch.get(i);
+                Task<FetchPlaceResponse> fetchTask = fetchTasks.get(i);
+                Metrics.counter(Metrics.MAINTENANCE_PLACES_CHECKED).increment();
+                if (!fetchTask.isSuccessful())
+                {
+                    Exception exception = fetchTask.getException();
+                    if (exception instanceof ApiException
+                            && ((ApiException) exception).getStatusCode() == PlacesStatusCodes.NOT_FOUND)
+                    {
+                        Log.w(TAG, "Place ID no longer exists: " + storedPlace.placeId);
+                        Metrics.counter(Metrics.MAINTENANCE_PLACES_NOT_FOUND).increment();
+                    }
+                    continue;
+                }
+                Place place = fetchTask.getResult().getPlace();
+                if (place.getId() == null || place.getLatLng() == null || storedPlace.isSameAs(place))
+                {
+                    continue;
+                }
+                addRewrite(operations, storedPlace, place);
+                if (!place.getId().equals(storedPlace.placeId))
+                {
+                    batchNewIds.put(storedPlace.placeId, place.getId());
+                }
+                changedPlaces++;
+            }
+            if (!operations.isEmpty())
+            {
+                context.getContentResolver().applyBatch(PlaceContract.AUTHORITY, operations);
+                newIds.putAll(batchNewIds);
+            }
+        }
+
+        if (changedPlaces > 0)
+        {
+            onPlacesChanged(context, changedPlaces, newIds);
+        }
+        return !isStopped;
+    }
+
+    // Rewrites the place's row, and its schedules and set members if the Place ID changed
+    private static void addRewrite(ArrayList<ContentProviderOperation> operations, StoredPlace storedPlace, Place place)
+    {
+        String[] selectionArgs = new String[]{storedPlace.placeId};
+        operations.add(ContentProviderOperation.newUpdate(PlaceEntry.CONTENT_URI)
+                .withSelection(PlaceEntry.COLUMN_PLACE_ID + "=?", selectionArgs)
+                .withValue(PlaceEntry.COLUMN_PLACE_ID, place.getId())
+                .withValue(PlaceEntry.COLUMN_LATITUDE, place.getLatLng().latitude)
+                .withValue(PlaceEntry.COLUMN_LONGITUDE, place.getLatLng().longitude)
+                .build());
+        if (place.getId().equals(storedPlace.placeId))
+        {
+            return;
+        }
+        operations.add(ContentProviderOperation.newUpdate(ScheduleEntry.CONTENT_URI)
+                .withSelection(ScheduleEntry.COLUMN_PLACE_ID + "=?", selectionArgs)
+                .withValue(ScheduleEntry.COLUMN_PLACE_ID, place.getId())
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(SetMemberEntry.CONTENT_URI)
+                .withSelection(SetMemberEntry.COLUMN_PLACE_ID + "=?", selectionArgs)
+                .withValue(SetMemberEntry.COLUMN_PLACE_ID, place.getId())
+                .build());
+    }
+
+    // Drops the caches of the old rows, renames the fences in the index
+    // and registers the changed fences again
+    private static void onPlacesChanged(Context context, int changedPlaces, Map<String, String> newIds)
+    {
+        Metrics.counter(Metrics.MAINTENANCE_PLACES_REFRESHED).add(changedPlaces);
+        Log.i(TAG, "Refreshed " + changedPlaces + " places");
+        QuietSchedules.invalidate();
+        LocalGeofenceEngine.invalidate();
+        if (!newIds.isEmpty())
+        {
+            // the receiver names the place that triggered from the index, which has the old IDs
+            FenceIndex.renameFences(context, newIds);
+        }
+        if (!MainActivity.isGeofencingEnabled(context))
+        {
+            return;
+        }
+        PlaceSets placeSets = new PlaceSets(context);
+        // the fences are clustered again, so a moved place may join or leave a cluster
+        new Geofencing(context).refreshGeofences(placeSets.loadMemberIds(placeSets.getActiveSetId()));
+    }
+
+    private static List<StoredPlace> queryStoredPlaces(Context context)
+    {
+        List<StoredPlace> storedPlaces = new ArrayList<>();
+        Cursor cursor = context.getContentResolver().query(
+                PlaceEntry.CONTENT_URI,
+                new String[]{PlaceEntry.COLUMN_PLACE_ID, PlaceEntry.COLUMN_LATITUDE, PlaceEntry.COLUMN_LONGITUDE},
+                null,
+                null,
+                null
+        );
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                storedPlaces.add(new StoredPlace(cursor.getString(0),
+                        cursor.isNull(1) ? null : cursor.getDouble(1),
+                        cursor.isNull(2) ? null : cursor.getDouble(2)));
+            }
+            // always close the cursor
+            cursor.close();
+        }
+        return storedPlaces;
+    }
+
+    // A row of the places table, null coordinates if they were never cached
+    private static class StoredPlace {
+        final String placeId;
+        final Double latitude;
+        final Double longitude;
+
+        StoredPlace(String placeId, Double latitude, Double longitude)
+        {
+            this.placeId = placeId;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        boolean isSameAs(Place place)
+        {
+            return placeId.equals(place.getId())
+                    && latitude != null && latitude == place.getLatLng().latitude
+                    && longitude != null && longitude == place.getLatLng().longitude;
+        }
+    }
+}
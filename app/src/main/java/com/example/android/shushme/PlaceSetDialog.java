@@ -0,0 +1,117 @@
+package com.example.android.shushme;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.widget.EditText;
+import android.widget.Toast;
+
+import java.util.List;
+import java.util.Set;
+
+import androidx.appcompat.app.AlertDialog;
+
+/**
+ * Dialogs to create a place set and to pick which sets a place is in.
+ * The provider is only touched in the background; the listener is called
+ * on the main thread once the change is saved.
+ */
+public class PlaceSetDialog {
+
+    /**
+     * Called on the main thread after sets or their members changed
+     */
+    public interface Listener {
+        /**
+         * @param activeSetId the set that should be active now
+         */
+        void onPlaceSetsChanged(long activeSetId);
+    }
+
+    private final Context context;
+    private final PlaceSets placeSets;
+    private final Listener listener;
+
+    public PlaceSetDialog(Context context, Listener listener)
+    {
+        this.context = context;
+        this.placeSets = new PlaceSets(context);
+        this.listener = listener;
+    }
+
+    // Asks for a name, creates an empty set and makes it active
+    public void showCreate()
+    {
+        final EditText nameEditText = new EditText(context);
+        nameEditText.setHint(R.string.place_set_name_hint);
+        nameEditText.setSingleLine();
+        new AlertDialog.Builder(context)
+                .setTitle(R.string.place_set_new)
+                .setView(nameEditText)
+                .setPositiveButton(android.R.string.ok, (dialog, which) -> {
+                    final String name = nameEditText.getText().toString().trim();
+                    if (TextUtils.isEmpty(name)) {
+                        return;
+                    }
+                    AppExecutors.getInstance().background().execute(() -> {
+                        long setId = placeSets.createSet(name);
+                        AppExecutors.getInstance().runOnMain(() -> listener.onPlaceSetsChanged(setId));
+                    });
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    /**
+     * Loads the sets and the ones the place is in, then shows them as a checklist.
+     * Only the sets whose box changed are written.
+     */
+    public void showMembership(final String placeId, final CharSequence placeName)
+    {
+        final long activeSetId = placeSets.getActiveSetId();
+        AppExecutors.getInstance().background().execute(() -> {
+            final List<PlaceSets.PlaceSet> sets = placeSets.loadSets();
+            // the first set is the built-in set of all places, which can't be edited
+            sets.remove(0);
+            final boolean[] wasMember = new boolean[sets.size()];
+            for (int i = 0; i < sets.size(); i++) {
+                Set<String> memberIds = placeSets.loadMemberIds(sets.get(i).id);
+                wasMember[i] = memberIds.contains(placeId);
+            }
+            AppExecutors.getInstance().runOnMain(() ->
+                    showMembership(placeId, placeName, sets, wasMember, activeSetId));
+        });
+    }
+
+    private void showMembership(final String placeId, CharSequence placeName,
+                                final List<PlaceSets.PlaceSet> sets, final boolean[] wasMember,
+                                final long activeSetId)
+    {
+        if (sets.isEmpty()) {
+            Toast.makeText(context, R.string.place_set_none, Toast.LENGTH_LONG).show();
+            return;
+        }
+        CharSequence[] names = new CharSequence[sets.size()];
+        for (int i = 0; i < sets.size(); i++) {
+            names[i] = sets.get(i).name;
+        }
+        final boolean[] isMember = wasMember.clone();
+        new AlertDialog.Builder(context)
+                .setTitle(context.getString(R.string.place_set_membership_title, placeName))
+                .setMultiChoiceItems(names, isMember,
+                        (dialog, which, isChecked) -> isMember[which] = isChecked)
+                .setPositiveButton(android.R.string.ok, (dialog, which) ->
+                        AppExecutors.getInstance().background().execute(() -> {
+                            for (int i = 0; i < sets.size(); i++) {
+                                if (isMember[i] && !wasMember[i]) {
+                                    placeSets.addMember(sets.get(i).id, placeId);
+                                }
+                                else if (!isMember[i] && wasMember[i]) {
+                                    placeSets.removeMember(sets.get(i).id, placeId);
+                                }
+                            }
+                            AppExecutors.getInstance().runOnMain(() -> listener.onPlaceSetsChanged(activeSetId));
+                        }))
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+}
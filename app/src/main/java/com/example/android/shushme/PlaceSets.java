@@ -0,0 +1,160 @@
+package com.example.android.shushme;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.shushme.provider.PlaceContract.SetEntry;
+import com.example.android.shushme.provider.PlaceContract.SetMemberEntry;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Named sets of places, like "Work" or "Travel", and which one is active.
+ * Only the places of the active set are registered as geofences.
+ * The built-in ALL_PLACES set contains every saved place and is active by default.
+ *
+ * Everything except reading and writing the active set ID queries the provider,
+ * so don't call it on the main thread.
+ */
+public class PlaceSets {
+
+    // ID of the built-in set of all places. Rows in the sets table start at 1.
+    public static final long ALL_PLACES = 0;
+
+    private static final String PREFERENCES_NAME = "place_sets";
+    private static final String KEY_ACTIVE_SET = "active_set_id";
+
+    private final Context context;
+    private final SharedPreferences preferences;
+
+    /**
+     * A set as shown in the set picker
+     */
+    public static class PlaceSet {
+        public final long id;
+        public final String name;
+
+        public PlaceSet(long id, String name)
+        {
+            this.id = id;
+            this.name = name;
+        }
+
+        // ArrayAdapter shows toString()
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    public PlaceSets(Context context)
+    {
+        this.context = context.getApplicationContext();
+        preferences = this.context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    public long getActiveSetId()
+    {
+        return preferences.getLong(KEY_ACTIVE_SET, ALL_PLACES);
+    }
+
+    public void setActiveSetId(long setId)
+    {
+        preferences.edit().putLong(KEY_ACTIVE_SET, setId).apply();
+    }
+
+    /**
+     * @return all sets sorted by name, after the built-in set of all places
+     */
+    public List<PlaceSet> loadSets()
+    {
+        List<PlaceSet> sets = new ArrayList<>();
+        sets.add(new PlaceSet(ALL_PLACES, context.getString(R.string.place_set_all)));
+        Cursor cursor = context.getContentResolver().query(
+                SetEntry.CONTENT_URI,
+                new String[]{SetEntry._ID, SetEntry.COLUMN_NAME},
+                null,
+                null,
+                SetEntry.COLUMN_NAME + " COLLATE NOCASE"
+        );
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                sets.add(new PlaceSet(cursor.getLong(0), cursor.getString(1)));
+            }
+            // always close the cursor
+            cursor.close();
+        }
+        return sets;
+    }
+
+    /**
+     * @return the Place IDs in the set, or null for ALL_PLACES, which has no member rows
+     */
+    public Set<String> loadMemberIds(long setId)
+    {
+        if (setId == ALL_PLACES) {
+            return null;
+        }
+        Set<String> placeIds = new HashSet<>();
+        Cursor cursor = context.getContentResolver().query(
+                SetMemberEntry.CONTENT_URI,
+                new String[]{SetMemberEntry.COLUMN_PLACE_ID},
+                SetMemberEntry.COLUMN_SET_ID + "=?",
+                new String[]{String.valueOf(setId)},
+                null
+        );
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                placeIds.add(cursor.getString(0));
+            }
+            cursor.close();
+        }
+        return placeIds;
+    }
+
+    /**
+     * @return the ID of the new set
+     */
+    public long createSet(String name)
+    {
+        ContentValues values = new ContentValues();
+        values.put(SetEntry.COLUMN_NAME, name);
+        Uri uri = context.getContentResolver().insert(SetEntry.CONTENT_URI, values);
+        return ContentUris.parseId(uri);
+    }
+
+    // Deletes the set and its member rows. The places themselves are kept.
+    public void deleteSet(long setId)
+    {
+        String[] selectionArgs = new String[]{String.valueOf(setId)};
+        context.getContentResolver().delete(SetMemberEntry.CONTENT_URI,
+                SetMemberEntry.COLUMN_SET_ID + "=?", selectionArgs);
+        context.getContentResolver().delete(SetEntry.CONTENT_URI,
+                SetEntry._ID + "=?", selectionArgs);
+    }
+
+    public void addMember(long setId, String placeId)
+    {
+        if (setId == ALL_PLACES) {
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put(SetMemberEntry.COLUMN_SET_ID, setId);
+        values.put(SetMemberEntry.COLUMN_PLACE_ID, placeId);
+        context.getContentResolver().insert(SetMemberEntry.CONTENT_URI, values);
+    }
+
+    public void removeMember(long setId, String placeId)
+    {
+        context.getContentResolver().delete(SetMemberEntry.CONTENT_URI,
+                SetMemberEntry.COLUMN_SET_ID + "=? AND " + SetMemberEntry.COLUMN_PLACE_ID + "=?",
+                new String[]{String.valueOf(setId), placeId});
+    }
+}
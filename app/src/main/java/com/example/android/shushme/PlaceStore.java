@@ -0,0 +1,368 @@
+package com.example.android.shushme;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import androidx.annotation.VisibleForTesting;
+
+import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.libraries.places.api.model.Place;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the places fetched from the Places API for the whole app.
+ * The places are kept in a compact PlaceTable rather than as Place objects.
+ * Every change publishes a new immutable Snapshot with a higher version, so any thread
+ * can read the current places without locking or copying, and a snapshot never changes
+ * while it is being read. Changes that leave the places as they were publish nothing.
+ *
+ * Listeners are called on the main thread. Changes made before the listeners run
+ * are delivered together as the latest snapshot.
+ */
+public class PlaceStore {
+
+    /**
+     * Called on the main thread with the latest snapshot after the places changed
+     */
+    public interface Listener {
+        void onPlacesChanged(Snapshot snapshot);
+    }
+
+    /**
+     * The places at one point in time. Immutable, so it can be shared between threads.
+     */
+    public static final class Snapshot {
+        // incremented by every change, so readers can tell whether they have seen this one
+        public final long version;
+        // all fetched places in the order they were added
+        public final PlaceTable table;
+        // the oldest version whose places are still the first rows of this table, unchanged.
+        // Places were only added since, so a reader that has seen a version from here on
+        // only has to look at the rows after the ones it has.
+        public final long appendedSince;
+
+        private Snapshot(long version, PlaceTable table, long appendedSince)
+        {
+            this.version = version;
+            this.table = table;
+            this.appendedSince = appendedSince;
+        }
+
+        // Adds the places, or replaces the places with the same IDs where they are,
+        // building the table once. Returns this snapshot if all the places are already in it.
+        private Snapshot withPlaces(Collection<Place> places)
+        {
+            Place[] replacements = null;
+            // the last version of each new place, in the order they were first given
+            Map<String, Place> appended = new LinkedHashMap<>();
+            for (Place place : places) {
+                int existingRow = table.indexOf(place.getId());
+                if (existingRow < 0) {
+                    appended.put(place.getId(), place);
+                }
+                else if (!isSame(existingRow, place)) {
+                    if (replacements == null) {
+                        replacements = new Place[table.size()];
+                    }
+                    replacements[existingRow] = place;
+                }
+            }
+            if (replacements == null && appended.isEmpty()) {
+                return this;
+            }
+            PlaceTable.Builder builder = new PlaceTable.Builder(table.size() + appended.size());
+            for (int row = 0; row < table.size(); row++) {
+                if (replacements != null && replacements[row] != null) {
+                    add(builder, replacements[row]);
+                }
+                else {
+                    builder.addRow(table, row);
+                }
+            }
+            for (Place place : appended.values()) {
+                add(builder, place);
+            }
+            // rows that were only appended leave the earlier rows as readers have them
+            return new Snapshot(version + 1, builder.build(), replacements == null ? appendedSince : version + 1);
+        }
+
+        // Appends the rows whose Place IDs are not in this snapshot.
+        // Returns this snapshot if all of them are in it.
+        private Snapshot withRows(PlaceTable rows)
+        {
+            boolean[] isNew = new boolean[rows.size()];
+            int newCount = 0;
+            for (int row = 0; row < rows.size(); row++) {
+                if (table.indexOf(rows.getId(row)) < 0) {
+                    isNew[row] = true;
+                    newCount++;
+                }
+            }
+            if (newCount == 0) {
+                return this;
+            }
+            PlaceTable.Builder builder = new PlaceTable.Builder(table.size() + newCount);
+            for (int row = 0; row < table.size(); row++) {
+                builder.addRow(table, row);
+            }
+            for (int row = 0; row < rows.size(); row++) {
+                if (isNew[row]) {
+                    builder.addRow(rows, row);
+                }
+            }
+            return new Snapshot(version + 1, builder.build(), appendedSince);
+        }
+
+        // Keeps only the places with the given IDs.
+        // Returns this snapshot if all of them are kept.
+        private Snapshot retaining(Collection<String> placeIds)
+        {
+            boolean[] isKept = new boolean[table.size()];
+            int keptCount = 0;
+            for (String placeId : placeIds) {
+                int row = table.indexOf(placeId);
+                if (row >= 0 && !isKept[row]) {
+                    isKept[row] = true;
+                    keptCount++;
+                }
+            }
+            if (keptCount == table.size()) {
+                return this;
+            }
+            PlaceTable.Builder builder = new PlaceTable.Builder(keptCount);
+            for (int row = 0; row < table.size(); row++) {
+                if (isKept[row]) {
+                    builder.addRow(table, row);
+                }
+            }
+            return new Snapshot(version + 1, builder.build(), version + 1);
+        }
+
+        // Drops the places with the given IDs.
+        // Returns this snapshot if none of them are in it.
+        private Snapshot without(Collection<String> placeIds)
+        {
+            boolean[] isRemoved = new boolean[table.size()];
+            int removedCount = 0;
+            for (String placeId : placeIds) {
+                int row = table.indexOf(placeId);
+                if (row >= 0 && !isRemoved[row]) {
+                    isRemoved[row] = true;
+                    removedCount++;
+                }
+            }
+            if (removedCount == 0) {
+                return this;
+            }
+            PlaceTable.Builder builder = new PlaceTable.Builder(table.size() - removedCount);
+            for (int row = 0; row < table.size(); row++) {
+                if (!isRemoved[row]) {
+                    builder.addRow(table, row);
+                }
+            }
+            return new Snapshot(version + 1, builder.build(), version + 1);
+        }
+
+        private boolean isSame(int row, Place place)
+        {
+            LatLng latLng = place.getLatLng();
+            return table.regionEquals(row, PlaceTable.NAME, place.getName())
+                    && table.regionEquals(row, PlaceTable.ADDRESS, place.getAddress())
+                    && Double.compare(table.getLatitude(row), latLng == null ? Double.NaN : latLng.latitude) == 0
+                    && Double.compare(table.getLongitude(row), latLng == null ? Double.NaN : latLng.longitude) == 0;
+        }
+
+        private static void add(PlaceTable.Builder builder, Place place)
+        {
+            LatLng latLng = place.getLatLng();
+            builder.add(place.getId(), place.getName(), place.getAddress(),
+                    latLng == null ? Double.NaN : latLng.latitude,
+                    latLng == null ? Double.NaN : latLng.longitude,
+                    Geofencing.GEOFENCE_RADIUS_IN_METERS);
+        }
+    }
+
+    private static final Snapshot EMPTY = new Snapshot(0, PlaceTable.EMPTY, 0);
+
+    private static final Object LOCK = new Object();
+    private static volatile PlaceStore sInstance;
+
+    private final AtomicReference<Snapshot> current = new AtomicReference<>(EMPTY);
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    // set while a delivery to the listeners is posted to the main thread
+    private final AtomicBoolean isDispatchPending = new AtomicBoolean();
+    // version of the last snapshot given to the listeners, only used on the main thread
+    private long dispatchedVersion;
+
+    private PlaceStore()
+    {
+    }
+
+    public static PlaceStore getInstance()
+    {
+        if (sInstance == null) {
+            synchronized (LOCK) {
+                if (sInstance == null) {
+                    sInstance = new PlaceStore();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Reads the coordinates cached in the places table, for code that has no snapshot,
+     * like a receiver in a fresh process. Places whose coordinates were never fetched are
+     * skipped. The rows only have the Place ID and the coordinates, with the default radius.
+     * Don't call on the main thread.
+     */
+    public static PlaceTable loadCoordinates(Context context)
+    {
+        Cursor cursor = context.getContentResolver().query(
+                PlaceEntry.CONTENT_URI,
+                new String[]{PlaceEntry.COLUMN_PLACE_ID, PlaceEntry.COLUMN_LATITUDE, PlaceEntry.COLUMN_LONGITUDE},
+                PlaceEntry.COLUMN_LATITUDE + " IS NOT NULL AND " + PlaceEntry.COLUMN_LONGITUDE + " IS NOT NULL",
+                null,
+                null
+        );
+        if (cursor == null) {
+            return PlaceTable.EMPTY;
+        }
+        PlaceTable.Builder builder = new PlaceTable.Builder(cursor.getCount());
+        while (cursor.moveToNext()) {
+            builder.add(cursor.getString(0), null, null, cursor.getDouble(1), cursor.getDouble(2),
+                    Geofencing.GEOFENCE_RADIUS_IN_METERS);
+        }
+        // always close the cursor
+        cursor.close();
+        return builder.build();
+    }
+
+    // starts each test with an empty store
+    @VisibleForTesting
+    static void reset()
+    {
+        synchronized (LOCK) {
+            sInstance = null;
+        }
+    }
+
+    /**
+     * @return the current places. Never null, safe to call from any thread.
+     */
+    public Snapshot snapshot()
+    {
+        return current.get();
+    }
+
+    // Adds a fetched place, or replaces the place with the same ID
+    public void put(Place place)
+    {
+        putAll(Collections.singletonList(place));
+    }
+
+    /**
+     * Adds fetched places, or replaces the places with the same IDs.
+     * Publishes at most one snapshot, so prefer it over put when several places arrive together.
+     */
+    public void putAll(Collection<Place> places)
+    {
+        Snapshot previous;
+        Snapshot next;
+        do {
+            previous = current.get();
+            next = previous.withPlaces(places);
+        } while (next != previous && !current.compareAndSet(previous, next));
+        if (next != previous) {
+            scheduleDispatch();
+        }
+    }
+
+    // Adds rows copied from an earlier snapshot again, for example when deleting them was undone
+    public void restore(PlaceTable rows)
+    {
+        Snapshot previous;
+        Snapshot next;
+        do {
+            previous = current.get();
+            next = previous.withRows(rows);
+        } while (next != previous && !current.compareAndSet(previous, next));
+        if (next != previous) {
+            scheduleDispatch();
+        }
+    }
+
+    // Removes the places whose IDs are not in the collection, for example after they were deleted
+    public void retainOnly(Collection<String> placeIds)
+    {
+        Snapshot previous;
+        Snapshot next;
+        do {
+            previous = current.get();
+            next = previous.retaining(placeIds);
+        } while (next != previous && !current.compareAndSet(previous, next));
+        if (next != previous) {
+            scheduleDispatch();
+        }
+    }
+
+    /**
+     * Removes the places with the given IDs, after the user deleted them
+     *
+     * @return the snapshot without the places
+     */
+    public Snapshot remove(Collection<String> placeIds)
+    {
+        Snapshot previous;
+        Snapshot next;
+        do {
+            previous = current.get();
+            next = previous.without(placeIds);
+        } while (next != previous && !current.compareAndSet(previous, next));
+        if (next != previous) {
+            scheduleDispatch();
+        }
+        return next;
+    }
+
+    public void subscribe(Listener listener)
+    {
+        listeners.add(listener);
+    }
+
+    public void unsubscribe(Listener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    private void scheduleDispatch()
+    {
+        if (isDispatchPending.compareAndSet(false, true)) {
+            AppExecutors.getInstance().runOnMain(this::dispatch);
+        }
+    }
+
+    // Runs on the main thread
+    private void dispatch()
+    {
+        // cleared first, so a change made while the listeners run posts another delivery
+        isDispatchPending.set(false);
+        Snapshot snapshot = current.get();
+        if (snapshot.version == dispatchedVersion) {
+            return;
+        }
+        dispatchedVersion = snapshot.version;
+        for (Listener listener : listeners) {
+            listener.onPlacesChanged(snapshot);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.example.android.shushme;
+
+import java.util.Arrays;
+
+/**
+ * Places stored column by column in primitive arrays, instead of one Place object each.
+ * A row costs two doubles, a float and three offsets, 32 bytes, plus its characters,
+ * so 100k places take about 3 MB besides the text of their IDs, names and addresses.
+ * All strings share one char array and are found by their offsets, so the list can bind
+ * a name with TextView.setText(char[], int, int) without creating a String.
+ * Place IDs are found through an open-addressing hash table of row numbers.
+ *
+ * Immutable once built, so it can be shared between threads. Use a Builder to make one.
+ */
+public final class PlaceTable {
+
+    // the string columns, for getChars, getStart and getLength
+    public static final int ID = 0;
+    public static final int NAME = 1;
+    public static final int ADDRESS = 2;
+    private static final int STRING_COLUMNS = 3;
+
+    public static final PlaceTable EMPTY = new Builder(0).build();
+
+    private final int size;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final float[] radii;
+    private final char[] chars;
+    // start of each string in chars, STRING_COLUMNS per row,
+    // followed by the end of the last string
+    private final int[] offsets;
+    // row + 1 of each ID at its hashed slot, 0 for an empty slot. The length is a power of two.
+    private final int[] slots;
+
+    private PlaceTable(int size, double[] latitudes, double[] longitudes, float[] radii,
+                       char[] chars, int[] offsets)
+    {
+        this.size = size;
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        this.radii = radii;
+        this.chars = chars;
+        this.offsets = offsets;
+
+        // at most half full, so probes stay short
+        int slotCount = Integer.highestOneBit(Math.max(size, 1) * 2) * 2;
+        slots = new int[slotCount];
+        for (int row = 0; row < size; row++) {
+            int slot = hash(chars, getStart(row, ID), getLength(row, ID)) & (slotCount - 1);
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & (slotCount - 1);
+            }
+            slots[slot] = row + 1;
+        }
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public double getLatitude(int row)
+    {
+        return latitudes[row];
+    }
+
+    public double getLongitude(int row)
+    {
+        return longitudes[row];
+    }
+
+    // false if the Places API returned no coordinates for the place
+    public boolean hasLatLng(int row)
+    {
+        return !Double.isNaN(latitudes[row]);
+    }
+
+    public float getRadius(int row)
+    {
+        return radii[row];
+    }
+
+    /**
+     * @return the characters of all strings, shared by the whole table. Don't change them.
+     */
+    public char[] getChars()
+    {
+        return chars;
+    }
+
+    // where the string of the row and column starts in getChars()
+    public int getStart(int row, int column)
+    {
+        return offsets[row * STRING_COLUMNS + column];
+    }
+
+    public int getLength(int row, int column)
+    {
+        int index = row * STRING_COLUMNS + column;
+        return offsets[index + 1] - offsets[index];
+    }
+
+    // Creates a String, so prefer getChars when binding many rows
+    public String getString(int row, int column)
+    {
+        return new String(chars, getStart(row, column), getLength(row, column));
+    }
+
+    public String getId(int row)
+    {
+        return getString(row, ID);
+    }
+
+    /**
+     * @return the row of the Place ID, or -1 if it is not in the table
+     */
+    public int indexOf(String placeId)
+    {
+        int mask = slots.length - 1;
+        int slot = hash(placeId) & mask;
+        while (slots[slot] != 0) {
+            int row = slots[slot] - 1;
+            if (regionEquals(row, ID, placeId)) {
+                return row;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    // whether the string of the row and column equals the value, a null value equals ""
+    public boolean regionEquals(int row, int column, String value)
+    {
+        int start = getStart(row, column);
+        int length = getLength(row, column);
+        if (value == null) {
+            return length == 0;
+        }
+        if (value.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (chars[start + i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // String.hashCode over a range of chars, with the high bits mixed into the low ones
+    private static int hash(char[] chars, int start, int length)
+    {
+        int h = 0;
+        for (int i = start; i < start + length; i++) {
+            h = 31 * h + chars[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static int hash(String value)
+    {
+        int h = value.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Adds rows to a new table. Place IDs must be unique.
+     */
+    public static final class Builder {
+        private int size;
+        private double[] latitudes;
+        private double[] longitudes;
+        private float[] radii;
+        private char[] chars;
+        private int charCount;
+        private int[] offsets;
+
+        public Builder(int capacity)
+        {
+            // a guess, grown as needed
+            this(capacity, capacity * 64);
+        }
+
+        /**
+         * @param capacity     how many rows to make room for, grown as needed
+         * @param charCapacity how many characters the strings of all rows take, grown as needed
+         */
+        public Builder(int capacity, int charCapacity)
+        {
+            latitudes = new double[capacity];
+            longitudes = new double[capacity];
+            radii = new float[capacity];
+            chars = new char[charCapacity];
+            offsets = new int[capacity * STRING_COLUMNS + 1];
+        }
+
+        /**
+         * @param latitude  Double.NaN if the place has no coordinates, the same for longitude
+         * @param name      null is stored as ""
+         * @param address   null is stored as ""
+         */
+        public Builder add(String placeId, String name, String address,
+                           double latitude, double longitude, float radius)
+        {
+            ensureCapacity(length(placeId) + length(name) + length(address));
+            appendString(ID, placeId);
+            appendString(NAME, name);
+            appendString(ADDRESS, address);
+            addCoordinates(latitude, longitude, radius);
+            return this;
+        }
+
+        // Copies a row of another table, without creating Strings
+        public Builder addRow(PlaceTable table, int row)
+        {
+            int start = table.getStart(row, ID);
+            int length = table.getStart(row, ADDRESS) + table.getLength(row, ADDRESS) - start;
+            ensureCapacity(length);
+            for (int column = 0; column < STRING_COLUMNS; column++) {
+                offsets[size * STRING_COLUMNS + column] = charCount + table.getStart(row, column) - start;
+            }
+            System.arraycopy(table.chars, start, chars, charCount, length);
+            charCount += length;
+            addCoordinates(table.latitudes[row], table.longitudes[row], table.radii[row]);
+            return this;
+        }
+
+        public PlaceTable build()
+        {
+            offsets[size * STRING_COLUMNS] = charCount;
+            return new PlaceTable(size,
+                    Arrays.copyOf(latitudes, size),
+                    Arrays.copyOf(longitudes, size),
+                    Arrays.copyOf(radii, size),
+                    Arrays.copyOf(chars, charCount),
+                    Arrays.copyOf(offsets, size * STRING_COLUMNS + 1));
+        }
+
+        private void appendString(int column, String value)
+        {
+            offsets[size * STRING_COLUMNS + column] = charCount;
+            if (value != null) {
+                value.getChars(0, value.length(), chars, charCount);
+                charCount += value.length();
+            }
+        }
+
+        private void addCoordinates(double latitude, double longitude, float radius)
+        {
+            latitudes[size] = latitude;
+            longitudes[size] = longitude;
+            radii[size] = radius;
+            size++;
+        }
+
+        // makes room for one more row with the given number of characters
+        private void ensureCapacity(int newChars)
+        {
+            if (size == latitudes.length) {
+                int capacity = Math.max(size * 2, 8);
+                latitudes = Arrays.copyOf(latitudes, capacity);
+                longitudes = Arrays.copyOf(longitudes, capacity);
+                radii = Arrays.copyOf(radii, capacity);
+                offsets = Arrays.copyOf(offsets, capacity * STRING_COLUMNS + 1);
+            }
+            if (charCount + newChars > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(chars.length * 2, charCount + newChars));
+            }
+        }
+
+        private static int length(String value)
+        {
+            return value == null ? 0 : value.length();
+        }
+    }
+}
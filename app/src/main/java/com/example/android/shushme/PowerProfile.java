@@ -0,0 +1,156 @@
+package com.example.android.shushme;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+/**
+ * How much battery the geofences may cost. Geofencing registers every fence with the
+ * settings of the current profile, which trade transition latency for battery:
+ *
+ * PERFORMANCE: transitions are reported right away, all active places up to the
+ *              Google Play services limit, the normal radius, ENTER.
+ * BALANCED:    transitions may be reported up to a minute late, which lets Google Play services
+ *              batch location checks, at most 50 fences, a 1.5 times larger radius, ENTER.
+ * SAVER:       up to five minutes late, at most 20 fences, twice the radius,
+ *              and DWELL: the phone is only silenced after staying inside for two minutes,
+ *              so passing by a place doesn't wake the app.
+ *
+ * When a profile allows fewer fences than there are active places, the ones nearest
+ * to the last known location are registered. The profile follows the battery,
+ * see {@link #forBattery} and {@link PowerProfileReceiver}.
+ */
+public final class PowerProfile {
+
+    public static final int PERFORMANCE = 0;
+    public static final int BALANCED = 1;
+    public static final int SAVER = 2;
+
+    // in the order of the IDs
+    private static final PowerProfile[] PROFILES = {
+            new PowerProfile(PERFORMANCE, "performance", 0, 100, 1f, 0),
+            new PowerProfile(BALANCED, "balanced", 60 * 1000, 50, 1.5f, 0),
+            new PowerProfile(SAVER, "saver", 5 * 60 * 1000, 20, 2f, 2 * 60 * 1000)
+    };
+
+    // battery levels in percent below which the profile steps down, when not charging
+    private static final int BALANCED_BELOW_PERCENT = 50;
+    private static final int SAVER_BELOW_PERCENT = 15;
+
+    private static final String PREFERENCES_NAME = "power_profile";
+    private static final String KEY_PROFILE = "profile";
+
+    public final int id;
+    public final String name;
+    // how late Google Play services may report a transition, see Geofence.Builder.setNotificationResponsiveness
+    public final int notificationResponsivenessMs;
+    // the most fences registered at once
+    public final int maxActiveFences;
+    // multiplies the geofence radius
+    public final float radiusScale;
+    // how long the device has to stay inside before the place counts as entered.
+    // 0 registers ENTER transitions, more registers DWELL transitions with this loitering delay.
+    public final int loiteringDelayMs;
+
+    private PowerProfile(int id, String name, int notificationResponsivenessMs, int maxActiveFences,
+                         float radiusScale, int loiteringDelayMs)
+    {
+        this.id = id;
+        this.name = name;
+        this.notificationResponsivenessMs = notificationResponsivenessMs;
+        this.maxActiveFences = maxActiveFences;
+        this.radiusScale = radiusScale;
+        this.loiteringDelayMs = loiteringDelayMs;
+    }
+
+    public boolean usesDwell()
+    {
+        return loiteringDelayMs > 0;
+    }
+
+    public static PowerProfile get(int id)
+    {
+        return PROFILES[id];
+    }
+
+    /**
+     * Picks the profile for a battery state
+     *
+     * @param levelPercent    the battery level from 0 to 100
+     * @param isCharging      whether the device is plugged in
+     * @param isPowerSaveMode whether the system battery saver is on
+     */
+    public static PowerProfile forBattery(int levelPercent, boolean isCharging, boolean isPowerSaveMode)
+    {
+        if (isCharging)
+        {
+            return PROFILES[PERFORMANCE];
+        }
+        if (isPowerSaveMode || levelPercent < SAVER_BELOW_PERCENT)
+        {
+            return PROFILES[SAVER];
+        }
+        if (levelPercent < BALANCED_BELOW_PERCENT)
+        {
+            return PROFILES[BALANCED];
+        }
+        return PROFILES[PERFORMANCE];
+    }
+
+    /**
+     * The profile the fences are registered with. PERFORMANCE until the battery was first checked.
+     */
+    public static PowerProfile getCurrent(Context context)
+    {
+        int id = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+                .getInt(KEY_PROFILE, PERFORMANCE);
+        return PROFILES[id];
+    }
+
+    /**
+     * Checks the battery and saves the profile for it
+     *
+     * @return true if the profile changed, so the fences should be registered again
+     */
+    public static boolean update(Context context)
+    {
+        PowerProfile profile = forCurrentBattery(context);
+        Metrics.gauge(Metrics.POWER_PROFILE).set(profile.id);
+        if (profile == getCurrent(context))
+        {
+            return false;
+        }
+        context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE).edit()
+                .putInt(KEY_PROFILE, profile.id)
+                .apply();
+        Metrics.counter(Metrics.POWER_PROFILE_SWITCHES).increment();
+        return true;
+    }
+
+    // Reads the battery state from the sticky battery broadcast, without registering a receiver
+    private static PowerProfile forCurrentBattery(Context context)
+    {
+        Context appContext = context.getApplicationContext();
+        Intent battery = appContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null)
+        {
+            return getCurrent(context);
+        }
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        int levelPercent = level >= 0 && scale > 0 ? level * 100 / scale : 100;
+        boolean isCharging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+
+        boolean isPowerSaveMode = false;
+        // battery saver was added in Android 5.0 = API 21
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+        {
+            PowerManager powerManager = (PowerManager) appContext.getSystemService(Context.POWER_SERVICE);
+            isPowerSaveMode = powerManager != null && powerManager.isPowerSaveMode();
+        }
+        return forBattery(levelPercent, isCharging, isPowerSaveMode);
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.android.shushme;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.PowerManager;
+
+/**
+ * Switches the PowerProfile when the battery runs low or recovers, the charger is
+ * plugged in or out, or battery saver is turned on or off, and registers the fences again
+ * with the new profile.
+ *
+ * Since Android 8.0 = API 26 these broadcasts only reach receivers registered at runtime,
+ * and battery saver changes always did, so MainActivity registers this receiver while it is
+ * started, and GeofenceBroadcastReceiver calls {@link #checkProfile} after each transition.
+ */
+public class PowerProfileReceiver extends BroadcastReceiver {
+
+    /**
+     * The broadcasts to register this receiver for at runtime
+     */
+    public static IntentFilter getIntentFilter()
+    {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_BATTERY_LOW);
+        filter.addAction(Intent.ACTION_BATTERY_OKAY);
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+        {
+            filter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
+        }
+        return filter;
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final PendingResult pendingResult = goAsync();
+        final Context appContext = context.getApplicationContext();
+        AppExecutors.getInstance().background().execute(() -> {
+            try {
+                checkProfile(appContext);
+            } finally {
+                pendingResult.finish();
+            }
+        });
+    }
+
+    /**
+     * Checks the battery, and if the profile changed, registers the fences of the active set
+     * again as one batch. Reads the places table, so don't call on the main thread.
+     */
+    public static void checkProfile(Context context)
+    {
+        if (!PowerProfile.update(context) || !MainActivity.isGeofencingEnabled(context))
+        {
+            return;
+        }
+        Tracing.beginSection("PowerProfileReceiver.replan");
+        try {
+            PlaceSets placeSets = new PlaceSets(context);
+            // the profile is part of every fence's signature, so all fences are sent again
+            new Geofencing(context).refreshGeofences(placeSets.loadMemberIds(placeSets.getActiveSetId()));
+        } finally {
+            Tracing.endSection();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.android.shushme;
+
+import java.util.Calendar;
+
+/**
+ * The weekly time windows during which a place is quiet, precomputed into a bitmap
+ * with one bit per SLOT_MINUTES of the week. Checking whether a place is quiet
+ * at a given time is a single bit lookup.
+ */
+public class QuietSchedule {
+
+    // day bits, used in the days column of the schedules table
+    public static final int MONDAY = 1;
+    public static final int TUESDAY = 1 << 1;
+    public static final int WEDNESDAY = 1 << 2;
+    public static final int THURSDAY = 1 << 3;
+    public static final int FRIDAY = 1 << 4;
+    public static final int SATURDAY = 1 << 5;
+    public static final int SUNDAY = 1 << 6;
+    public static final int WEEKDAYS = MONDAY | TUESDAY | WEDNESDAY | THURSDAY | FRIDAY;
+    public static final int EVERY_DAY = WEEKDAYS | SATURDAY | SUNDAY;
+
+    public static final int MINUTES_PER_DAY = 24 * 60;
+    public static final int MINUTES_PER_WEEK = 7 * MINUTES_PER_DAY;
+
+    // window boundaries are rounded to this many minutes
+    static final int SLOT_MINUTES = 5;
+    static final int SLOTS_PER_DAY = MINUTES_PER_DAY / SLOT_MINUTES;
+    static final int SLOT_COUNT = MINUTES_PER_WEEK / SLOT_MINUTES;
+
+    private final long[] slots = new long[(SLOT_COUNT + 63) / 64];
+
+    /**
+     * Marks a window as quiet on each of the given days
+     *
+     * @param days        bitmask of MONDAY to SUNDAY
+     * @param startMinute start of the window in minutes after midnight
+     * @param endMinute   end of the window in minutes after midnight, before the start if the
+     *                    window runs past midnight into the next day
+     */
+    public void addWindow(int days, int startMinute, int endMinute)
+    {
+        int startSlot = startMinute / SLOT_MINUTES;
+        int endSlot = (endMinute + SLOT_MINUTES - 1) / SLOT_MINUTES;
+        int length = endSlot > startSlot ? endSlot - startSlot : SLOTS_PER_DAY - startSlot + endSlot;
+        for (int day = 0; day < 7; day++) {
+            if ((days & (1 << day)) == 0) {
+                continue;
+            }
+            int first = day * SLOTS_PER_DAY + startSlot;
+            for (int i = 0; i < length; i++) {
+                // a window on Sunday night wraps around into Monday morning
+                int slot = (first + i) % SLOT_COUNT;
+                slots[slot >> 6] |= 1L << slot;
+            }
+        }
+    }
+
+    /**
+     * @param minuteOfWeek minutes since Monday 00:00, see {@link #minuteOfWeek}
+     * @return true if the place is quiet at that time
+     */
+    public boolean isQuietAt(int minuteOfWeek)
+    {
+        int slot = minuteOfWeek / SLOT_MINUTES;
+        return (slots[slot >> 6] & (1L << slot)) != 0;
+    }
+
+    /**
+     * @param minuteOfWeek minutes since Monday 00:00
+     * @return the number of minutes until the place switches between quiet and not quiet,
+     * or -1 if it never does
+     */
+    public int minutesUntilChange(int minuteOfWeek)
+    {
+        boolean quiet = isQuietAt(minuteOfWeek);
+        int slot = minuteOfWeek / SLOT_MINUTES;
+        for (int i = 1; i <= SLOT_COUNT; i++) {
+            int next = (slot + i) % SLOT_COUNT;
+            if (((slots[next >> 6] & (1L << next)) != 0) != quiet) {
+                return (slot + i) * SLOT_MINUTES - minuteOfWeek;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return minutes since Monday 00:00 in the calendar's time zone
+     */
+    public static int minuteOfWeek(Calendar calendar)
+    {
+        // Calendar.SUNDAY is 1 and Calendar.MONDAY is 2, shift so Monday is day 0
+        int day = (calendar.get(Calendar.DAY_OF_WEEK) + 5) % 7;
+        return day * MINUTES_PER_DAY
+                + calendar.get(Calendar.HOUR_OF_DAY) * 60
+                + calendar.get(Calendar.MINUTE);
+    }
+}
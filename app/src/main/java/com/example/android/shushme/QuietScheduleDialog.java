@@ -0,0 +1,106 @@
+package com.example.android.shushme;
+
+import android.app.TimePickerDialog;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.text.format.DateFormat;
+import android.widget.Toast;
+
+import com.example.android.shushme.provider.PlaceContract.ScheduleEntry;
+
+import androidx.appcompat.app.AlertDialog;
+
+/**
+ * Lets the user pick the days and the time window during which a place is quiet.
+ * Picks the days first, then the start and end time, and saves the result as the
+ * place's only schedule. "Always quiet" removes the schedule.
+ */
+public class QuietScheduleDialog {
+
+    private final Context context;
+    private final String placeId;
+    private final CharSequence placeName;
+
+    private int days = QuietSchedule.WEEKDAYS;
+    private int startMinute = 9 * 60;
+
+    public QuietScheduleDialog(Context context, String placeId, CharSequence placeName)
+    {
+        this.context = context;
+        this.placeId = placeId;
+        this.placeName = placeName;
+    }
+
+    public void show()
+    {
+        final boolean[] checked = new boolean[7];
+        for (int day = 0; day < checked.length; day++) {
+            checked[day] = (days & (1 << day)) != 0;
+        }
+        new AlertDialog.Builder(context)
+                .setTitle(context.getString(R.string.quiet_schedule_title, placeName))
+                .setMultiChoiceItems(R.array.quiet_schedule_days, checked,
+                        (dialog, which, isChecked) -> checked[which] = isChecked)
+                .setPositiveButton(R.string.quiet_schedule_next, (dialog, which) -> {
+                    days = 0;
+                    for (int day = 0; day < checked.length; day++) {
+                        if (checked[day]) {
+                            days |= 1 << day;
+                        }
+                    }
+                    if (days == 0) {
+                        Toast.makeText(context, R.string.quiet_schedule_no_days, Toast.LENGTH_LONG).show();
+                        return;
+                    }
+                    pickStartTime();
+                })
+                .setNeutralButton(R.string.quiet_schedule_always, (dialog, which) -> save(false, 0, 0))
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    private void pickStartTime()
+    {
+        TimePickerDialog dialog = new TimePickerDialog(context, (view, hourOfDay, minute) -> {
+            startMinute = hourOfDay * 60 + minute;
+            pickEndTime();
+        }, startMinute / 60, startMinute % 60, DateFormat.is24HourFormat(context));
+        dialog.setTitle(R.string.quiet_schedule_start_title);
+        dialog.show();
+    }
+
+    private void pickEndTime()
+    {
+        TimePickerDialog dialog = new TimePickerDialog(context,
+                (view, hourOfDay, minute) -> save(true, startMinute, hourOfDay * 60 + minute),
+                17, 0, DateFormat.is24HourFormat(context));
+        dialog.setTitle(R.string.quiet_schedule_end_title);
+        dialog.show();
+    }
+
+    // Replaces the place's schedule in the background and re-applies the schedules right away,
+    // in case the device is inside the place's fence
+    private void save(final boolean hasSchedule, final int start, final int end)
+    {
+        final Context appContext = context.getApplicationContext();
+        final int scheduleDays = days;
+        AppExecutors.getInstance().transitions().execute(() -> {
+            appContext.getContentResolver().delete(ScheduleEntry.CONTENT_URI,
+                    ScheduleEntry.COLUMN_PLACE_ID + "=?", new String[]{placeId});
+            if (hasSchedule) {
+                ContentValues values = new ContentValues();
+                values.put(ScheduleEntry.COLUMN_PLACE_ID, placeId);
+                values.put(ScheduleEntry.COLUMN_DAYS, scheduleDays);
+                values.put(ScheduleEntry.COLUMN_START_MINUTE, start);
+                values.put(ScheduleEntry.COLUMN_END_MINUTE, end);
+                appContext.getContentResolver().insert(ScheduleEntry.CONTENT_URI, values);
+            }
+            QuietSchedules.invalidate();
+            // the index has a schedule flag per place
+            FenceIndex.write(appContext, PlaceStore.getInstance().snapshot());
+            appContext.sendBroadcast(new Intent(appContext, GeofenceBroadcastReceiver.class)
+                    .setAction(QuietSchedules.ACTION_APPLY_SCHEDULES));
+        });
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.android.shushme;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.os.Build;
+
+import com.example.android.shushme.provider.PlaceContract.ScheduleEntry;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The quiet schedules of all places, loaded from the schedules table once per process
+ * and kept until {@link #invalidate} is called after an edit.
+ * Also sets the alarm that re-applies the schedules when a window starts or ends
+ * while the device stays inside a fence.
+ */
+public class QuietSchedules {
+
+    public static final String ACTION_APPLY_SCHEDULES = "com.example.android.shushme.action.APPLY_SCHEDULES";
+
+    private static Map<String, QuietSchedule> sSchedules;
+
+    private final Context context;
+    private final Map<String, QuietSchedule> schedules;
+
+    private QuietSchedules(Context context, Map<String, QuietSchedule> schedules)
+    {
+        this.context = context;
+        this.schedules = schedules;
+    }
+
+    /**
+     * Returns the schedules, loading them from the provider if needed. Don't call on the main thread.
+     */
+    public static synchronized QuietSchedules getInstance(Context context)
+    {
+        Context appContext = context.getApplicationContext();
+        if (sSchedules == null) {
+            sSchedules = load(appContext);
+        }
+        return new QuietSchedules(appContext, sSchedules);
+    }
+
+    /**
+     * Drops the cached schedules, so they are loaded again on next use
+     */
+    public static synchronized void invalidate()
+    {
+        sSchedules = null;
+    }
+
+    private static Map<String, QuietSchedule> load(Context context)
+    {
+        Map<String, QuietSchedule> schedules = new HashMap<>();
+        Cursor cursor = context.getContentResolver().query(
+                ScheduleEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                null
+        );
+        if (cursor != null) {
+            int placeIdIndex = cursor.getColumnIndex(ScheduleEntry.COLUMN_PLACE_ID);
+            int daysIndex = cursor.getColumnIndex(ScheduleEntry.COLUMN_DAYS);
+            int startIndex = cursor.getColumnIndex(ScheduleEntry.COLUMN_START_MINUTE);
+            int endIndex = cursor.getColumnIndex(ScheduleEntry.COLUMN_END_MINUTE);
+            while (cursor.moveToNext()) {
+                String placeId = cursor.getString(placeIdIndex);
+                QuietSchedule schedule = schedules.get(placeId);
+                if (schedule == null) {
+                    schedule = new QuietSchedule();
+                    schedules.put(placeId, schedule);
+                }
+                schedule.addWindow(cursor.getInt(daysIndex), cursor.getInt(startIndex), cursor.getInt(endIndex));
+            }
+            // always close the cursor
+            cursor.close();
+        }
+        return schedules;
+    }
+
+    /**
+     * @param placeId      the place, which is also the geofence request ID
+     * @param minuteOfWeek minutes since Monday 00:00
+     * @return true if entering the place should silence the phone at that time.
+     * Places without a schedule are always quiet.
+     */
+    public boolean isQuiet(String placeId, int minuteOfWeek)
+    {
+        QuietSchedule schedule = schedules.get(placeId);
+        return schedule == null || schedule.isQuietAt(minuteOfWeek);
+    }
+
+    // whether the place has any quiet windows, otherwise it is always quiet
+    public boolean hasSchedule(String placeId)
+    {
+        return schedules.containsKey(placeId);
+    }
+
+    /**
+     * Sets an alarm for the next time any of the given places starts or stops being quiet,
+     * or cancels it if none of them has a schedule
+     *
+     * @param placeIds the places the device is currently inside
+     */
+    public void scheduleBoundaryAlarm(Set<String> placeIds)
+    {
+        Calendar now = Calendar.getInstance();
+        int minuteOfWeek = QuietSchedule.minuteOfWeek(now);
+        int minutesUntilChange = Integer.MAX_VALUE;
+        for (String placeId : placeIds) {
+            QuietSchedule schedule = schedules.get(placeId);
+            if (schedule != null) {
+                int minutes = schedule.minutesUntilChange(minuteOfWeek);
+                if (minutes > 0) {
+                    minutesUntilChange = Math.min(minutesUntilChange, minutes);
+                }
+            }
+        }
+
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (alarmManager == null) {
+            return;
+        }
+        Intent intent = new Intent(context, GeofenceBroadcastReceiver.class);
+        intent.setAction(ACTION_APPLY_SCHEDULES);
+        PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        if (minutesUntilChange == Integer.MAX_VALUE) {
+            alarmManager.cancel(pendingIntent);
+            return;
+        }
+
+        // fire at the start of the minute the window changes
+        now.set(Calendar.SECOND, 0);
+        now.set(Calendar.MILLISECOND, 0);
+        now.add(Calendar.MINUTE, minutesUntilChange);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, now.getTimeInMillis(), pendingIntent);
+        }
+        else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            alarmManager.setExact(AlarmManager.RTC_WAKEUP, now.getTimeInMillis(), pendingIntent);
+        }
+        else {
+            alarmManager.set(AlarmManager.RTC_WAKEUP, now.getTimeInMillis(), pendingIntent);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.android.shushme;
+
+import android.annotation.TargetApi;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+import android.service.quicksettings.Tile;
+import android.service.quicksettings.TileService;
+
+/**
+ * A Quick Settings tile that turns geofencing on or off, like the switch in MainActivity,
+ * without starting the activity. Nothing is fetched from the Places API: the fences are
+ * registered from the coordinates cached in the places table, on the background thread,
+ * so a tap only writes the setting and updates the tile.
+ *
+ * The tile is an active tile, it is only bound when the setting changes,
+ * see {@link #requestUpdate}.
+ * Quick Settings tiles need Android 7.0 = API 24.
+ */
+@TargetApi(Build.VERSION_CODES.N)
+public class ShushTileService extends TileService {
+
+    /**
+     * Asks the system to refresh the tile after the setting changed elsewhere.
+     * Does nothing below Android 7.0.
+     */
+    public static void requestUpdate(Context context)
+    {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N)
+        {
+            return;
+        }
+        requestListeningState(context, new ComponentName(context, ShushTileService.class));
+    }
+
+    @Override
+    public void onStartListening() {
+        super.onStartListening();
+        updateTile(MainActivity.isGeofencingEnabled(this));
+    }
+
+    @Override
+    public void onClick() {
+        super.onClick();
+        final boolean isEnabled = !MainActivity.isGeofencingEnabled(this);
+        MainActivity.setGeofencingEnabled(this, isEnabled);
+        updateTile(isEnabled);
+
+        final Context appContext = getApplicationContext();
+        AppExecutors.getInstance().background().execute(() -> {
+            Tracing.beginSection("ShushTileService.toggle");
+            try {
+                Geofencing geofencing = new Geofencing(appContext);
+                if (isEnabled)
+                {
+                    PlaceSets placeSets = new PlaceSets(appContext);
+                    // reads the places from the table, there may be no activity to fetch them
+                    geofencing.refreshGeofences(placeSets.loadMemberIds(placeSets.getActiveSetId()));
+                }
+                else
+                {
+                    // clear once the fences are gone, so a transition they send meanwhile can't
+                    // silence the phone again. Clearing restores the ringer if they silenced it.
+                    geofencing.unregisterAllGeofences().addOnCompleteListener((task) ->
+                            GeofenceBroadcastReceiver.clearTransitions(appContext));
+                }
+            } finally {
+                Tracing.endSection();
+            }
+        });
+    }
+
+    private void updateTile(boolean isEnabled)
+    {
+        Tile tile = getQsTile();
+        if (tile == null)
+        {
+            return;
+        }
+        tile.setState(isEnabled ? Tile.STATE_ACTIVE : Tile.STATE_INACTIVE);
+        tile.updateTile();
+    }
+}
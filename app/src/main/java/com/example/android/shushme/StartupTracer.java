@@ -0,0 +1,80 @@
+package com.example.android.shushme;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Records startup milestones and logs how long after process start and
+ * activity launch each one was reached. Each milestone is logged once per launch.
+ * scripts/startup_benchmark.sh collects these lines from logcat.
+ */
+public class StartupTracer {
+
+    public static final String TAG = StartupTracer.class.getSimpleName();
+
+    public static final int PROCESS_START = 0;
+    public static final int FIRST_FRAME = 1;
+    public static final int DATA_SHOWN = 2;
+    public static final int FENCES_REGISTERED = 3;
+
+    private static final String[] MILESTONE_NAMES = {
+            "process_start", "first_frame", "data_shown", "fences_registered"
+    };
+
+    // fallback for API < 24, where the process start time isn't available
+    private static final long CLASS_LOAD_TIME = SystemClock.elapsedRealtime();
+
+    private static long launchStartTime = -1;
+    private static final boolean[] reached = new boolean[MILESTONE_NAMES.length];
+
+    private StartupTracer()
+    {
+    }
+
+    /**
+     * Starts tracing a new launch. Called from MainActivity.onCreate,
+     * so warm starts in an existing process are traced too.
+     */
+    public static synchronized void onLaunchStart()
+    {
+        boolean isColdStart = launchStartTime < 0;
+        launchStartTime = SystemClock.elapsedRealtime();
+        for (int i = 0; i < reached.length; i++) {
+            reached[i] = false;
+        }
+        if (isColdStart) {
+            reached[PROCESS_START] = true;
+            Log.i(TAG, String.format("milestone=%s launch=cold since_process_start=%d",
+                    MILESTONE_NAMES[PROCESS_START], launchStartTime - getProcessStartTime()));
+        }
+        else {
+            Log.i(TAG, "milestone=launch_start launch=warm");
+        }
+    }
+
+    /**
+     * Logs the first time a milestone is reached in the current launch
+     *
+     * @param milestone one of FIRST_FRAME, DATA_SHOWN or FENCES_REGISTERED
+     */
+    public static synchronized void mark(int milestone)
+    {
+        if (launchStartTime < 0 || reached[milestone]) {
+            return;
+        }
+        reached[milestone] = true;
+        long now = SystemClock.elapsedRealtime();
+        Log.i(TAG, String.format("milestone=%s since_process_start=%d since_launch_start=%d",
+                MILESTONE_NAMES[milestone], now - getProcessStartTime(), now - launchStartTime));
+    }
+
+    private static long getProcessStartTime()
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return Process.getStartElapsedRealtime();
+        }
+        return CLASS_LOAD_TIME;
+    }
+}
@@ -0,0 +1,394 @@
+package com.example.android.shushme;
+
+import android.content.ContentValues;
+import android.content.Context;
+
+import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates places and movement traces for load testing, without the network.
+ * The same seed always gives the same data, so a slow run can be repeated exactly.
+ *
+ * Places are clustered like a city: a few large centers and many small ones,
+ * with a tenth of the places scattered in between. A trace moves from place to place,
+ * mostly to nearby ones, and stays a while at each, with the noise and the occasional
+ * inaccurate fix of a real phone.
+ *
+ * The Places API doesn't know the generated Place IDs, so MainActivity can't fetch them.
+ * They are for the provider, the fence code and tests with a fake Places backend.
+ */
+public class SyntheticPlaces {
+
+    // the area of test_locations.kml, Brisbane
+    private static final double CENTER_LATITUDE = -27.47;
+    private static final double CENTER_LONGITUDE = 153.02;
+    // half the width of the area the clusters are spread over, in degrees
+    private static final double AREA_HALF_SIZE = 0.5;
+    private static final int PLACES_PER_CLUSTER = 500;
+    private static final double SCATTERED_FRACTION = 0.1;
+    // spread of the largest cluster, smaller clusters are tighter
+    private static final double CLUSTER_SPREAD_IN_METERS = 1500;
+
+    private static final double METERS_PER_DEGREE = 111320;
+
+    // trace sampling, like a location request with a 30 second interval
+    private static final long SAMPLE_INTERVAL_IN_MILLISECONDS = 30 * 1000;
+    private static final double WALKING_SPEED = 1.4; // m/s
+    private static final double DRIVING_SPEED = 12; // m/s
+    private static final double WALKING_DISTANCE_IN_METERS = 2000;
+    private static final long MIN_DWELL_IN_MILLISECONDS = 10 * 60 * 1000;
+    private static final long MAX_DWELL_IN_MILLISECONDS = 60 * 60 * 1000;
+    // random places tried when picking the next place to visit, the nearest one wins
+    private static final int NEXT_PLACE_CANDIDATES = 5;
+    // share of fixes too inaccurate to be trusted, see TransitionHysteresis.isAccurateEnough
+    private static final double INACCURATE_FIX_FRACTION = 0.1;
+
+    // rows inserted per bulkInsert, so a million places don't need a million ContentValues at once
+    private static final int INSERT_CHUNK_SIZE = 1000;
+
+    private static final int TRACE_MAGIC = 0x53485452; // "SHTR"
+    private static final int TRACE_VERSION = 1;
+
+    private static final String[] KINDS = {"Cafe", "Library", "Office", "Gym", "Cinema",
+            "School", "Clinic", "Church", "Museum", "Restaurant"};
+    private static final String[] STREETS = {"George", "Queen", "Adelaide", "Ann", "Edward",
+            "Albert", "Elizabeth", "Charlotte", "Mary", "Margaret"};
+
+    /**
+     * Locations sampled along a trip, stored in primitive arrays like PlaceTable
+     */
+    public static final class Trace {
+        public final int size;
+        // wall clock time of each sample, in milliseconds
+        public final long[] times;
+        public final double[] latitudes;
+        public final double[] longitudes;
+        // accuracy radius of each sample in meters, like Location.getAccuracy
+        public final float[] accuracies;
+
+        Trace(int size)
+        {
+            this.size = size;
+            times = new long[size];
+            latitudes = new double[size];
+            longitudes = new double[size];
+            accuracies = new float[size];
+        }
+    }
+
+    private SyntheticPlaces()
+    {
+    }
+
+    /**
+     * Generates the places. IDs are "synthetic-<seed>-<index>".
+     * A place takes about 140 bytes, so a million need a test JVM with a large heap, not a phone.
+     *
+     * @param seed  the same seed gives the same places
+     * @param count how many places
+     */
+    public static PlaceTable generatePlaces(long seed, int count)
+    {
+        Random random = new Random(seed);
+        int clusterCount = Math.max(1, count / PLACES_PER_CLUSTER);
+        double[] clusterLatitudes = new double[clusterCount];
+        double[] clusterLongitudes = new double[clusterCount];
+        // cumulative share of each cluster, the k-th largest gets a share of 1 / k
+        double[] cumulativeWeights = new double[clusterCount];
+        double totalWeight = 0;
+        for (int k = 0; k < clusterCount; k++) {
+            clusterLatitudes[k] = CENTER_LATITUDE + (random.nextDouble() * 2 - 1) * AREA_HALF_SIZE;
+            clusterLongitudes[k] = CENTER_LONGITUDE + (random.nextDouble() * 2 - 1) * AREA_HALF_SIZE;
+            totalWeight += 1.0 / (k + 1);
+            cumulativeWeights[k] = totalWeight;
+        }
+
+        PlaceTable.Builder builder = new PlaceTable.Builder(count, count * maxCharsPerPlace(seed, count));
+        for (int i = 0; i < count; i++) {
+            double latitude;
+            double longitude;
+            if (random.nextDouble() < SCATTERED_FRACTION) {
+                latitude = CENTER_LATITUDE + (random.nextDouble() * 2 - 1) * AREA_HALF_SIZE;
+                longitude = CENTER_LONGITUDE + (random.nextDouble() * 2 - 1) * AREA_HALF_SIZE;
+            }
+            else {
+                int k = pickCluster(cumulativeWeights, random.nextDouble() * totalWeight);
+                double spread = CLUSTER_SPREAD_IN_METERS / Math.sqrt(k + 1);
+                latitude = clusterLatitudes[k] + metersToLatitude(random.nextGaussian() * spread);
+                longitude = clusterLongitudes[k]
+                        + metersToLongitude(random.nextGaussian() * spread, clusterLatitudes[k]);
+            }
+            String kind = KINDS[random.nextInt(KINDS.length)];
+            String street = STREETS[random.nextInt(STREETS.length)];
+            builder.add("synthetic-" + seed + "-" + i,
+                    kind + " " + (i + 1),
+                    (1 + random.nextInt(999)) + " " + street + " St",
+                    latitude, longitude, Geofencing.GEOFENCE_RADIUS_IN_METERS);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Generates a trip that visits places of the table one after the other
+     *
+     * @param seed      the same seed and places give the same trace
+     * @param places    the places to visit, at least one
+     * @param visits    how many places are visited
+     * @param startTime wall clock time of the first sample
+     */
+    public static Trace generateTrace(long seed, PlaceTable places, int visits, long startTime)
+    {
+        Random random = new Random(seed);
+        TraceBuilder trace = new TraceBuilder();
+        long time = startTime;
+        int row = random.nextInt(places.size());
+        double latitude = places.getLatitude(row);
+        double longitude = places.getLongitude(row);
+        for (int visit = 0; visit < visits; visit++) {
+            // stay at the place
+            long dwell = MIN_DWELL_IN_MILLISECONDS
+                    + (long) (random.nextDouble() * (MAX_DWELL_IN_MILLISECONDS - MIN_DWELL_IN_MILLISECONDS));
+            for (long end = time + dwell; time < end; time += SAMPLE_INTERVAL_IN_MILLISECONDS) {
+                trace.add(random, time, latitude, longitude);
+            }
+
+            // travel to the next place in a straight line
+            int nextRow = pickNextPlace(random, places, latitude, longitude);
+            double nextLatitude = places.getLatitude(nextRow);
+            double nextLongitude = places.getLongitude(nextRow);
+            double distance = distanceInMeters(latitude, longitude, nextLatitude, nextLongitude);
+            double speed = distance < WALKING_DISTANCE_IN_METERS ? WALKING_SPEED : DRIVING_SPEED;
+            int steps = (int) Math.ceil(distance / speed / (SAMPLE_INTERVAL_IN_MILLISECONDS / 1000.0));
+            for (int step = 1; step <= steps; step++) {
+                double fraction = (double) step / steps;
+                time += SAMPLE_INTERVAL_IN_MILLISECONDS;
+                trace.add(random, time,
+                        latitude + (nextLatitude - latitude) * fraction,
+                        longitude + (nextLongitude - longitude) * fraction);
+            }
+            latitude = nextLatitude;
+            longitude = nextLongitude;
+        }
+        return trace.build();
+    }
+
+    /**
+     * Inserts the places with their coordinates through the provider's bulkInsert,
+     * one transaction per chunk. Don't call on the main thread.
+     *
+     * @return the number of places inserted
+     */
+    public static int insertPlaces(Context context, PlaceTable places)
+    {
+        Tracing.beginSection("SyntheticPlaces.insertPlaces");
+        try {
+            int inserted = 0;
+            for (int start = 0; start < places.size(); start += INSERT_CHUNK_SIZE) {
+                ContentValues[] chunk = new ContentValues[Math.min(INSERT_CHUNK_SIZE, places.size() - start)];
+                for (int i = 0; i < chunk.length; i++) {
+                    int row = start + i;
+                    ContentValues values = new ContentValues();
+                    values.put(PlaceEntry.COLUMN_PLACE_ID, places.getId(row));
+                    values.put(PlaceEntry.COLUMN_LATITUDE, places.getLatitude(row));
+                    values.put(PlaceEntry.COLUMN_LONGITUDE, places.getLongitude(row));
+                    chunk[i] = values;
+                }
+                inserted += context.getContentResolver().bulkInsert(PlaceEntry.CONTENT_URI, chunk);
+            }
+            return inserted;
+        } finally {
+            Tracing.endSection();
+        }
+    }
+
+    /**
+     * Writes the places as KML placemarks, in the format of test_locations.kml,
+     * so they can be loaded into a mock location app or Google Earth
+     */
+    public static void writeKml(PlaceTable places, PrintWriter writer)
+    {
+        writer.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        writer.println("<kml xmlns=\"http://www.opengis.net/kml/2.2\">");
+        writer.println("<Document>");
+        for (int row = 0; row < places.size(); row++) {
+            writer.println("<Placemark>");
+            writer.println("  <name>" + escapeXml(places.getString(row, PlaceTable.NAME)) + "</name>");
+            writer.println("  <description>" + escapeXml(places.getString(row, PlaceTable.ADDRESS)) + "</description>");
+            writer.println("  <Point>");
+            writer.println("    <coordinates>" + places.getLongitude(row) + "," + places.getLatitude(row) + ",0</coordinates>");
+            writer.println("  </Point>");
+            writer.println("</Placemark>");
+        }
+        writer.println("</Document>");
+        writer.println("</kml>");
+        writer.flush();
+    }
+
+    /**
+     * Writes the trace as binary records: a header of magic, version and sample count,
+     * then time, latitude, longitude and accuracy of each sample
+     */
+    public static void writeTrace(Trace trace, File file) throws IOException
+    {
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            output.writeInt(TRACE_MAGIC);
+            output.writeInt(TRACE_VERSION);
+            output.writeInt(trace.size);
+            for (int i = 0; i < trace.size; i++) {
+                output.writeLong(trace.times[i]);
+                output.writeDouble(trace.latitudes[i]);
+                output.writeDouble(trace.longitudes[i]);
+                output.writeFloat(trace.accuracies[i]);
+            }
+        }
+    }
+
+    // Reads a trace written by writeTrace, to replay it
+    public static Trace readTrace(File file) throws IOException
+    {
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != TRACE_MAGIC || input.readInt() != TRACE_VERSION) {
+                throw new IOException("Not a trace file");
+            }
+            Trace trace = new Trace(input.readInt());
+            for (int i = 0; i < trace.size; i++) {
+                trace.times[i] = input.readLong();
+                trace.latitudes[i] = input.readDouble();
+                trace.longitudes[i] = input.readDouble();
+                trace.accuracies[i] = input.readFloat();
+            }
+            return trace;
+        }
+    }
+
+    // the longest ID, name and address generatePlaces can give a place, so its strings fit without growing
+    private static int maxCharsPerPlace(long seed, int count)
+    {
+        int indexDigits = Integer.toString(count).length();
+        int idLength = ("synthetic-" + seed + "-").length() + indexDigits;
+        int nameLength = longest(KINDS) + 1 + indexDigits;
+        int addressLength = "999 ".length() + longest(STREETS) + " St".length();
+        return idLength + nameLength + addressLength;
+    }
+
+    private static int longest(String[] values)
+    {
+        int longest = 0;
+        for (String value : values) {
+            longest = Math.max(longest, value.length());
+        }
+        return longest;
+    }
+
+    // binary search for the cluster whose cumulative weight covers the value
+    private static int pickCluster(double[] cumulativeWeights, double value)
+    {
+        int low = 0;
+        int high = cumulativeWeights.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cumulativeWeights[middle] < value) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // the nearest of a few random places, so trips are mostly short like real ones
+    private static int pickNextPlace(Random random, PlaceTable places, double latitude, double longitude)
+    {
+        int bestRow = random.nextInt(places.size());
+        double bestDistance = distanceInMeters(latitude, longitude,
+                places.getLatitude(bestRow), places.getLongitude(bestRow));
+        for (int i = 1; i < NEXT_PLACE_CANDIDATES; i++) {
+            int row = random.nextInt(places.size());
+            double distance = distanceInMeters(latitude, longitude,
+                    places.getLatitude(row), places.getLongitude(row));
+            if (distance < bestDistance) {
+                bestRow = row;
+                bestDistance = distance;
+            }
+        }
+        return bestRow;
+    }
+
+    // equirectangular approximation, close enough at city scale
+    private static double distanceInMeters(double latitude1, double longitude1, double latitude2, double longitude2)
+    {
+        double x = (longitude2 - longitude1) * Math.cos(Math.toRadians((latitude1 + latitude2) / 2));
+        double y = latitude2 - latitude1;
+        return Math.sqrt(x * x + y * y) * METERS_PER_DEGREE;
+    }
+
+    private static double metersToLatitude(double meters)
+    {
+        return meters / METERS_PER_DEGREE;
+    }
+
+    private static double metersToLongitude(double meters, double latitude)
+    {
+        return meters / (METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude)));
+    }
+
+    private static String escapeXml(String value)
+    {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    // Grows the trace arrays while sampling, since the number of samples isn't known up front
+    private static class TraceBuilder {
+        private int size;
+        private long[] times = new long[256];
+        private double[] latitudes = new double[256];
+        private double[] longitudes = new double[256];
+        private float[] accuracies = new float[256];
+
+        // adds a fix of the true position with GPS-like noise
+        void add(Random random, long time, double latitude, double longitude)
+        {
+            if (size == times.length) {
+                int capacity = size * 2;
+                times = Arrays.copyOf(times, capacity);
+                latitudes = Arrays.copyOf(latitudes, capacity);
+                longitudes = Arrays.copyOf(longitudes, capacity);
+                accuracies = Arrays.copyOf(accuracies, capacity);
+            }
+            float accuracy = random.nextDouble() < INACCURATE_FIX_FRACTION
+                    ? 200 + random.nextInt(800)
+                    : 5 + random.nextInt(45);
+            // the accuracy radius covers about 68% of fixes, one standard deviation
+            times[size] = time;
+            latitudes[size] = latitude + metersToLatitude(random.nextGaussian() * accuracy);
+            longitudes[size] = longitude + metersToLongitude(random.nextGaussian() * accuracy, latitude);
+            accuracies[size] = accuracy;
+            size++;
+        }
+
+        Trace build()
+        {
+            Trace trace = new Trace(size);
+            System.arraycopy(times, 0, trace.times, 0, size);
+            System.arraycopy(latitudes, 0, trace.latitudes, 0, size);
+            System.arraycopy(longitudes, 0, trace.longitudes, 0, size);
+            System.arraycopy(accuracies, 0, trace.accuracies, 0, size);
+            return trace;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.android.shushme;
+
+import android.os.Build;
+import android.os.Trace;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Named sections that show up in a system trace (Perfetto or systrace).
+ * Only the profiling build type sets BuildConfig.TRACING; in every other build
+ * the checks are constant false, so the calls compile to empty methods.
+ *
+ * Sections must begin and end on the same thread. Work that finishes in a callback,
+ * like a network request, uses an async slice identified by a cookie instead.
+ */
+public final class Tracing {
+
+    private static final AtomicInteger sNextCookie = new AtomicInteger();
+
+    private Tracing()
+    {
+    }
+
+    public static void beginSection(String name)
+    {
+        if (BuildConfig.TRACING && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(name);
+        }
+    }
+
+    public static void endSection()
+    {
+        if (BuildConfig.TRACING && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Starts an async slice
+     *
+     * @return the cookie to pass to {@link #endAsyncSection}
+     */
+    public static int beginAsyncSection(String name)
+    {
+        if (BuildConfig.TRACING && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            int cookie = sNextCookie.incrementAndGet();
+            Trace.beginAsyncSection(name, cookie);
+            return cookie;
+        }
+        return 0;
+    }
+
+    public static void endAsyncSection(String name, int cookie)
+    {
+        if (BuildConfig.TRACING && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection(name, cookie);
+        }
+    }
+}
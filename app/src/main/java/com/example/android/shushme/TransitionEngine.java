@@ -0,0 +1,133 @@
+package com.example.android.shushme;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.google.android.gms.location.Geofence;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps track of which geofences the device is currently inside.
+ * The set is persisted so it survives the receiver's process being killed between transitions.
+ * A fence is active while the device is inside it and its place is in a quiet window.
+ * The number of active fences is reference counted and only a change from 0 to 1 active fences,
+ * or from 1 to 0, is reported as an edge. So leaving one of two overlapping fences
+ * doesn't restore the ringer while the device is still inside the other one.
+ *
+ * Only used from the transitions executor, so it needs no locking of its own.
+ */
+public class TransitionEngine {
+
+    // the number of active fences didn't cross zero, nothing to do
+    public static final int EDGE_NONE = 0;
+    // the device entered its first active fence
+    public static final int EDGE_SILENCE = 1;
+    // the device left its last active fence
+    public static final int EDGE_RESTORE = 2;
+
+    private static final String PREFERENCES_NAME = "transition_state";
+    private static final String KEY_INSIDE_FENCES = "inside_fences";
+    // whether the ringer was silenced by the last edge
+    private static final String KEY_SILENCED = "silenced";
+
+    private final SharedPreferences preferences;
+
+    public TransitionEngine(Context context)
+    {
+        preferences = context.getApplicationContext()
+                .getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Applies a transition of the triggering fences to the persisted state
+     *
+     * @param transition   Geofence.GEOFENCE_TRANSITION_ENTER or Geofence.GEOFENCE_TRANSITION_EXIT
+     * @param fenceIds     request IDs of the triggering geofences
+     * @param schedules    the quiet schedules of the places
+     * @param minuteOfWeek the current time in minutes since Monday 00:00
+     * @return EDGE_SILENCE, EDGE_RESTORE or EDGE_NONE
+     */
+    public int apply(int transition, List<String> fenceIds, QuietSchedules schedules, int minuteOfWeek)
+    {
+        Set<String> inside = getInsideFences();
+
+        boolean changed = false;
+        for (String fenceId : fenceIds) {
+            if (transition == Geofence.GEOFENCE_TRANSITION_ENTER) {
+                changed |= inside.add(fenceId);
+            }
+            else if (transition == Geofence.GEOFENCE_TRANSITION_EXIT) {
+                changed |= inside.remove(fenceId);
+            }
+        }
+        if (!changed) {
+            return EDGE_NONE;
+        }
+        return update(inside, schedules, minuteOfWeek);
+    }
+
+    /**
+     * Re-checks the fences the device is inside against the schedules,
+     * for when a quiet window starts or ends without a transition
+     *
+     * @return EDGE_SILENCE, EDGE_RESTORE or EDGE_NONE
+     */
+    public int reevaluate(QuietSchedules schedules, int minuteOfWeek)
+    {
+        return update(getInsideFences(), schedules, minuteOfWeek);
+    }
+
+    /**
+     * Forgets all fences, for example when geofencing is turned off
+     *
+     * @return EDGE_RESTORE if the ringer was silenced, EDGE_NONE otherwise
+     */
+    public int clear()
+    {
+        boolean wasSilenced = preferences.getBoolean(KEY_SILENCED, false);
+        preferences.edit().remove(KEY_INSIDE_FENCES).remove(KEY_SILENCED).commit();
+        return edge(wasSilenced, false);
+    }
+
+    /**
+     * @return a copy of the request IDs of all fences the device is inside
+     */
+    public Set<String> getInsideFences()
+    {
+        // the returned set must not be modified, so copy it
+        return new HashSet<>(preferences.getStringSet(KEY_INSIDE_FENCES, new HashSet<String>()));
+    }
+
+    private int update(Set<String> inside, QuietSchedules schedules, int minuteOfWeek)
+    {
+        int activeCount = 0;
+        for (String fenceId : inside) {
+            if (schedules.isQuiet(fenceId, minuteOfWeek)) {
+                activeCount++;
+            }
+        }
+        boolean wasSilenced = preferences.getBoolean(KEY_SILENCED, false);
+        boolean isSilenced = activeCount > 0;
+
+        // commit instead of apply, the receiver's process may be killed as soon as it finishes
+        preferences.edit()
+                .putStringSet(KEY_INSIDE_FENCES, inside)
+                .putBoolean(KEY_SILENCED, isSilenced)
+                .commit();
+        return edge(wasSilenced, isSilenced);
+    }
+
+    static int edge(boolean wasSilenced, boolean isSilenced)
+    {
+        if (!wasSilenced && isSilenced) {
+            return EDGE_SILENCE;
+        }
+        if (wasSilenced && !isSilenced) {
+            return EDGE_RESTORE;
+        }
+        return EDGE_NONE;
+    }
+}
@@ -0,0 +1,213 @@
+package com.example.android.shushme;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Suppresses boundary flapping when the device waits near the edge of a fence.
+ * An EXIT is held back for a grace window and only confirmed once the window passes
+ * without a matching ENTER; an ENTER inside the window cancels it, so the ringer is never touched.
+ * ENTERs whose triggering location is less accurate than a threshold are rejected.
+ * EXITs are never rejected, since a dropped EXIT is not sent again.
+ * Both kinds of suppressed transitions are counted.
+ *
+ * Only used from the transitions executor, so it needs no locking of its own.
+ */
+public class TransitionHysteresis {
+
+    public static final String ACTION_CONFIRM_EXITS = "com.example.android.shushme.action.CONFIRM_EXITS";
+
+    // defaults, both can be overridden in the preferences below
+    public static final long DEFAULT_EXIT_GRACE_IN_MILLISECONDS = 2 * 60 * 1000;
+    public static final float DEFAULT_MAX_ACCURACY_IN_METERS = 100;
+
+    private static final String PREFERENCES_NAME = "transition_hysteresis";
+    public static final String KEY_EXIT_GRACE = "exit_grace_ms";
+    public static final String KEY_MAX_ACCURACY = "max_accuracy_m";
+    private static final String KEY_SUPPRESSED_FLAPS = "suppressed_flaps";
+    private static final String KEY_REJECTED_LOW_ACCURACY = "rejected_low_accuracy";
+    // pending exits are stored as one key per fence, holding the time the exit is confirmed
+    private static final String PENDING_EXIT_PREFIX = "pending_exit_";
+
+    private final Context context;
+    private final SharedPreferences preferences;
+
+    public TransitionHysteresis(Context context)
+    {
+        this.context = context.getApplicationContext();
+        preferences = this.context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Checks the accuracy of the location that triggered an ENTER.
+     * Don't use it for EXITs, hold them back with onExit instead.
+     *
+     * @return true if the transition should be ignored, in which case it has been counted
+     */
+    public boolean rejectLowAccuracy(Location triggeringLocation)
+    {
+        if (isAccurateEnough(triggeringLocation)) {
+            return false;
+        }
+        increment(KEY_REJECTED_LOW_ACCURACY, 1);
+        return true;
+    }
+
+    /**
+     * Same check as rejectLowAccuracy, without counting
+     *
+     * @return true if the location is accurate enough, or has no accuracy to check
+     */
+    public boolean isAccurateEnough(Location location)
+    {
+        float maxAccuracy = preferences.getFloat(KEY_MAX_ACCURACY, DEFAULT_MAX_ACCURACY_IN_METERS);
+        return location == null || !location.hasAccuracy() || location.getAccuracy() <= maxAccuracy;
+    }
+
+    /**
+     * Cancels the pending exits of fences that were entered again within the grace window
+     *
+     * @param fenceIds the entered fences. Fences whose exit was cancelled are removed,
+     *                 since the device never left them as far as the ringer is concerned.
+     * @return the number of cancelled exits
+     */
+    public int onEnter(List<String> fenceIds)
+    {
+        SharedPreferences.Editor editor = preferences.edit();
+        int cancelled = 0;
+        for (Iterator<String> iterator = fenceIds.iterator(); iterator.hasNext(); ) {
+            String key = PENDING_EXIT_PREFIX + iterator.next();
+            if (preferences.contains(key)) {
+                editor.remove(key);
+                iterator.remove();
+                cancelled++;
+            }
+        }
+        if (cancelled > 0) {
+            editor.putLong(KEY_SUPPRESSED_FLAPS, getSuppressedFlapCount() + cancelled);
+            editor.commit();
+            scheduleConfirmation();
+        }
+        return cancelled;
+    }
+
+    /**
+     * Holds back the exits of the given fences for the grace window
+     *
+     * @return the fences that should exit right away, which is all of them if the window is 0
+     */
+    public List<String> onExit(List<String> fenceIds)
+    {
+        long grace = preferences.getLong(KEY_EXIT_GRACE, DEFAULT_EXIT_GRACE_IN_MILLISECONDS);
+        if (grace <= 0) {
+            return fenceIds;
+        }
+        long confirmAt = System.currentTimeMillis() + grace;
+        SharedPreferences.Editor editor = preferences.edit();
+        for (String fenceId : fenceIds) {
+            editor.putLong(PENDING_EXIT_PREFIX + fenceId, confirmAt);
+        }
+        // commit instead of apply, the receiver's process may be killed as soon as it finishes
+        editor.commit();
+        scheduleConfirmation();
+        return new ArrayList<>();
+    }
+
+    /**
+     * Removes and returns the pending exits whose grace window has passed
+     */
+    public List<String> takeConfirmedExits()
+    {
+        long now = System.currentTimeMillis();
+        List<String> confirmed = new ArrayList<>();
+        SharedPreferences.Editor editor = preferences.edit();
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            String key = entry.getKey();
+            if (key.startsWith(PENDING_EXIT_PREFIX) && (Long) entry.getValue() <= now) {
+                confirmed.add(key.substring(PENDING_EXIT_PREFIX.length()));
+                editor.remove(key);
+            }
+        }
+        if (!confirmed.isEmpty()) {
+            editor.commit();
+        }
+        scheduleConfirmation();
+        return confirmed;
+    }
+
+    /**
+     * Drops all pending exits, for example when geofencing is turned off
+     */
+    public void clear()
+    {
+        SharedPreferences.Editor editor = preferences.edit();
+        for (String key : preferences.getAll().keySet()) {
+            if (key.startsWith(PENDING_EXIT_PREFIX)) {
+                editor.remove(key);
+            }
+        }
+        editor.commit();
+        scheduleConfirmation();
+    }
+
+    // number of exits cancelled by an ENTER within the grace window
+    public long getSuppressedFlapCount()
+    {
+        return preferences.getLong(KEY_SUPPRESSED_FLAPS, 0);
+    }
+
+    // number of transitions ignored because of a low-accuracy triggering location
+    public long getRejectedLowAccuracyCount()
+    {
+        return preferences.getLong(KEY_REJECTED_LOW_ACCURACY, 0);
+    }
+
+    private void increment(String key, long amount)
+    {
+        preferences.edit().putLong(key, preferences.getLong(key, 0) + amount).commit();
+    }
+
+    // Sets an alarm for the earliest pending exit, or cancels it if there is none
+    private void scheduleConfirmation()
+    {
+        long earliest = Long.MAX_VALUE;
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            if (entry.getKey().startsWith(PENDING_EXIT_PREFIX)) {
+                earliest = Math.min(earliest, (Long) entry.getValue());
+            }
+        }
+
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (alarmManager == null) {
+            return;
+        }
+        PendingIntent confirmIntent = getConfirmationIntent();
+        if (earliest == Long.MAX_VALUE) {
+            alarmManager.cancel(confirmIntent);
+        }
+        else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            // the grace window is short, so don't let doze defer the exit indefinitely
+            alarmManager.setAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, earliest, confirmIntent);
+        }
+        else {
+            alarmManager.set(AlarmManager.RTC_WAKEUP, earliest, confirmIntent);
+        }
+    }
+
+    private PendingIntent getConfirmationIntent()
+    {
+        Intent intent = new Intent(context, GeofenceBroadcastReceiver.class);
+        intent.setAction(ACTION_CONFIRM_EXITS);
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+}
@@ -0,0 +1,216 @@
+package com.example.android.shushme;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.android.gms.location.Geofence;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Fixed-size ring buffer of geofence transition records, memory-mapped from a file
+ * so the records survive the process and cost no more than a few stores to write.
+ * Appending a record doesn't allocate, so it is cheap enough to call on every transition.
+ *
+ * File layout: a HEADER_SIZE byte header followed by CAPACITY records of RECORD_SIZE bytes.
+ * Header: magic, version, record size, capacity, total number of records ever written.
+ * Record: timestamp, latency, transition, ringer action, error code, fence ID length, fence ID.
+ */
+public class TransitionLog {
+
+    public static final String TAG = TransitionLog.class.getSimpleName();
+
+    // what the receiver did with the ringer for a transition
+    public static final int RINGER_ACTION_NONE = 0;
+    public static final int RINGER_ACTION_SILENT = 1;
+    public static final int RINGER_ACTION_NORMAL = 2;
+    // the transition was dropped by TransitionHysteresis
+    public static final int RINGER_ACTION_SUPPRESSED = 3;
+    // the exit is held back until the hysteresis grace window has passed
+    public static final int RINGER_ACTION_DEFERRED = 4;
+
+    private static final String FILE_NAME = "transition_log.bin";
+
+    private static final int MAGIC = 0x5348544c; // "SHTL"
+    private static final int VERSION = 1;
+    private static final int CAPACITY = 4096;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 64;
+
+    // header field offsets
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_RECORD_SIZE = 8;
+    private static final int OFFSET_CAPACITY = 12;
+    private static final int OFFSET_WRITE_COUNT = 16;
+
+    // record field offsets
+    private static final int RECORD_TIMESTAMP = 0;
+    private static final int RECORD_LATENCY = 8;
+    private static final int RECORD_TRANSITION = 12;
+    private static final int RECORD_RINGER_ACTION = 13;
+    private static final int RECORD_ERROR_CODE = 14;
+    private static final int RECORD_FENCE_ID_LENGTH = 16;
+    private static final int RECORD_FENCE_ID = 17;
+    private static final int MAX_FENCE_ID_LENGTH = RECORD_SIZE - RECORD_FENCE_ID;
+
+    private static TransitionLog sInstance;
+
+    private final MappedByteBuffer buffer;
+    private long writeCount;
+
+    private TransitionLog(MappedByteBuffer buffer)
+    {
+        this.buffer = buffer;
+        if (buffer.getInt(OFFSET_MAGIC) != MAGIC
+                || buffer.getInt(OFFSET_VERSION) != VERSION
+                || buffer.getInt(OFFSET_RECORD_SIZE) != RECORD_SIZE
+                || buffer.getInt(OFFSET_CAPACITY) != CAPACITY) {
+            // new or incompatible file, start over
+            buffer.putInt(OFFSET_MAGIC, MAGIC);
+            buffer.putInt(OFFSET_VERSION, VERSION);
+            buffer.putInt(OFFSET_RECORD_SIZE, RECORD_SIZE);
+            buffer.putInt(OFFSET_CAPACITY, CAPACITY);
+            buffer.putLong(OFFSET_WRITE_COUNT, 0);
+        }
+        writeCount = buffer.getLong(OFFSET_WRITE_COUNT);
+    }
+
+    /**
+     * Maps the log file on first use. Returns null if the file can't be mapped,
+     * callers should treat logging as best effort.
+     */
+    public static synchronized TransitionLog getInstance(Context context)
+    {
+        if (sInstance == null) {
+            File file = new File(context.getApplicationContext().getFilesDir(), FILE_NAME);
+            try {
+                sInstance = open(file);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not map transition log: " + e.getMessage());
+            }
+        }
+        return sInstance;
+    }
+
+    static TransitionLog open(File file) throws IOException
+    {
+        // the mapping stays valid after the channel is closed
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) CAPACITY * RECORD_SIZE);
+            return new TransitionLog(buffer);
+        }
+    }
+
+    /**
+     * Appends a record, overwriting the oldest one once the log is full
+     *
+     * @param timestamp    wall clock time of the transition in milliseconds
+     * @param fenceId      request ID of the geofence, truncated to fit the record
+     * @param transition   the Geofence transition type
+     * @param ringerAction one of the RINGER_ACTION constants
+     * @param latency      milliseconds between receiving the broadcast and handling it
+     * @param errorCode    the GeofencingEvent error code, 0 if there was none
+     */
+    public synchronized void append(long timestamp, CharSequence fenceId, int transition,
+                                    int ringerAction, int latency, int errorCode)
+    {
+        int position = HEADER_SIZE + (int) (writeCount % CAPACITY) * RECORD_SIZE;
+        buffer.putLong(position + RECORD_TIMESTAMP, timestamp);
+        buffer.putInt(position + RECORD_LATENCY, latency);
+        buffer.put(position + RECORD_TRANSITION, (byte) transition);
+        buffer.put(position + RECORD_RINGER_ACTION, (byte) ringerAction);
+        buffer.putShort(position + RECORD_ERROR_CODE, (short) errorCode);
+
+        int length = fenceId == null ? 0 : Math.min(fenceId.length(), MAX_FENCE_ID_LENGTH);
+        buffer.put(position + RECORD_FENCE_ID_LENGTH, (byte) length);
+        for (int i = 0; i < length; i++) {
+            // place IDs are ASCII
+            buffer.put(position + RECORD_FENCE_ID + i, (byte) fenceId.charAt(i));
+        }
+
+        // publish the record by bumping the count last
+        writeCount++;
+        buffer.putLong(OFFSET_WRITE_COUNT, writeCount);
+    }
+
+    /**
+     * Writes all records, oldest first, as one line of text each
+     */
+    public synchronized void dump(PrintWriter writer)
+    {
+        long first = Math.max(0, writeCount - CAPACITY);
+        writer.println(String.format(Locale.US, "# %d records (%d written in total)",
+                writeCount - first, writeCount));
+        writer.println("# time fence transition ringer latency_ms error");
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ", Locale.US);
+        char[] fenceId = new char[MAX_FENCE_ID_LENGTH];
+        for (long index = first; index < writeCount; index++) {
+            int position = HEADER_SIZE + (int) (index % CAPACITY) * RECORD_SIZE;
+            int length = buffer.get(position + RECORD_FENCE_ID_LENGTH);
+            for (int i = 0; i < length; i++) {
+                fenceId[i] = (char) buffer.get(position + RECORD_FENCE_ID + i);
+            }
+            writer.println(String.format(Locale.US, "%s %s %s %s %d %d",
+                    format.format(new Date(buffer.getLong(position + RECORD_TIMESTAMP))),
+                    length == 0 ? "-" : new String(fenceId, 0, length),
+                    transitionName(buffer.get(position + RECORD_TRANSITION)),
+                    ringerActionName(buffer.get(position + RECORD_RINGER_ACTION)),
+                    buffer.getInt(position + RECORD_LATENCY),
+                    buffer.getShort(position + RECORD_ERROR_CODE)));
+        }
+        writer.flush();
+    }
+
+    /**
+     * Writes a readable dump of the log to a text file
+     */
+    public void export(File file) throws IOException
+    {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(file))) {
+            dump(writer);
+        }
+    }
+
+    private static String transitionName(int transition)
+    {
+        switch (transition) {
+            case Geofence.GEOFENCE_TRANSITION_ENTER:
+                return "ENTER";
+            case Geofence.GEOFENCE_TRANSITION_EXIT:
+                return "EXIT";
+            case Geofence.GEOFENCE_TRANSITION_DWELL:
+                return "DWELL";
+            default:
+                return "UNKNOWN(" + transition + ")";
+        }
+    }
+
+    private static String ringerActionName(int ringerAction)
+    {
+        switch (ringerAction) {
+            case RINGER_ACTION_SILENT:
+                return "SILENT";
+            case RINGER_ACTION_NORMAL:
+                return "NORMAL";
+            case RINGER_ACTION_SUPPRESSED:
+                return "SUPPRESSED";
+            case RINGER_ACTION_DEFERRED:
+                return "DEFERRED";
+            default:
+                return "NONE";
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.example.android.shushme;
+
+import android.app.AlarmManager;
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.os.SystemClock;
+
+import com.google.android.gms.location.Geofence;
+
+import androidx.appcompat.content.res.AppCompatResources;
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.NotificationManagerCompat;
+
+/**
+ * Posts the transition notification, naming the place when it is known.
+ * The icons are rasterized, and the PendingIntent and a builder per transition type are created,
+ * once per process, so a transition only updates the builder's timestamp and posts.
+ * Bursts of transitions are coalesced: at most one notification is posted per
+ * MIN_UPDATE_INTERVAL_IN_MILLISECONDS, showing the latest transition.
+ * A delayed post is an alarm to GeofenceBroadcastReceiver carrying the latest transition,
+ * since the receiver's process may be killed as soon as it finishes the broadcast.
+ */
+public class TransitionNotifier {
+
+    // unique id for the transition notification. Coalesced updates replace each other.
+    public static final int SHUSHME_NOTIFICATION_ID = 5;
+
+    // the alarm that posts a coalesced notification, see flush
+    public static final String ACTION_FLUSH = "com.example.android.shushme.action.FLUSH_NOTIFICATION";
+    private static final String EXTRA_TRANSITION = "transition";
+    private static final String EXTRA_PLACE_NAME = "place_name";
+    private static final String EXTRA_FLAGS = "flags";
+
+    private static final long MIN_UPDATE_INTERVAL_IN_MILLISECONDS = 3000;
+
+    private static TransitionNotifier sInstance;
+
+    private final Context context;
+    private final NotificationManagerCompat notificationManager;
+    private final NotificationCompat.Builder enterBuilder;
+    private final NotificationCompat.Builder exitBuilder;
+
+    // guarded by this
+    private long lastPostTime = -MIN_UPDATE_INTERVAL_IN_MILLISECONDS;
+    private int pendingTransition;
+    private String pendingPlaceName;
+    private int pendingFlags;
+    private boolean isFlushScheduled;
+
+    private TransitionNotifier(Context context)
+    {
+        this.context = context;
+        notificationManager = NotificationManagerCompat.from(context);
+
+        // Create an explicit Intent that starts the main Activity
+        Intent intent = new Intent(context, MainActivity.class);
+        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
+        // Get a PendingIntent, shared by both builders
+        PendingIntent pendingIntent = PendingIntent.getActivity(context, 0, intent, 0);
+
+        enterBuilder = createBuilder(context, pendingIntent, R.drawable.ic_volume_off_white_24dp,
+                R.string.silent_mode_activated);
+        exitBuilder = createBuilder(context, pendingIntent, R.drawable.ic_volume_up_white_24dp,
+                R.string.back_to_normal);
+    }
+
+    public static synchronized TransitionNotifier getInstance(Context context)
+    {
+        if (sInstance == null) {
+            sInstance = new TransitionNotifier(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Posts a notification for the transition, or schedules it if one was posted too recently.
+     * If more transitions arrive before the scheduled post, only the latest one is shown.
+     *
+     * @param transitionType The geofence transition type, can be Geofence.GEOFENCE_TRANSITION_ENTER
+     *                       or Geofence.GEOFENCE_TRANSITION_EXIT
+     * @param placeName      the place that was entered or left, null if it isn't known
+     * @param flags          the place's FenceIndex flags, 0 if it isn't known
+     */
+    public synchronized void notifyTransition(int transitionType, String placeName, int flags)
+    {
+        pendingTransition = transitionType;
+        pendingPlaceName = placeName;
+        pendingFlags = flags;
+        long postAt = lastPostTime + MIN_UPDATE_INTERVAL_IN_MILLISECONDS;
+        if (!isFlushScheduled && postAt <= SystemClock.elapsedRealtime()) {
+            post();
+        }
+        else {
+            // set again, so the scheduled post picks up the latest transition
+            isFlushScheduled = true;
+            scheduleFlush(postAt);
+        }
+    }
+
+    /**
+     * Posts the notification scheduled by notifyTransition.
+     * Called by GeofenceBroadcastReceiver when the alarm goes off.
+     *
+     * @param intent the alarm's Intent, it carries the latest transition in case
+     *               the process was killed since it was scheduled
+     */
+    public synchronized void flush(Intent intent)
+    {
+        isFlushScheduled = false;
+        pendingTransition = intent.getIntExtra(EXTRA_TRANSITION, pendingTransition);
+        pendingPlaceName = intent.getStringExtra(EXTRA_PLACE_NAME);
+        pendingFlags = intent.getIntExtra(EXTRA_FLAGS, 0);
+        post();
+    }
+
+    // Sets the alarm that posts the pending transition
+    private void scheduleFlush(long postAt)
+    {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (alarmManager == null) {
+            post();
+            return;
+        }
+        Intent intent = new Intent(context, GeofenceBroadcastReceiver.class)
+                .setAction(ACTION_FLUSH)
+                .putExtra(EXTRA_TRANSITION, pendingTransition)
+                .putExtra(EXTRA_PLACE_NAME, pendingPlaceName)
+                .putExtra(EXTRA_FLAGS, pendingFlags);
+        // FLAG_UPDATE_CURRENT replaces the extras of an alarm that is already set
+        PendingIntent flushIntent = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            alarmManager.setAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP, postAt, flushIntent);
+        }
+        else {
+            alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, postAt, flushIntent);
+        }
+    }
+
+    private void post()
+    {
+        NotificationCompat.Builder builder;
+        String title;
+        String text = context.getString(R.string.touch_to_relaunch);
+        if (pendingTransition == Geofence.GEOFENCE_TRANSITION_ENTER) {
+            builder = enterBuilder;
+            title = pendingPlaceName == null ? context.getString(R.string.silent_mode_activated)
+                    : context.getString(R.string.silent_mode_activated_at, pendingPlaceName);
+            if ((pendingFlags & FenceIndex.FLAG_HAS_SCHEDULE) != 0) {
+                text = context.getString(R.string.quiet_during_schedule);
+            }
+        }
+        else if (pendingTransition == Geofence.GEOFENCE_TRANSITION_EXIT) {
+            builder = exitBuilder;
+            title = pendingPlaceName == null ? context.getString(R.string.back_to_normal)
+                    : context.getString(R.string.back_to_normal_after, pendingPlaceName);
+        }
+        else {
+            return;
+        }
+        builder.setContentTitle(title);
+        builder.setContentText(text);
+        lastPostTime = SystemClock.elapsedRealtime();
+        builder.setWhen(System.currentTimeMillis());
+        // Show the notification
+        notificationManager.notify(SHUSHME_NOTIFICATION_ID, builder.build());
+        Metrics.counter(Metrics.NOTIFICATIONS_POSTED).increment();
+    }
+
+    private static NotificationCompat.Builder createBuilder(Context context, PendingIntent pendingIntent,
+                                                            int iconId, int titleId)
+    {
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(context, MainActivity.SHUSHME_NOTIFICATION_CHANNEL)
+                .setPriority(NotificationCompat.PRIORITY_DEFAULT)
+                // Set the intent that will fire when the user taps the notification
+                .setContentIntent(pendingIntent)
+                // Dismiss notification once the user touches it.
+                .setAutoCancel(true)
+                .setSmallIcon(iconId)
+                .setLargeIcon(rasterize(context, iconId))
+                .setContentTitle(context.getString(titleId))
+                .setContentText(context.getString(R.string.touch_to_relaunch));
+
+        // for backwards compatibility.
+        // make sure notification is displayed and makes a sound on older devices
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                && Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            builder.setPriority(NotificationCompat.PRIORITY_HIGH);
+            builder.setDefaults(Notification.DEFAULT_SOUND);
+        }
+        return builder;
+    }
+
+    /**
+     * Draws a drawable into a bitmap the size of a notification large icon.
+     * The icons are vector drawables, which BitmapFactory can't decode.
+     */
+    private static Bitmap rasterize(Context context, int drawableId)
+    {
+        Drawable drawable = AppCompatResources.getDrawable(context, drawableId);
+        if (drawable == null) {
+            return null;
+        }
+        int width = context.getResources().getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+        int height = context.getResources().getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        drawable.setBounds(0, 0, width, height);
+        drawable.draw(canvas);
+        return bitmap;
+    }
+}
@@ -17,16 +17,26 @@ package com.example.android.shushme.provider;
 */
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import androidx.annotation.NonNull;
 
+import java.util.ArrayList;
+
+import com.example.android.shushme.Tracing;
+
 import static com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+import static com.example.android.shushme.provider.PlaceContract.ScheduleEntry;
+import static com.example.android.shushme.provider.PlaceContract.SetEntry;
+import static com.example.android.shushme.provider.PlaceContract.SetMemberEntry;
 
 
 public class PlaceContentProvider extends ContentProvider {
@@ -36,6 +46,9 @@ public class PlaceContentProvider extends ContentProvider {
     // and related ints (101, 102, ..) for items in that directory.
     public static final int PLACES = 100;
     public static final int PLACE_WITH_ID = 101;
+    public static final int SCHEDULES = 200;
+    public static final int SETS = 300;
+    public static final int SET_MEMBERS = 400;
 
     // Declare a static variable for the Uri matcher that you construct
     private static final UriMatcher sUriMatcher = buildUriMatcher();
@@ -48,6 +61,9 @@ public class PlaceContentProvider extends ContentProvider {
         // Add URI matches
         uriMatcher.addURI(PlaceContract.AUTHORITY, PlaceContract.PATH_PLACES, PLACES);
         uriMatcher.addURI(PlaceContract.AUTHORITY, PlaceContract.PATH_PLACES + "/#", PLACE_WITH_ID);
+        uriMatcher.addURI(PlaceContract.AUTHORITY, PlaceContract.PATH_SCHEDULES, SCHEDULES);
+        uriMatcher.addURI(PlaceContract.AUTHORITY, PlaceContract.PATH_SETS, SETS);
+        uriMatcher.addURI(PlaceContract.AUTHORITY, PlaceContract.PATH_SET_MEMBERS, SET_MEMBERS);
         return uriMatcher;
     }
 
@@ -70,31 +86,108 @@ public class PlaceContentProvider extends ContentProvider {
      */
     @Override
     public Uri insert(@NonNull Uri uri, ContentValues values) {
-        final SQLiteDatabase db = mPlaceDbHelper.getWritableDatabase();
+        Tracing.beginSection("PlaceContentProvider.insert");
+        try {
+            final SQLiteDatabase db = mPlaceDbHelper.getWritableDatabase();
 
-        // Write URI matching code to identify the match for the places directory
-        int match = sUriMatcher.match(uri);
-        Uri returnUri; // URI to be returned
-        switch (match) {
-            case PLACES:
-                // Insert new values into the database
-                long id = db.insert(PlaceEntry.TABLE_NAME, null, values);
-                if (id > 0) {
-                    returnUri = ContentUris.withAppendedId(PlaceContract.PlaceEntry.CONTENT_URI, id);
-                } else {
-                    throw new android.database.SQLException("Failed to insert row into " + uri);
-                }
-                break;
-            // Default case throws an UnsupportedOperationException
-            default:
-                throw new UnsupportedOperationException("Unknown uri: " + uri);
+            // Write URI matching code to identify the match for the places directory
+            int match = sUriMatcher.match(uri);
+            Uri returnUri; // URI to be returned
+            switch (match) {
+                case PLACES:
+                    // Insert new values into the database
+                    long id = db.insert(PlaceEntry.TABLE_NAME, null, values);
+                    if (id > 0) {
+                        returnUri = ContentUris.withAppendedId(PlaceContract.PlaceEntry.CONTENT_URI, id);
+                    } else {
+                        throw new android.database.SQLException("Failed to insert row into " + uri);
+                    }
+                    break;
+                case SCHEDULES:
+                    long scheduleId = db.insert(ScheduleEntry.TABLE_NAME, null, values);
+                    if (scheduleId > 0) {
+                        returnUri = ContentUris.withAppendedId(ScheduleEntry.CONTENT_URI, scheduleId);
+                    } else {
+                        throw new android.database.SQLException("Failed to insert row into " + uri);
+                    }
+                    break;
+                case SETS:
+                    long setId = db.insert(SetEntry.TABLE_NAME, null, values);
+                    if (setId > 0) {
+                        returnUri = ContentUris.withAppendedId(SetEntry.CONTENT_URI, setId);
+                    } else {
+                        throw new android.database.SQLException("Failed to insert row into " + uri);
+                    }
+                    break;
+                case SET_MEMBERS:
+                    // a place that is already in the set is ignored and returns -1
+                    long memberId = db.insert(SetMemberEntry.TABLE_NAME, null, values);
+                    returnUri = ContentUris.withAppendedId(SetMemberEntry.CONTENT_URI, Math.max(memberId, 0));
+                    break;
+                // Default case throws an UnsupportedOperationException
+                default:
+                    throw new UnsupportedOperationException("Unknown uri: " + uri);
+            }
+
+            // Notify the resolver if the uri has been changed, and return the newly inserted URI
+            getContext().getContentResolver().notifyChange(uri, null);
+
+            // Return constructed uri (this points to the newly inserted row of data)
+            return returnUri;
+        } finally {
+            Tracing.endSection();
         }
+    }
 
-        // Notify the resolver if the uri has been changed, and return the newly inserted URI
-        getContext().getContentResolver().notifyChange(uri, null);
+    /***
+     * Inserts many rows in one transaction, with one change notification at the end,
+     * instead of a transaction and a notification per row like insert()
+     *
+     * @param uri
+     * @param values
+     * @return the number of rows inserted
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        Tracing.beginSection("PlaceContentProvider.bulkInsert");
+        try {
+            final SQLiteDatabase db = mPlaceDbHelper.getWritableDatabase();
+            String table;
+            switch (sUriMatcher.match(uri)) {
+                case PLACES:
+                    table = PlaceEntry.TABLE_NAME;
+                    break;
+                case SCHEDULES:
+                    table = ScheduleEntry.TABLE_NAME;
+                    break;
+                case SET_MEMBERS:
+                    table = SetMemberEntry.TABLE_NAME;
+                    break;
+                default:
+                    throw new UnsupportedOperationException("Unknown uri: " + uri);
+            }
 
-        // Return constructed uri (this points to the newly inserted row of data)
-        return returnUri;
+            int inserted = 0;
+            db.beginTransaction();
+            try {
+                for (ContentValues rowValues : values) {
+                    // rows that break a constraint, like a place already in a set, are skipped
+                    if (db.insert(table, null, rowValues) > 0) {
+                        inserted++;
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            if (inserted != 0) {
+                getContext().getContentResolver().notifyChange(uri, null);
+            }
+            return inserted;
+        } finally {
+            Tracing.endSection();
+        }
     }
 
     /***
@@ -110,39 +203,74 @@ public class PlaceContentProvider extends ContentProvider {
     @Override
     public Cursor query(@NonNull Uri uri, String[] projection, String selection,
                         String[] selectionArgs, String sortOrder) {
+        Tracing.beginSection("PlaceContentProvider.query");
+        try {
 
-        // Get access to underlying database (read-only for query)
-        final SQLiteDatabase db = mPlaceDbHelper.getReadableDatabase();
+            // Get access to underlying database (read-only for query)
+            final SQLiteDatabase db = mPlaceDbHelper.getReadableDatabase();
 
-        // Write URI match code and set a variable to return a Cursor
-        int match = sUriMatcher.match(uri);
-        Cursor retCursor;
+            // Write URI match code and set a variable to return a Cursor
+            int match = sUriMatcher.match(uri);
+            Cursor retCursor;
 
-        switch (match) {
-            // Query for the places directory
-            case PLACES:
-                retCursor = db.query(PlaceEntry.TABLE_NAME,
-                        projection,
-                        selection,
-                        selectionArgs,
-                        null,
-                        null,
-                        sortOrder);
-                break;
-            // Default exception
-            default:
-                throw new UnsupportedOperationException("Unknown uri: " + uri);
-        }
+            switch (match) {
+                // Query for the places directory
+                case PLACES:
+                    retCursor = db.query(PlaceEntry.TABLE_NAME,
+                            projection,
+                            selection,
+                            selectionArgs,
+                            null,
+                            null,
+                            sortOrder);
+                    break;
+                // Query for the schedules directory
+                case SCHEDULES:
+                    retCursor = db.query(ScheduleEntry.TABLE_NAME,
+                            projection,
+                            selection,
+                            selectionArgs,
+                            null,
+                            null,
+                            sortOrder);
+                    break;
+                // Query for the sets and set members directories
+                case SETS:
+                    retCursor = db.query(SetEntry.TABLE_NAME,
+                            projection,
+                            selection,
+                            selectionArgs,
+                            null,
+                            null,
+                            sortOrder);
+                    break;
+                case SET_MEMBERS:
+                    retCursor = db.query(SetMemberEntry.TABLE_NAME,
+                            projection,
+                            selection,
+                            selectionArgs,
+                            null,
+                            null,
+                            sortOrder);
+                    break;
+                // Default exception
+                default:
+                    throw new UnsupportedOperationException("Unknown uri: " + uri);
+            }
 
-        // Set a notification URI on the Cursor and return that Cursor
-        retCursor.setNotificationUri(getContext().getContentResolver(), uri);
+            // Set a notification URI on the Cursor and return that Cursor
+            retCursor.setNotificationUri(getContext().getContentResolver(), uri);
 
-        // Return the desired Cursor
-        return retCursor;
+            // Return the desired Cursor
+            return retCursor;
+        } finally {
+            Tracing.endSection();
+        }
     }
 
     /***
-     * Deletes a single row of data
+     * Deletes rows of data: a single place by its row ID, or places, schedules,
+     * sets and set members by selection
      *
      * @param uri
      * @param selection
@@ -157,6 +285,10 @@ public class PlaceContentProvider extends ContentProvider {
         // Keep track of the number of deleted places
         int placesDeleted; // starts as 0
         switch (match) {
+            // Places are deleted by selection, for example a list of Google Place IDs
+            case PLACES:
+                placesDeleted = deletePlaces(db, selection, selectionArgs);
+                break;
             // Handle the single item case, recognized by the ID included in the URI path
             case PLACE_WITH_ID:
                 // Get the place ID from the URI path
@@ -164,6 +296,17 @@ public class PlaceContentProvider extends ContentProvider {
                 // Use selections/selectionArgs to filter for this ID
                 placesDeleted = db.delete(PlaceEntry.TABLE_NAME, "_id=?", new String[]{id});
                 break;
+            // Schedules are deleted by selection, for example all schedules of one place
+            case SCHEDULES:
+                placesDeleted = db.delete(ScheduleEntry.TABLE_NAME, selection, selectionArgs);
+                break;
+            // Sets and set members are deleted by selection too
+            case SETS:
+                placesDeleted = db.delete(SetEntry.TABLE_NAME, selection, selectionArgs);
+                break;
+            case SET_MEMBERS:
+                placesDeleted = db.delete(SetMemberEntry.TABLE_NAME, selection, selectionArgs);
+                break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -176,6 +319,28 @@ public class PlaceContentProvider extends ContentProvider {
         return placesDeleted;
     }
 
+    /***
+     * Deletes the places matching the selection, with their schedules and set memberships,
+     * in one transaction
+     *
+     * @return the number of places deleted
+     */
+    private static int deletePlaces(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        // the other tables refer to places by their Google Place ID
+        String inSelectedPlaces = " IN (SELECT " + PlaceEntry.COLUMN_PLACE_ID + " FROM " + PlaceEntry.TABLE_NAME
+                + (selection == null ? "" : " WHERE " + selection) + ")";
+        db.beginTransaction();
+        try {
+            db.delete(ScheduleEntry.TABLE_NAME, ScheduleEntry.COLUMN_PLACE_ID + inSelectedPlaces, selectionArgs);
+            db.delete(SetMemberEntry.TABLE_NAME, SetMemberEntry.COLUMN_PLACE_ID + inSelectedPlaces, selectionArgs);
+            int placesDeleted = db.delete(PlaceEntry.TABLE_NAME, selection, selectionArgs);
+            db.setTransactionSuccessful();
+            return placesDeleted;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     /***
      * Updates a single row of data
      *
@@ -194,12 +359,23 @@ public class PlaceContentProvider extends ContentProvider {
         int placesUpdated;
 
         switch (match) {
+            // Places are updated by selection, for example by their Google Place ID
+            case PLACES:
+                placesUpdated = db.update(PlaceEntry.TABLE_NAME, values, selection, selectionArgs);
+                break;
             case PLACE_WITH_ID:
                 // Get the place ID from the URI path
                 String id = uri.getPathSegments().get(1);
                 // Use selections/selectionArgs to filter for this ID
                 placesUpdated = db.update(PlaceEntry.TABLE_NAME, values, "_id=?", new String[]{id});
                 break;
+            // Schedules and set members are updated by selection, for example when a place gets a new Place ID
+            case SCHEDULES:
+                placesUpdated = db.update(ScheduleEntry.TABLE_NAME, values, selection, selectionArgs);
+                break;
+            case SET_MEMBERS:
+                placesUpdated = db.update(SetMemberEntry.TABLE_NAME, values, selection, selectionArgs);
+                break;
             // Default exception
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -214,6 +390,26 @@ public class PlaceContentProvider extends ContentProvider {
         return placesUpdated;
     }
 
+    /***
+     * Applies all operations in one transaction, so either all of them are saved or none are
+     *
+     * @param operations
+     * @return the results of the operations
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mPlaceDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+        }
+    }
 
     @Override
     public String getType(@NonNull Uri uri) {
@@ -30,6 +30,11 @@ public class PlaceContract {
     // Define the possible paths for accessing data in this contract
     // This is the path for the "places" directory
     public static final String PATH_PLACES = "places";
+    // This is the path for the "schedules" directory
+    public static final String PATH_SCHEDULES = "schedules";
+    // These are the paths for the "sets" and "set_members" directories
+    public static final String PATH_SETS = "sets";
+    public static final String PATH_SET_MEMBERS = "set_members";
 
     public static final class PlaceEntry implements BaseColumns {
 
@@ -39,5 +44,51 @@ public class PlaceContract {
 
         public static final String TABLE_NAME = "places";
         public static final String COLUMN_PLACE_ID = "placeID";
+        // last known coordinates of the place, cached from the Places API
+        // so geofences can be evaluated without fetching. Null until first fetched.
+        public static final String COLUMN_LATITUDE = "latitude";
+        public static final String COLUMN_LONGITUDE = "longitude";
+    }
+
+    // A place with no schedules is quiet at any time.
+    // A place with schedules is only quiet during their time windows.
+    public static final class ScheduleEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SCHEDULES).build();
+
+        public static final String TABLE_NAME = "schedules";
+        // the Google Place ID of the place this schedule belongs to
+        public static final String COLUMN_PLACE_ID = "placeID";
+        // bitmask of the days the window applies to, see QuietSchedule.MONDAY to QuietSchedule.SUNDAY
+        public static final String COLUMN_DAYS = "days";
+        // start and end of the window in minutes after midnight.
+        // An end before the start means the window runs past midnight.
+        public static final String COLUMN_START_MINUTE = "startMinute";
+        public static final String COLUMN_END_MINUTE = "endMinute";
+    }
+
+    // A named set of places, like "Work" or "Travel".
+    // Only the places of the active set are registered as geofences.
+    public static final class SetEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SETS).build();
+
+        public static final String TABLE_NAME = "sets";
+        public static final String COLUMN_NAME = "name";
+    }
+
+    // One row per place in a set. A place can be in any number of sets.
+    public static final class SetMemberEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SET_MEMBERS).build();
+
+        public static final String TABLE_NAME = "set_members";
+        // the _ID of the set in the sets table
+        public static final String COLUMN_SET_ID = "setID";
+        // the Google Place ID of the place
+        public static final String COLUMN_PLACE_ID = "placeID";
     }
 }
@@ -21,6 +21,9 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
 import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+import com.example.android.shushme.provider.PlaceContract.ScheduleEntry;
+import com.example.android.shushme.provider.PlaceContract.SetEntry;
+import com.example.android.shushme.provider.PlaceContract.SetMemberEntry;
 
 public class PlaceDbHelper extends SQLiteOpenHelper {
 
@@ -28,7 +31,10 @@ public class PlaceDbHelper extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "shushme.db";
 
     // If you change the database schema, you must increment the database version
-    private static final int DATABASE_VERSION = 1;
+    // Version 2 adds the schedules table
+    // Version 3 adds the sets and set_members tables
+    // Version 4 adds the cached coordinates of the places
+    private static final int DATABASE_VERSION = 4;
 
     // Constructor
     public PlaceDbHelper(Context context) {
@@ -42,16 +48,61 @@ public class PlaceDbHelper extends SQLiteOpenHelper {
         final String SQL_CREATE_PLACES_TABLE = "CREATE TABLE " + PlaceEntry.TABLE_NAME + " (" +
                 PlaceEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
                 PlaceEntry.COLUMN_PLACE_ID + " TEXT NOT NULL, " +
+                PlaceEntry.COLUMN_LATITUDE + " REAL, " +
+                PlaceEntry.COLUMN_LONGITUDE + " REAL, " +
                 "UNIQUE (" + PlaceEntry.COLUMN_PLACE_ID + ") ON CONFLICT REPLACE" +
                 "); ";
 
         sqLiteDatabase.execSQL(SQL_CREATE_PLACES_TABLE);
+        createSchedulesTable(sqLiteDatabase);
+        createSetTables(sqLiteDatabase);
+    }
+
+    private void createSchedulesTable(SQLiteDatabase sqLiteDatabase) {
+        final String SQL_CREATE_SCHEDULES_TABLE = "CREATE TABLE " + ScheduleEntry.TABLE_NAME + " (" +
+                ScheduleEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                ScheduleEntry.COLUMN_PLACE_ID + " TEXT NOT NULL, " +
+                ScheduleEntry.COLUMN_DAYS + " INTEGER NOT NULL, " +
+                ScheduleEntry.COLUMN_START_MINUTE + " INTEGER NOT NULL, " +
+                ScheduleEntry.COLUMN_END_MINUTE + " INTEGER NOT NULL" +
+                "); ";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_SCHEDULES_TABLE);
+    }
+
+    private void createSetTables(SQLiteDatabase sqLiteDatabase) {
+        final String SQL_CREATE_SETS_TABLE = "CREATE TABLE " + SetEntry.TABLE_NAME + " (" +
+                SetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                SetEntry.COLUMN_NAME + " TEXT NOT NULL" +
+                "); ";
+
+        // adding a place to a set twice keeps the existing row
+        final String SQL_CREATE_SET_MEMBERS_TABLE = "CREATE TABLE " + SetMemberEntry.TABLE_NAME + " (" +
+                SetMemberEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                SetMemberEntry.COLUMN_SET_ID + " INTEGER NOT NULL, " +
+                SetMemberEntry.COLUMN_PLACE_ID + " TEXT NOT NULL, " +
+                "UNIQUE (" + SetMemberEntry.COLUMN_SET_ID + ", " + SetMemberEntry.COLUMN_PLACE_ID +
+                ") ON CONFLICT IGNORE" +
+                "); ";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_SETS_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_SET_MEMBERS_TABLE);
     }
 
     @Override
-    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int i, int i1) {
-        // For now simply drop the table and create a new one.
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + PlaceEntry.TABLE_NAME);
-        onCreate(sqLiteDatabase);
+    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        // Upgrade step by step so saved places are kept
+        if (oldVersion < 2) {
+            createSchedulesTable(sqLiteDatabase);
+        }
+        if (oldVersion < 3) {
+            createSetTables(sqLiteDatabase);
+        }
+        if (oldVersion < 4) {
+            sqLiteDatabase.execSQL("ALTER TABLE " + PlaceEntry.TABLE_NAME +
+                    " ADD COLUMN " + PlaceEntry.COLUMN_LATITUDE + " REAL");
+            sqLiteDatabase.execSQL("ALTER TABLE " + PlaceEntry.TABLE_NAME +
+                    " ADD COLUMN " + PlaceEntry.COLUMN_LONGITUDE + " REAL");
+        }
     }
 }
@@ -0,0 +1,77 @@
+package com.example.android.shushme;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Looper;
+
+import com.example.android.shushme.provider.PlaceContentProvider;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.NonNull;
+
+/**
+ * The real provider, counting every call and the calls made on the main thread
+ */
+public class CountingPlaceContentProvider extends PlaceContentProvider {
+
+    private static final AtomicInteger sCalls = new AtomicInteger();
+    private static final AtomicInteger sMainThreadCalls = new AtomicInteger();
+
+    static void reset()
+    {
+        sCalls.set(0);
+        sMainThreadCalls.set(0);
+    }
+
+    static int getCalls()
+    {
+        return sCalls.get();
+    }
+
+    static int getMainThreadCalls()
+    {
+        return sMainThreadCalls.get();
+    }
+
+    private static void count()
+    {
+        sCalls.incrementAndGet();
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            sMainThreadCalls.incrementAndGet();
+        }
+    }
+
+    @Override
+    public Uri insert(@NonNull Uri uri, ContentValues values) {
+        count();
+        return super.insert(uri, values);
+    }
+
+    // one call for the whole batch, like a single transaction
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        count();
+        return super.bulkInsert(uri, values);
+    }
+
+    @Override
+    public Cursor query(@NonNull Uri uri, String[] projection, String selection,
+                        String[] selectionArgs, String sortOrder) {
+        count();
+        return super.query(uri, projection, selection, selectionArgs, sortOrder);
+    }
+
+    @Override
+    public int update(@NonNull Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        count();
+        return super.update(uri, values, selection, selectionArgs);
+    }
+
+    @Override
+    public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
+        count();
+        return super.delete(uri, selection, selectionArgs);
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.android.shushme;
+
+import com.google.android.gms.common.api.ApiException;
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.android.libraries.places.api.model.Place;
+import com.google.android.libraries.places.api.net.FetchPhotoRequest;
+import com.google.android.libraries.places.api.net.FetchPhotoResponse;
+import com.google.android.libraries.places.api.net.FetchPlaceRequest;
+import com.google.android.libraries.places.api.net.FetchPlaceResponse;
+import com.google.android.libraries.places.api.net.FindAutocompletePredictionsRequest;
+import com.google.android.libraries.places.api.net.FindAutocompletePredictionsResponse;
+import com.google.android.libraries.places.api.net.FindCurrentPlaceRequest;
+import com.google.android.libraries.places.api.net.FindCurrentPlaceResponse;
+import com.google.android.libraries.places.api.net.PlacesClient;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Places backend that answers fetchPlace from memory, so tests never touch the network.
+ * Unknown IDs fail like a place that no longer exists.
+ */
+class FakePlacesClient implements PlacesClient {
+
+    private final Map<String, Place> places = new HashMap<>();
+    private int fetchCount;
+
+    Place addPlace(String placeId, double latitude, double longitude)
+    {
+        Place place = Place.builder()
+                .setId(placeId)
+                .setName("Place " + placeId)
+                .setAddress(placeId + " Main Street")
+                .setLatLng(new LatLng(latitude, longitude))
+                .build();
+        places.put(placeId, place);
+        return place;
+    }
+
+    // serves the rows of a table, for example places made by SyntheticPlaces
+    void addPlaces(PlaceTable table)
+    {
+        for (int row = 0; row < table.size(); row++) {
+            Place place = Place.builder()
+                    .setId(table.getId(row))
+                    .setName(table.getString(row, PlaceTable.NAME))
+                    .setAddress(table.getString(row, PlaceTable.ADDRESS))
+                    .setLatLng(new LatLng(table.getLatitude(row), table.getLongitude(row)))
+                    .build();
+            places.put(place.getId(), place);
+        }
+    }
+
+    int getFetchCount()
+    {
+        return fetchCount;
+    }
+
+    @Override
+    public Task<FetchPlaceResponse> fetchPlace(FetchPlaceRequest request)
+    {
+        fetchCount++;
+        Place place = places.get(request.getPlaceId());
+        if (place == null) {
+            return Tasks.forException(new ApiException(new Status(CommonStatusCodes.ERROR)));
+        }
+        return Tasks.forResult(FetchPlaceResponse.newInstance(place));
+    }
+
+    @Override
+    public Task<FetchPhotoResponse> fetchPhoto(FetchPhotoRequest request)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Task<FindAutocompletePredictionsResponse> findAutocompletePredictions(
+            FindAutocompletePredictionsRequest request)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Task<FindCurrentPlaceResponse> findCurrentPlace(FindCurrentPlaceRequest request)
+    {
+        throw new UnsupportedOperationException();
+    }
+}
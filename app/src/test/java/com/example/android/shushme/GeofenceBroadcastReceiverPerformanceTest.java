@@ -0,0 +1,168 @@
+package com.example.android.shushme;
+
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Looper;
+
+import com.example.android.shushme.provider.PlaceContract;
+import com.google.android.gms.location.Geofence;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Budgets for handling bursts of geofence transitions.
+ * The transitions are fed straight into the receiver on the transitions executor,
+ * standing in for the geofencing backend, which isn't available on the JVM.
+ */
+@RunWith(AndroidJUnit4.class)
+@Config(sdk = 28)
+public class GeofenceBroadcastReceiverPerformanceTest {
+
+    // each round enters, leaves and re-enters three overlapping fences
+    private static final int BURST_ROUNDS = 50;
+    private static final int BROADCAST_COUNT = 20;
+
+    // not set from measured costs yet, see PerformanceBudget
+    private static final long BURST_CPU_BUDGET_MS = 500;
+    private static final long BURST_ALLOCATION_BUDGET_BYTES = 16 * 1024 * 1024;
+    private static final long ON_RECEIVE_CPU_BUDGET_MS = 100;
+    private static final long ON_RECEIVE_ALLOCATION_BUDGET_BYTES = 2 * 1024 * 1024;
+
+    private Context context;
+    private GeofenceBroadcastReceiver receiver;
+
+    @Rule
+    public final PerformanceReport report = new PerformanceReport();
+
+    @Before
+    public void setUp() throws InterruptedException
+    {
+        Robolectric.buildContentProvider(CountingPlaceContentProvider.class).create(PlaceContract.AUTHORITY);
+        context = ApplicationProvider.getApplicationContext();
+        shadowOf((NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE))
+                .setNotificationPolicyAccessGranted(true);
+        receiver = new GeofenceBroadcastReceiver();
+
+        // the schedule cache and the fence state outlive a single test
+        QuietSchedules.invalidate();
+        new TransitionEngine(context).clear();
+        new TransitionHysteresis(context).clear();
+
+        // one burst first, so class loading isn't counted against the budgets
+        runOnTransitionsExecutor(() -> {
+            handle(Geofence.GEOFENCE_TRANSITION_ENTER, "warm-up");
+            handle(Geofence.GEOFENCE_TRANSITION_EXIT, "warm-up");
+            return null;
+        });
+        QuietSchedules.invalidate();
+        new TransitionEngine(context).clear();
+        new TransitionHysteresis(context).clear();
+        PerformanceBudget.drain();
+        CountingPlaceContentProvider.reset();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException
+    {
+        PerformanceBudget.drain();
+    }
+
+    @Test
+    public void transitionBurst_changesRingerOnceAndStaysWithinBudget() throws Exception
+    {
+        long ringerChangesBefore = Metrics.counter(Metrics.RINGER_CHANGES).get();
+        long notificationsBefore = Metrics.counter(Metrics.NOTIFICATIONS_POSTED).get();
+
+        long[] cost = runOnTransitionsExecutor(() -> {
+            PerformanceBudget budget = PerformanceBudget.start();
+            for (int round = 0; round < BURST_ROUNDS; round++) {
+                handle(Geofence.GEOFENCE_TRANSITION_ENTER, "home", "street");
+                handle(Geofence.GEOFENCE_TRANSITION_ENTER, "library");
+                // a boundary flap: the exit is held back and cancelled by the re-entry
+                handle(Geofence.GEOFENCE_TRANSITION_EXIT, "home");
+                handle(Geofence.GEOFENCE_TRANSITION_ENTER, "home");
+                handle(Geofence.GEOFENCE_TRANSITION_EXIT, "street", "library");
+            }
+            return new long[]{budget.cpuMillis(), budget.allocatedBytes()};
+        });
+
+        PerformanceBudget.assertWithin("transition burst", "CPU ms", cost[0], BURST_CPU_BUDGET_MS);
+        PerformanceBudget.assertWithin("transition burst", "allocated bytes",
+                cost[1], BURST_ALLOCATION_BUDGET_BYTES);
+        // the schedules are cached after the first transition
+        PerformanceBudget.assertWithin("transition burst", "database calls",
+                CountingPlaceContentProvider.getCalls(), 1);
+        // the device went silent on the first entry and stayed inside a fence
+        assertEquals("transition burst: ringer changes",
+                1, Metrics.counter(Metrics.RINGER_CHANGES).get() - ringerChangesBefore);
+        PerformanceBudget.assertWithin("transition burst", "notifications posted",
+                Metrics.counter(Metrics.NOTIFICATIONS_POSTED).get() - notificationsBefore, 1);
+    }
+
+    @Test
+    public void onReceive_staysWithinMainThreadBudget() throws InterruptedException
+    {
+        context.registerReceiver(receiver, new IntentFilter(QuietSchedules.ACTION_APPLY_SCHEDULES));
+        long transitionsBefore = Metrics.counter(Metrics.TRANSITIONS).get();
+
+        PerformanceBudget budget = PerformanceBudget.start();
+        for (int i = 0; i < BROADCAST_COUNT; i++) {
+            context.sendBroadcast(new Intent(QuietSchedules.ACTION_APPLY_SCHEDULES));
+        }
+        shadowOf(Looper.getMainLooper()).idle();
+        long cpuMillis = budget.cpuMillis();
+        long allocatedBytes = budget.allocatedBytes();
+        PerformanceBudget.drain();
+        context.unregisterReceiver(receiver);
+
+        PerformanceBudget.assertWithin("onReceive", "main thread CPU ms",
+                cpuMillis, ON_RECEIVE_CPU_BUDGET_MS);
+        PerformanceBudget.assertWithin("onReceive", "main thread allocated bytes",
+                allocatedBytes, ON_RECEIVE_ALLOCATION_BUDGET_BYTES);
+        assertEquals("onReceive: database calls on the main thread",
+                0, CountingPlaceContentProvider.getMainThreadCalls());
+        // schedule alarms are handled, but they aren't geofence transitions
+        assertEquals("onReceive: transitions counted",
+                0, Metrics.counter(Metrics.TRANSITIONS).get() - transitionsBefore);
+    }
+
+    private void handle(int transition, String... fenceIds)
+    {
+        // the receiver removes fences from the list, so it has to be modifiable
+        List<String> ids = new ArrayList<>(Arrays.asList(fenceIds));
+        receiver.handleGeofenceTransition(context, transition, ids, null, System.nanoTime());
+    }
+
+    // runs the task where the receiver runs transitions and waits for its result
+    private static <T> T runOnTransitionsExecutor(Callable<T> task)
+    {
+        FutureTask<T> future = new FutureTask<>(task);
+        AppExecutors.getInstance().transitions().execute(future);
+        try {
+            return future.get(30, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            throw new AssertionError("transition task failed", e);
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.example.android.shushme;
+
+import android.app.Activity;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+
+import com.example.android.shushme.provider.PlaceContract;
+import com.google.android.libraries.places.api.model.Place;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.annotation.Config;
+
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Budgets for the main thread work of launching MainActivity, refreshing the place list,
+ * adding a place and removing places, against a fake Places backend and the real database.
+ */
+@RunWith(AndroidJUnit4.class)
+@Config(sdk = 28)
+public class MainActivityPerformanceTest {
+
+    private static final int PLACE_COUNT = 20;
+    private static final int SYNTHETIC_PLACE_COUNT = 1000;
+    private static final long SYNTHETIC_SEED = 7;
+
+    // main thread budgets. None of them was set from a measured cost yet: run the suite, read
+    // build/reports/performance, and set each one to the measured cost times PerformanceBudget.MARGIN
+    // before turning the gate on.
+    private static final long LAUNCH_CPU_BUDGET_MS = 500;
+    private static final long LAUNCH_ALLOCATION_BUDGET_BYTES = 24 * 1024 * 1024;
+    private static final long REFRESH_CPU_BUDGET_MS = 250;
+    private static final long REFRESH_ALLOCATION_BUDGET_BYTES = 8 * 1024 * 1024;
+    private static final long ADD_PLACE_CPU_BUDGET_MS = 250;
+    private static final long ADD_PLACE_ALLOCATION_BUDGET_BYTES = 8 * 1024 * 1024;
+    private static final long REMOVE_PLACES_CPU_BUDGET_MS = 250;
+    private static final long REMOVE_PLACES_ALLOCATION_BUDGET_BYTES = 8 * 1024 * 1024;
+    private static final long SYNTHETIC_REFRESH_CPU_BUDGET_MS = 800;
+    private static final long SYNTHETIC_REFRESH_ALLOCATION_BUDGET_BYTES = 24 * 1024 * 1024;
+
+    private FakePlacesClient placesClient;
+    private MainActivity.PlacesClientFactory originalFactory;
+    private ActivityController<MainActivity> controller;
+
+    @Rule
+    public final PerformanceReport report = new PerformanceReport();
+
+    @Before
+    public void setUp() throws InterruptedException
+    {
+        Robolectric.buildContentProvider(CountingPlaceContentProvider.class).create(PlaceContract.AUTHORITY);
+
+        placesClient = new FakePlacesClient();
+        Context context = ApplicationProvider.getApplicationContext();
+        for (int i = 0; i < PLACE_COUNT; i++) {
+            String placeId = "place-" + i;
+            placesClient.addPlace(placeId, 37.4 + i * 0.001, -122.1);
+            ContentValues values = new ContentValues();
+            values.put(PlaceContract.PlaceEntry.COLUMN_PLACE_ID, placeId);
+            context.getContentResolver().insert(PlaceContract.PlaceEntry.CONTENT_URI, values);
+        }
+
+        originalFactory = MainActivity.placesClientFactory;
+        MainActivity.placesClientFactory = (appContext) -> placesClient;
+
+        // launch once so class loading and resource parsing aren't counted against the budgets
+        Robolectric.buildActivity(MainActivity.class).setup().pause().stop().destroy();
+        PerformanceBudget.drain();
+        CountingPlaceContentProvider.reset();
+        // measure a cold start, without the places fetched by the warm-up launch
+        PlaceStore.reset();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException
+    {
+        if (controller != null) {
+            controller.pause().stop().destroy();
+        }
+        PerformanceBudget.drain();
+        MainActivity.placesClientFactory = originalFactory;
+        PlaceStore.reset();
+    }
+
+    @Test
+    public void launch_staysWithinMainThreadBudget() throws InterruptedException
+    {
+        PerformanceBudget budget = PerformanceBudget.start();
+        controller = Robolectric.buildActivity(MainActivity.class).setup();
+        PerformanceBudget.drain();
+
+        PerformanceBudget.assertWithin("launch", "main thread CPU ms",
+                budget.cpuMillis(), LAUNCH_CPU_BUDGET_MS);
+        PerformanceBudget.assertWithin("launch", "main thread allocated bytes",
+                budget.allocatedBytes(), LAUNCH_ALLOCATION_BUDGET_BYTES);
+        assertEquals("launch: database calls on the main thread",
+                0, CountingPlaceContentProvider.getMainThreadCalls());
+    }
+
+    @Test
+    public void refresh_staysWithinMainThreadBudget() throws InterruptedException
+    {
+        controller = Robolectric.buildActivity(MainActivity.class).setup();
+        PerformanceBudget.drain();
+        MainActivity activity = controller.get();
+        RebindCounter rebinds = RebindCounter.attach(activity);
+        CountingPlaceContentProvider.reset();
+        int fetchesBefore = placesClient.getFetchCount();
+        long versionBefore = PlaceStore.getInstance().snapshot().version;
+
+        PerformanceBudget budget = PerformanceBudget.start();
+        activity.refreshPlacesData();
+        PerformanceBudget.drain();
+
+        PerformanceBudget.assertWithin("refresh", "main thread CPU ms",
+                budget.cpuMillis(), REFRESH_CPU_BUDGET_MS);
+        PerformanceBudget.assertWithin("refresh", "main thread allocated bytes",
+                budget.allocatedBytes(), REFRESH_ALLOCATION_BUDGET_BYTES);
+        assertEquals("refresh: database calls on the main thread",
+                0, CountingPlaceContentProvider.getMainThreadCalls());
+        // the query of the place IDs, and the check of the cached coordinates,
+        // which writes nothing since they didn't change
+        PerformanceBudget.assertWithin("refresh", "database calls", CountingPlaceContentProvider.getCalls(), 2);
+        assertEquals("refresh: place fetches", PLACE_COUNT, placesClient.getFetchCount() - fetchesBefore);
+        assertEquals("refresh: places shown", PLACE_COUNT, activity.shownRows.length);
+        // the same places were fetched again, so nothing is published or rebound
+        assertEquals("refresh: snapshots published", versionBefore, PlaceStore.getInstance().snapshot().version);
+        PerformanceBudget.assertWithin("refresh", "adapter rebinds",
+                rebinds.getCount(), PLACE_COUNT);
+    }
+
+    @Test
+    public void refreshSyntheticPlaces_staysWithinMainThreadBudget() throws InterruptedException
+    {
+        Context context = ApplicationProvider.getApplicationContext();
+        PlaceTable synthetic = SyntheticPlaces.generatePlaces(SYNTHETIC_SEED, SYNTHETIC_PLACE_COUNT);
+        assertEquals("synthetic: places inserted",
+                SYNTHETIC_PLACE_COUNT, SyntheticPlaces.insertPlaces(context, synthetic));
+        placesClient.addPlaces(synthetic);
+        controller = Robolectric.buildActivity(MainActivity.class).setup();
+        PerformanceBudget.drain();
+        MainActivity activity = controller.get();
+        CountingPlaceContentProvider.reset();
+
+        PerformanceBudget budget = PerformanceBudget.start();
+        activity.refreshPlacesData();
+        PerformanceBudget.drain();
+
+        PerformanceBudget.assertWithin("synthetic refresh", "main thread CPU ms",
+                budget.cpuMillis(), SYNTHETIC_REFRESH_CPU_BUDGET_MS);
+        PerformanceBudget.assertWithin("synthetic refresh", "main thread allocated bytes",
+                budget.allocatedBytes(), SYNTHETIC_REFRESH_ALLOCATION_BUDGET_BYTES);
+        assertEquals("synthetic refresh: database calls on the main thread",
+                0, CountingPlaceContentProvider.getMainThreadCalls());
+        // the synthetic places were inserted with their coordinates, so nothing is written
+        PerformanceBudget.assertWithin("synthetic refresh", "database calls", CountingPlaceContentProvider.getCalls(), 2);
+        assertEquals("synthetic refresh: places shown",
+                PLACE_COUNT + SYNTHETIC_PLACE_COUNT, activity.shownRows.length);
+    }
+
+    @Test
+    public void addPlace_staysWithinMainThreadBudget() throws InterruptedException
+    {
+        controller = Robolectric.buildActivity(MainActivity.class).setup();
+        PerformanceBudget.drain();
+        MainActivity activity = controller.get();
+        Place newPlace = placesClient.addPlace("place-new", 37.5, -122.2);
+        RebindCounter rebinds = RebindCounter.attach(activity);
+        CountingPlaceContentProvider.reset();
+        int fetchesBefore = placesClient.getFetchCount();
+
+        PerformanceBudget budget = PerformanceBudget.start();
+        activity.onPlaceSelected(newPlace);
+        PerformanceBudget.drain();
+
+        PerformanceBudget.assertWithin("add place", "main thread CPU ms",
+                budget.cpuMillis(), ADD_PLACE_CPU_BUDGET_MS);
+        PerformanceBudget.assertWithin("add place", "main thread allocated bytes",
+                budget.allocatedBytes(), ADD_PLACE_ALLOCATION_BUDGET_BYTES);
+        assertEquals("add place: database calls on the main thread",
+                0, CountingPlaceContentProvider.getMainThreadCalls());
+        // only the insert of the new place with its coordinates, the others aren't read again
+        PerformanceBudget.assertWithin("add place", "database calls", CountingPlaceContentProvider.getCalls(), 1);
+        assertEquals("add place: place fetches", 0, placesClient.getFetchCount() - fetchesBefore);
+        assertEquals("add place: places shown", PLACE_COUNT + 1, activity.shownRows.length);
+        // one inserted item, the places already shown aren't rebound
+        assertEquals("add place: adapter notifications", 1, rebinds.getCount());
+    }
+
+    @Test
+    public void addPlaceFromPicker_doesNotRefetchPlaces() throws InterruptedException
+    {
+        controller = Robolectric.buildActivity(MainActivity.class).setup();
+        PerformanceBudget.drain();
+        MainActivity activity = controller.get();
+        Place newPlace = placesClient.addPlace("place-new", 37.5, -122.2);
+        int fetchesBefore = placesClient.getFetchCount();
+
+        // the Autocomplete activity covers this one, which is stopped and started again
+        // before the picked place is delivered
+        Intent pickerIntent = new Intent();
+        activity.startActivityForResult(pickerIntent, MainActivity.AUTOCOMPLETE_REQUEST_CODE);
+        controller.pause().stop();
+        controller.restart().resume();
+        PerformanceBudget.drain();
+        shadowOf(activity).receiveResult(pickerIntent, Activity.RESULT_CANCELED, null);
+        activity.onPlaceSelected(newPlace);
+        PerformanceBudget.drain();
+
+        assertEquals("add place from picker: place fetches", 0, placesClient.getFetchCount() - fetchesBefore);
+        assertEquals("add place from picker: places shown", PLACE_COUNT + 1, activity.shownRows.length);
+    }
+
+    @Test
+    public void removePlaces_staysWithinMainThreadBudget() throws InterruptedException
+    {
+        controller = Robolectric.buildActivity(MainActivity.class).setup();
+        PerformanceBudget.drain();
+        MainActivity activity = controller.get();
+        Set<String> removedIds = new HashSet<>(Arrays.asList("place-3", "place-7", "place-11"));
+        RebindCounter rebinds = RebindCounter.attach(activity);
+        CountingPlaceContentProvider.reset();
+        int fetchesBefore = placesClient.getFetchCount();
+
+        PerformanceBudget budget = PerformanceBudget.start();
+        activity.removePlaces(removedIds);
+        PerformanceBudget.drain();
+
+        PerformanceBudget.assertWithin("remove places", "main thread CPU ms",
+                budget.cpuMillis(), REMOVE_PLACES_CPU_BUDGET_MS);
+        PerformanceBudget.assertWithin("remove places", "main thread allocated bytes",
+                budget.allocatedBytes(), REMOVE_PLACES_ALLOCATION_BUDGET_BYTES);
+        assertEquals("remove places: database calls on the main thread",
+                0, CountingPlaceContentProvider.getMainThreadCalls());
+        // one delete of all three places, their schedules and set memberships
+        PerformanceBudget.assertWithin("remove places", "database calls", CountingPlaceContentProvider.getCalls(), 1);
+        assertEquals("remove places: place fetches", 0, placesClient.getFetchCount() - fetchesBefore);
+        assertEquals("remove places: places shown", PLACE_COUNT - removedIds.size(), activity.shownRows.length);
+        // one removed item each, the places that stay aren't rebound
+        assertEquals("remove places: adapter notifications", removedIds.size(), rebinds.getCount());
+    }
+
+    /**
+     * Counts adapter notifications that rebind rows. Moves only animate rows, so they don't count.
+     */
+    private static class RebindCounter extends RecyclerView.AdapterDataObserver {
+        private int count;
+
+        static RebindCounter attach(MainActivity activity)
+        {
+            RecyclerView recyclerView = activity.findViewById(R.id.places_list_recycler_view);
+            RebindCounter counter = new RebindCounter();
+            recyclerView.getAdapter().registerAdapterDataObserver(counter);
+            return counter;
+        }
+
+        int getCount()
+        {
+            return count;
+        }
+
+        @Override
+        public void onChanged() {
+            count++;
+        }
+
+        @Override
+        public void onItemRangeChanged(int positionStart, int itemCount) {
+            count++;
+        }
+
+        @Override
+        public void onItemRangeInserted(int positionStart, int itemCount) {
+            count++;
+        }
+
+        @Override
+        public void onItemRangeRemoved(int positionStart, int itemCount) {
+            count++;
+        }
+    }
+}
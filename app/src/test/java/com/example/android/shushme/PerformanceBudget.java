@@ -0,0 +1,115 @@
+package com.example.android.shushme;
+
+import android.os.Looper;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Measures the CPU time and the allocations of one thread, and checks them against a budget.
+ * Robolectric runs the main looper on the test thread, so measuring the test thread
+ * measures the main thread.
+ *
+ * The JVM is not a phone, so the budgets catch work moving back onto the main thread,
+ * not small slowdowns. Each budget should be the cost measured on the JVM times MARGIN.
+ *
+ * The budgets haven't been set from measured costs yet, so a cost over its budget only
+ * fails the test when the gate is turned on with ./gradlew test -PperfGate.
+ * Every check is recorded, and PerformanceReport writes the measured costs next to
+ * their budgets under build/reports/performance, to set the budgets from.
+ */
+class PerformanceBudget {
+
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // headroom over the measured cost, for slower CI machines and GC timing
+    static final int MARGIN = 2;
+
+    // whether a cost over its budget fails the test
+    static final boolean IS_GATE = Boolean.getBoolean("shushme.perf.gate");
+
+    // the checks of the running test, for PerformanceReport
+    private static final List<String> measurements = new ArrayList<>();
+
+    // how many rounds of background work and main thread callbacks drain() waits for
+    private static final int DRAIN_ROUNDS = 4;
+
+    private final long threadId;
+    private final long startCpuNanos;
+    private final long startAllocatedBytes;
+
+    private PerformanceBudget(long threadId)
+    {
+        this.threadId = threadId;
+        this.startCpuNanos = THREAD_MX_BEAN.getThreadCpuTime(threadId);
+        this.startAllocatedBytes = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId);
+    }
+
+    // starts measuring the current thread
+    static PerformanceBudget start()
+    {
+        return new PerformanceBudget(Thread.currentThread().getId());
+    }
+
+    long cpuMillis()
+    {
+        return (THREAD_MX_BEAN.getThreadCpuTime(threadId) - startCpuNanos) / 1000000;
+    }
+
+    long allocatedBytes()
+    {
+        return THREAD_MX_BEAN.getThreadAllocatedBytes(threadId) - startAllocatedBytes;
+    }
+
+    static void assertWithin(String scenario, String measure, long actual, long budget)
+    {
+        String result = String.format("%s: %s was %d, budget is %d", scenario, measure, actual, budget);
+        synchronized (measurements) {
+            measurements.add(result);
+        }
+        if (IS_GATE && actual > budget) {
+            fail(result);
+        }
+    }
+
+    // returns the checks recorded since the last call, and forgets them
+    static List<String> takeMeasurements()
+    {
+        synchronized (measurements) {
+            List<String> taken = new ArrayList<>(measurements);
+            measurements.clear();
+            return taken;
+        }
+    }
+
+    /**
+     * Waits until the app executors and the main looper have nothing left to run.
+     * Background work posts its results to the main thread, which may queue more
+     * background work, so this goes back and forth a few times.
+     */
+    static void drain() throws InterruptedException
+    {
+        for (int round = 0; round < DRAIN_ROUNDS; round++) {
+            awaitIdle(AppExecutors.getInstance().background());
+            awaitIdle(AppExecutors.getInstance().transitions());
+            shadowOf(Looper.getMainLooper()).idle();
+        }
+    }
+
+    // both executors are single threaded, so a task runs after everything queued before it
+    private static void awaitIdle(Executor executor) throws InterruptedException
+    {
+        CountDownLatch latch = new CountDownLatch(1);
+        executor.execute(latch::countDown);
+        assertTrue("executor did not become idle", latch.await(10, TimeUnit.SECONDS));
+    }
+}
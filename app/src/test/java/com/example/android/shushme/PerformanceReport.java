@@ -0,0 +1,45 @@
+package com.example.android.shushme;
+
+import org.junit.rules.TestWatcher;
+import org.junit.runner.Description;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Writes the costs a test measured next to their budgets, one file per test,
+ * into the directory Gradle passes in shushme.perf.reportDir.
+ */
+class PerformanceReport extends TestWatcher {
+
+    @Override
+    protected void starting(Description description)
+    {
+        // drop checks left over from a test without this rule
+        PerformanceBudget.takeMeasurements();
+    }
+
+    @Override
+    protected void finished(Description description)
+    {
+        List<String> measurements = PerformanceBudget.takeMeasurements();
+        String reportDir = System.getProperty("shushme.perf.reportDir");
+        if (reportDir == null || measurements.isEmpty()) {
+            return;
+        }
+        File dir = new File(reportDir);
+        dir.mkdirs();
+        File file = new File(dir, description.getClassName() + "." + description.getMethodName() + ".txt");
+        try (Writer writer = new FileWriter(file)) {
+            for (String measurement : measurements) {
+                writer.write(measurement);
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            throw new AssertionError("could not write " + file, e);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.android.shushme;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * PlaceTable is plain Java, so it is tested on the JVM without Robolectric
+ */
+public class PlaceTableTest {
+
+    // "Aa" and "BB" have the same String.hashCode, and so do all their concatenations
+    private static final String[] COLLIDING_IDS = {"AaAa", "AaBB", "BBAa"};
+    private static final String MISSING_COLLIDING_ID = "BBBB";
+
+    @Test
+    public void indexOf_findsEveryIdWhenHashesCollide()
+    {
+        PlaceTable.Builder builder = new PlaceTable.Builder(COLLIDING_IDS.length);
+        for (String placeId : COLLIDING_IDS) {
+            builder.add(placeId, "name " + placeId, null, 1, 2, 50);
+        }
+        PlaceTable table = builder.build();
+
+        for (int row = 0; row < COLLIDING_IDS.length; row++) {
+            assertEquals("row of " + COLLIDING_IDS[row], row, table.indexOf(COLLIDING_IDS[row]));
+        }
+        // same hash, not in the table
+        assertEquals("missing colliding ID", -1, table.indexOf(MISSING_COLLIDING_ID));
+        assertEquals("missing ID", -1, table.indexOf("unknown"));
+    }
+
+    @Test
+    public void indexOf_emptyTable()
+    {
+        assertEquals(0, PlaceTable.EMPTY.size());
+        assertEquals(-1, PlaceTable.EMPTY.indexOf("any"));
+    }
+
+    @Test
+    public void getStartAndLength_pointAtEachString()
+    {
+        PlaceTable table = new PlaceTable.Builder(1)
+                .add("id-1", null, "1 Main St", 37.4, -122.1, 50)
+                .add("id-22", "Library", "", Double.NaN, Double.NaN, 75)
+                .build();
+
+        assertEquals(0, table.getStart(0, PlaceTable.ID));
+        assertEquals(4, table.getLength(0, PlaceTable.ID));
+        // a null name is stored as ""
+        assertEquals(4, table.getStart(0, PlaceTable.NAME));
+        assertEquals(0, table.getLength(0, PlaceTable.NAME));
+        assertEquals(4, table.getStart(0, PlaceTable.ADDRESS));
+        assertEquals(9, table.getLength(0, PlaceTable.ADDRESS));
+        // the next row starts where the last string of the previous one ends
+        assertEquals(13, table.getStart(1, PlaceTable.ID));
+        assertEquals(5, table.getLength(1, PlaceTable.ID));
+        assertEquals(0, table.getLength(1, PlaceTable.ADDRESS));
+
+        assertEquals("id-22", table.getId(1));
+        assertEquals("Library", table.getString(1, PlaceTable.NAME));
+        assertEquals("Library", new String(table.getChars(),
+                table.getStart(1, PlaceTable.NAME), table.getLength(1, PlaceTable.NAME)));
+        assertTrue(table.regionEquals(0, PlaceTable.NAME, null));
+        assertTrue(table.regionEquals(0, PlaceTable.ADDRESS, "1 Main St"));
+        assertFalse(table.regionEquals(0, PlaceTable.ADDRESS, "1 Main Rd"));
+        assertTrue(table.hasLatLng(0));
+        assertFalse(table.hasLatLng(1));
+    }
+
+    @Test
+    public void addRow_copiesTheRowIntoTheNewTable()
+    {
+        PlaceTable source = new PlaceTable.Builder(3)
+                .add("home", "Home", "1 Main St", 37.4, -122.1, 50)
+                .add("work", "Office", "2 Market St", 37.8, -122.4, 60)
+                .add("gym", "Gym", null, 37.5, -122.2, 70)
+                .build();
+
+        // starts with a capacity of 0, so the builder has to grow
+        PlaceTable copy = new PlaceTable.Builder(0)
+                .addRow(source, 1)
+                .add("cafe", "Cafe", "3 Mission St", 37.7, -122.3, 40)
+                .addRow(source, 2)
+                .build();
+
+        assertEquals(3, copy.size());
+        assertEquals("work", copy.getId(0));
+        assertEquals("Office", copy.getString(0, PlaceTable.NAME));
+        assertEquals("2 Market St", copy.getString(0, PlaceTable.ADDRESS));
+        assertEquals(37.8, copy.getLatitude(0), 0);
+        assertEquals(-122.4, copy.getLongitude(0), 0);
+        assertEquals(60, copy.getRadius(0), 0);
+        assertEquals("cafe", copy.getId(1));
+        assertEquals("gym", copy.getId(2));
+        assertEquals("", copy.getString(2, PlaceTable.ADDRESS));
+        assertEquals(70, copy.getRadius(2), 0);
+
+        // the copied rows are indexed under their new row numbers
+        assertEquals(0, copy.indexOf("work"));
+        assertEquals(2, copy.indexOf("gym"));
+        assertEquals(-1, copy.indexOf("home"));
+        // the source is unchanged
+        assertEquals(1, source.indexOf("work"));
+        assertEquals("Gym", source.getString(2, PlaceTable.NAME));
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.android.shushme;
+
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.Looper;
+
+import com.example.android.shushme.provider.PlaceContract;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Checks that the synthetic data can be repeated exactly, and replays a trace
+ * through the LocalGeofenceEngine and GeofenceBroadcastReceiver.
+ */
+@RunWith(AndroidJUnit4.class)
+@Config(sdk = 28)
+public class SyntheticPlacesTest {
+
+    private static final long SEED = 7;
+    private static final int PLACE_COUNT = 200;
+    private static final int VISITS = 3;
+    private static final long START_TIME = 1500000000000L;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private Context context;
+    private GeofenceBroadcastReceiver receiver;
+
+    @Before
+    public void setUp() throws InterruptedException
+    {
+        Robolectric.buildContentProvider(CountingPlaceContentProvider.class).create(PlaceContract.AUTHORITY);
+        context = ApplicationProvider.getApplicationContext();
+        shadowOf((NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE))
+                .setNotificationPolicyAccessGranted(true);
+        receiver = new GeofenceBroadcastReceiver();
+        QuietSchedules.invalidate();
+        LocalGeofenceEngine.invalidate();
+        new TransitionEngine(context).clear();
+        new TransitionHysteresis(context).clear();
+        PerformanceBudget.drain();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException
+    {
+        new LocalGeofenceEngine(context).stop();
+        PerformanceBudget.drain();
+        LocalGeofenceEngine.invalidate();
+    }
+
+    @Test
+    public void generatePlaces_sameSeedGivesSamePlaces()
+    {
+        PlaceTable first = SyntheticPlaces.generatePlaces(SEED, PLACE_COUNT);
+        PlaceTable second = SyntheticPlaces.generatePlaces(SEED, PLACE_COUNT);
+
+        assertEquals(PLACE_COUNT, first.size());
+        assertEquals(PLACE_COUNT, second.size());
+        for (int row = 0; row < PLACE_COUNT; row++) {
+            assertEquals(first.getId(row), second.getId(row));
+            assertEquals(first.getString(row, PlaceTable.NAME), second.getString(row, PlaceTable.NAME));
+            assertEquals(first.getString(row, PlaceTable.ADDRESS), second.getString(row, PlaceTable.ADDRESS));
+            assertEquals(first.getLatitude(row), second.getLatitude(row), 0);
+            assertEquals(first.getLongitude(row), second.getLongitude(row), 0);
+        }
+
+        PlaceTable other = SyntheticPlaces.generatePlaces(SEED + 1, PLACE_COUNT);
+        assertFalse("another seed gives other coordinates",
+                first.getLatitude(0) == other.getLatitude(0) && first.getLongitude(0) == other.getLongitude(0));
+    }
+
+    @Test
+    public void generateTrace_sameSeedGivesSameTrace()
+    {
+        PlaceTable places = SyntheticPlaces.generatePlaces(SEED, PLACE_COUNT);
+        SyntheticPlaces.Trace first = SyntheticPlaces.generateTrace(SEED, places, VISITS, START_TIME);
+        SyntheticPlaces.Trace second = SyntheticPlaces.generateTrace(SEED, places, VISITS, START_TIME);
+
+        assertTrue(first.size > 0);
+        assertTraceEquals(first, second);
+    }
+
+    @Test
+    public void readTrace_readsWhatWriteTraceWrote() throws IOException
+    {
+        PlaceTable places = SyntheticPlaces.generatePlaces(SEED, PLACE_COUNT);
+        SyntheticPlaces.Trace trace = SyntheticPlaces.generateTrace(SEED, places, VISITS, START_TIME);
+        File file = folder.newFile("trace.bin");
+
+        SyntheticPlaces.writeTrace(trace, file);
+
+        assertTraceEquals(trace, SyntheticPlaces.readTrace(file));
+    }
+
+    @Test
+    public void replayTrace_silencesThePhoneAtAVisitedPlace() throws Exception
+    {
+        PlaceTable places = SyntheticPlaces.generatePlaces(SEED, PLACE_COUNT);
+        assertEquals(PLACE_COUNT, SyntheticPlaces.insertPlaces(context, places));
+        File file = folder.newFile("trace.bin");
+        SyntheticPlaces.writeTrace(SyntheticPlaces.generateTrace(SEED, places, VISITS, START_TIME), file);
+        long ringerChangesBefore = Metrics.counter(Metrics.RINGER_CHANGES).get();
+
+        // evaluates all stored places, like when Google Play services can't
+        new LocalGeofenceEngine(context).start(null);
+        replay(SyntheticPlaces.readTrace(file));
+
+        // every visit stays at a place for at least ten minutes of samples
+        assertTrue("replay: ringer changes",
+                Metrics.counter(Metrics.RINGER_CHANGES).get() - ringerChangesBefore > 0);
+    }
+
+    // sends each sample to the receiver the way the engine's location updates arrive
+    private void replay(SyntheticPlaces.Trace trace) throws InterruptedException
+    {
+        context.registerReceiver(receiver, new IntentFilter(LocalGeofenceEngine.ACTION_LOCATION_UPDATE));
+        try {
+            for (int i = 0; i < trace.size; i++) {
+                Location location = new Location(LocationManager.NETWORK_PROVIDER);
+                location.setTime(trace.times[i]);
+                location.setLatitude(trace.latitudes[i]);
+                location.setLongitude(trace.longitudes[i]);
+                location.setAccuracy(trace.accuracies[i]);
+                context.sendBroadcast(new Intent(LocalGeofenceEngine.ACTION_LOCATION_UPDATE)
+                        .putExtra(LocationManager.KEY_LOCATION_CHANGED, location));
+                shadowOf(Looper.getMainLooper()).idle();
+            }
+            PerformanceBudget.drain();
+        } finally {
+            context.unregisterReceiver(receiver);
+        }
+    }
+
+    private static void assertTraceEquals(SyntheticPlaces.Trace expected, SyntheticPlaces.Trace actual)
+    {
+        assertEquals(expected.size, actual.size);
+        assertArrayEquals(expected.times, actual.times);
+        assertArrayEquals(expected.latitudes, actual.latitudes, 0);
+        assertArrayEquals(expected.longitudes, actual.longitudes, 0);
+        assertArrayEquals(expected.accuracies, actual.accuracies, 0);
+    }
+}
@@ -0,0 +1,78 @@
+#!/usr/bin/env bash
+#
+# Measures cold and warm start times of ShushMe on a connected device.
+#
+# Usage: scripts/startup_benchmark.sh [iterations]
+#
+# Install the app first (./gradlew installDebug) and grant location permissions,
+# otherwise the permission dialog skews the numbers.
+# For every iteration the script reports the launch time from `am start -W`
+# and the StartupTracer milestones logged by the app, then prints min/median/max.
+
+set -euo pipefail
+
+ITERATIONS=${1:-10}
+PACKAGE=com.example.android.shushme
+ACTIVITY=$PACKAGE/.MainActivity
+# give the app time to load data and register fences before the next iteration
+SETTLE_SECONDS=5
+
+# compile the app the same way before every run so results are comparable
+adb shell cmd package compile -m speed-profile -f "$PACKAGE" > /dev/null
+
+# prints "<TotalTime> <first_frame> <data_shown> <fences_registered>" for one launch
+measure_launch() {
+    adb logcat -c
+    local total
+    total=$(adb shell am start -W -n "$ACTIVITY" | awk -F': ' '/TotalTime/ {print $2}' | tr -d '\r')
+    sleep "$SETTLE_SECONDS"
+    local log
+    log=$(adb logcat -d -s StartupTracer:I)
+    local milestones=""
+    for milestone in first_frame data_shown fences_registered; do
+        local value
+        value=$(echo "$log" | sed -n "s/.*milestone=$milestone .*since_launch_start=\([0-9]*\).*/\1/p" | head -n 1)
+        milestones="$milestones ${value:--}"
+    done
+    echo "$total$milestones"
+}
+
+# prints min/median/max of the numbers read from stdin
+summarize() {
+    sort -n | awk '{ v[NR] = $1 } END {
+        if (NR == 0) { print "no samples"; exit }
+        printf "min=%d median=%d max=%d (n=%d)\n", v[1], v[int((NR + 1) / 2)], v[NR], NR
+    }'
+}
+
+run() {
+    local kind=$1
+    local results=()
+    for ((i = 1; i <= ITERATIONS; i++)); do
+        if [ "$kind" = cold ]; then
+            adb shell am force-stop "$PACKAGE"
+        else
+            # make sure the process is alive, then finish the activity with BACK
+            # so the next launch runs onCreate again in the existing process
+            adb shell am start -W -n "$ACTIVITY" > /dev/null
+            sleep "$SETTLE_SECONDS"
+            adb shell input keyevent KEYCODE_BACK
+        fi
+        sleep 1
+        local line
+        line=$(measure_launch)
+        echo "$kind #$i total_ms/first_frame/data_shown/fences_registered: $line"
+        results+=("$line")
+    done
+
+    echo "== $kind start =="
+    local column=1
+    for name in total_ms first_frame data_shown fences_registered; do
+        printf "%-18s " "$name"
+        printf "%s\n" "${results[@]}" | awk -v c=$column '$c != "-" {print $c}' | summarize
+        column=$((column + 1))
+    done
+}
+
+run cold
+run warm